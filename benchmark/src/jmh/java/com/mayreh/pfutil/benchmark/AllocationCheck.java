@@ -0,0 +1,54 @@
+package com.mayreh.pfutil.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Run {@link HllAllocationBenchmark} with GC profiler then fail if any bytes are allocated per operation.
+ */
+public class AllocationCheck {
+    // allow tiny noise that comes from JMH infrastructure amortized over operations
+    private static final double MAX_ALLOC_BYTES_PER_OP = 0.1;
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(HllAllocationBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        Collection<RunResult> results = new Runner(options).run();
+
+        boolean failed = false;
+        for (RunResult result : results) {
+            String benchmark = result.getParams().getBenchmark();
+            Double allocBytesPerOp = null;
+            for (Map.Entry<String, Result> entry : result.getSecondaryResults().entrySet()) {
+                // the key may be prefixed with a middle dot depending on JMH version
+                if (entry.getKey().endsWith("gc.alloc.rate.norm")) {
+                    allocBytesPerOp = entry.getValue().getScore();
+                }
+            }
+
+            if (allocBytesPerOp == null) {
+                System.err.println(benchmark + ": gc.alloc.rate.norm is not reported");
+                failed = true;
+            } else if (allocBytesPerOp > MAX_ALLOC_BYTES_PER_OP) {
+                System.err.println(benchmark + ": allocated " + allocBytesPerOp + " bytes/op");
+                failed = true;
+            } else {
+                System.out.println(benchmark + ": allocated " + allocBytesPerOp + " bytes/op");
+            }
+        }
+
+        if (failed) {
+            System.exit(1);
+        }
+    }
+}
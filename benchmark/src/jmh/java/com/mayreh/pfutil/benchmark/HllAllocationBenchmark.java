@@ -0,0 +1,77 @@
+package com.mayreh.pfutil.benchmark;
+
+import com.mayreh.pfutil.v4.HllV4;
+import com.mayreh.pfutil.v5.HllV5;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.UUID;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * Benchmarks PFADD in steady state, i.e. elements are prepared beforehand and HLLs are already dense.
+ * <p>
+ * Intended to be run with GC profiler to make sure that PFADD path doesn't allocate.
+ * See {@link AllocationCheck}.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Threads(1)
+@Fork(1)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = SECONDS)
+public class HllAllocationBenchmark {
+    private static final int SIZE = 1 << 16;
+
+    @State(Scope.Thread)
+    public static class SteadyState {
+        byte[][] elements;
+        String[] stringElements;
+        HllV4 hllV4;
+        HllV5 hllV5;
+        int index;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            hllV4 = HllV4.newBuilder().build();
+            hllV5 = HllV5.newBuilder().build();
+            elements = new byte[SIZE][];
+            stringElements = new String[SIZE];
+            for (int i = 0; i < elements.length; i++) {
+                stringElements[i] = UUID.randomUUID().toString();
+                elements[i] = stringElements[i].getBytes();
+                hllV4.pfAdd(elements[i]);
+                hllV5.pfAdd(elements[i]);
+            }
+        }
+
+        byte[] next() {
+            return elements[index++ & (SIZE - 1)];
+        }
+
+        String nextString() {
+            return stringElements[index++ & (SIZE - 1)];
+        }
+    }
+
+    @Benchmark
+    public boolean pfAddV4(SteadyState state) {
+        return state.hllV4.pfAdd(state.next());
+    }
+
+    @Benchmark
+    public boolean pfAddV5(SteadyState state) {
+        return state.hllV5.pfAdd(state.next());
+    }
+
+    @Benchmark
+    public boolean pfAddStringV5(SteadyState state) {
+        return state.hllV5.pfAdd(state.nextString());
+    }
+
+    @Benchmark
+    public boolean pfAddLongV5(SteadyState state) {
+        return state.hllV5.pfAdd(state.index++ * 1000000007L);
+    }
+}
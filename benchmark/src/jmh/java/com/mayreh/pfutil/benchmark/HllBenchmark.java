@@ -99,6 +99,25 @@ public class HllBenchmark {
         }
     }
 
+    @State(Scope.Thread)
+    public static class PfMergeManyState {
+        static final int HLLS = 1000;
+
+        HllV5[] hllV5s;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            Random r = ThreadLocalRandom.current();
+            hllV5s = new HllV5[HLLS];
+            for (int i = 0; i < hllV5s.length; i++) {
+                hllV5s[i] = HllV5.newBuilder().withSparseMaxBytes(0).build();
+                for (int j = 0; j < 10000; j++) {
+                    hllV5s[i].pfAdd(r.nextLong());
+                }
+            }
+        }
+    }
+
     @Benchmark
     @OperationsPerInvocation(SIZE)
     public void pfAddV4(PfAddState state) {
@@ -115,6 +134,18 @@ public class HllBenchmark {
         }
     }
 
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int pfAddAllV4(PfAddState state) {
+        return state.hllV4.pfAddAll(state.elements);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public int pfAddAllV5(PfAddState state) {
+        return state.hllV5.pfAddAll(state.elements);
+    }
+
     @Benchmark
     public void pfCountV4(PfCountState state) {
         state.hllV4.pfCount();
@@ -134,4 +165,10 @@ public class HllBenchmark {
     public void pfMergeV5(PfMergeState state) {
         state.hllV5.pfMerge(state.otherHllV5);
     }
+
+    @Benchmark
+    @OperationsPerInvocation(PfMergeManyState.HLLS)
+    public HllV5 pfMergeManyV5(PfMergeManyState state) {
+        return HllV5.newBuilder().withSparseMaxBytes(0).build().pfMerge(state.hllV5s);
+    }
 }
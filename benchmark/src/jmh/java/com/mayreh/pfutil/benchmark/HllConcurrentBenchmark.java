@@ -0,0 +1,54 @@
+package com.mayreh.pfutil.benchmark;
+
+import com.mayreh.pfutil.v5.ConcurrentHllV5;
+import com.mayreh.pfutil.v5.HllV5;
+import com.mayreh.pfutil.v5.StripedHllV5;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * PFADD throughput on a single HLL shared by multiple threads.
+ * Run with {@code -t} to change the number of threads.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(SECONDS)
+@Threads(4)
+@Fork(1)
+@Warmup(iterations = 5, time = 1, timeUnit = SECONDS)
+@Measurement(iterations = 10, time = 1, timeUnit = SECONDS)
+public class HllConcurrentBenchmark {
+    @State(Scope.Benchmark)
+    public static class SharedState {
+        HllV5 hllV5;
+        ConcurrentHllV5 concurrentHllV5;
+        StripedHllV5 stripedHllV5;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            hllV5 = HllV5.newBuilder().build();
+            concurrentHllV5 = ConcurrentHllV5.newBuilder().build();
+            stripedHllV5 = StripedHllV5.newBuilder().build();
+        }
+    }
+
+    @Benchmark
+    public boolean pfAddSynchronizedV5(SharedState state) {
+        long element = ThreadLocalRandom.current().nextLong();
+        synchronized (state.hllV5) {
+            return state.hllV5.pfAdd(element);
+        }
+    }
+
+    @Benchmark
+    public boolean pfAddConcurrentV5(SharedState state) {
+        return state.concurrentHllV5.pfAdd(ThreadLocalRandom.current().nextLong());
+    }
+
+    @Benchmark
+    public boolean pfAddStripedV5(SharedState state) {
+        return state.stripedHllV5.pfAdd(ThreadLocalRandom.current().nextLong());
+    }
+}
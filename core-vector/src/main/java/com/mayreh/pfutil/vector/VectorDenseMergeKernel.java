@@ -0,0 +1,142 @@
+package com.mayreh.pfutil.vector;
+
+import com.mayreh.pfutil.DenseMergeKernel;
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link DenseMergeKernel} implementation using JDK Vector API (jdk.incubator.vector).
+ * <p>
+ * Registers are unpacked to one byte per register, max-ed lane-wise across all sources
+ * block by block, then packed back to the target.
+ * Every 3 bytes of the packed representation hold exactly 4 registers, so unpacking is done by
+ * spreading each 3 bytes into an int lane and moving 6-bit fields to byte boundaries.
+ * </p>
+ * <p>
+ * This kernel is registered as a service, so just putting this module on the classpath enables it.
+ * The JVM must be run with {@code --add-modules jdk.incubator.vector}, otherwise
+ * the pure-Java kernel in core is used.
+ * </p>
+ */
+public final class VectorDenseMergeKernel implements DenseMergeKernel {
+    @Override
+    public boolean isSupported() {
+        try {
+            // narrower vectors than 128 bits are unlikely to be backed by SIMD instructions
+            return Kernel.SPECIES.vectorBitSize() >= 128;
+        } catch (LinkageError e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void merge(byte[] target, byte[][] sources, int count, int off, int len) {
+        Kernel.merge(target, sources, count, off, len);
+    }
+
+    /**
+     * Separated from the outer class so that the absence of jdk.incubator.vector
+     * can be detected by {@link #isSupported()} rather than failing to load the kernel itself.
+     */
+    private static final class Kernel {
+        private static final int HLL_BITS = 6;
+        private static final int HLL_REGISTER_MAX = (1 << HLL_BITS) - 1;
+
+        private static final int BLOCK_REGISTERS = 2048;
+        private static final int BLOCK_BYTES = BLOCK_REGISTERS * HLL_BITS / 8;
+
+        private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+        // registers handled by a vector
+        private static final int LANES = SPECIES.length();
+        // packed bytes handled by a vector
+        private static final int PACKED = LANES * 3 / 4;
+
+        // 3 bytes -> 1 int lane. 4th byte of each lane is garbage and masked out on unpacking
+        private static final VectorShuffle<Byte> SPREAD =
+                VectorShuffle.fromOp(SPECIES, i -> (i / 4) * 3 + Math.min(i % 4, 2));
+        // 1 int lane -> 3 bytes, from the head of the vector
+        private static final VectorShuffle<Byte> COMPACT =
+                VectorShuffle.fromOp(SPECIES, i -> i < PACKED ? (i / 3) * 4 + i % 3 : 0);
+
+        static void merge(byte[] target, byte[][] sources, int count, int off, int len) {
+            byte[] acc = new byte[BLOCK_REGISTERS];
+            // vectors are stored as a whole, so reserve a room for the excess
+            byte[] packed = new byte[BLOCK_BYTES + LANES];
+
+            int end = off + len;
+            for (int blockStart = off; blockStart < end; blockStart += BLOCK_BYTES) {
+                int blockLen = Math.min(BLOCK_BYTES, end - blockStart);
+
+                unpackBlock(target, blockStart, blockLen, acc, false);
+                for (int i = 0; i < count; i++) {
+                    unpackBlock(sources[i], blockStart, blockLen, acc, true);
+                }
+                packBlock(acc, packed, blockLen);
+
+                System.arraycopy(packed, 0, target, blockStart, blockLen);
+            }
+        }
+
+        private static void unpackBlock(byte[] src, int from, int blockLen, byte[] acc, boolean max) {
+            int vectorLen = blockLen - blockLen % PACKED;
+            int r = 0;
+            for (int p = 0; p < vectorLen; p += PACKED, r += LANES) {
+                ByteVector regs = unpack(src, from + p);
+                if (max) {
+                    regs = regs.max(ByteVector.fromArray(SPECIES, acc, r));
+                }
+                regs.intoArray(acc, r);
+            }
+            for (int p = vectorLen; p < blockLen; p += 3) {
+                int q = from + p;
+                int v = (src[q] & 0xff) | (src[q + 1] & 0xff) << 8 | (src[q + 2] & 0xff) << 16;
+                for (int k = 0; k < 4; k++, r++) {
+                    byte reg = (byte)((v >>> (k * HLL_BITS)) & HLL_REGISTER_MAX);
+                    if (!max || reg > acc[r]) {
+                        acc[r] = reg;
+                    }
+                }
+            }
+        }
+
+        private static void packBlock(byte[] acc, byte[] packed, int blockLen) {
+            int vectorLen = blockLen - blockLen % PACKED;
+            int r = 0;
+            for (int p = 0; p < vectorLen; p += PACKED, r += LANES) {
+                pack(ByteVector.fromArray(SPECIES, acc, r), packed, p);
+            }
+            for (int p = vectorLen; p < blockLen; p += 3) {
+                int v = acc[r++] | acc[r++] << 6 | acc[r++] << 12 | acc[r++] << 18;
+                packed[p] = (byte)v;
+                packed[p + 1] = (byte)(v >>> 8);
+                packed[p + 2] = (byte)(v >>> 16);
+            }
+        }
+
+        private static ByteVector unpack(byte[] src, int p) {
+            ByteVector bytes = p + LANES <= src.length
+                               ? ByteVector.fromArray(SPECIES, src, p)
+                               : ByteVector.fromArray(SPECIES, src, p, SPECIES.indexInRange(p, src.length));
+            IntVector v = bytes.rearrange(SPREAD).reinterpretAsInts();
+            return v.and(HLL_REGISTER_MAX)
+                    .or(v.lanewise(VectorOperators.LSHL, 2).and(HLL_REGISTER_MAX << 8))
+                    .or(v.lanewise(VectorOperators.LSHL, 4).and(HLL_REGISTER_MAX << 16))
+                    .or(v.lanewise(VectorOperators.LSHL, 6).and(HLL_REGISTER_MAX << 24))
+                    .reinterpretAsBytes();
+        }
+
+        private static void pack(ByteVector regs, byte[] packed, int p) {
+            IntVector v = regs.reinterpretAsInts();
+            v.and(HLL_REGISTER_MAX)
+             .or(v.lanewise(VectorOperators.LSHR, 2).and(HLL_REGISTER_MAX << 6))
+             .or(v.lanewise(VectorOperators.LSHR, 4).and(HLL_REGISTER_MAX << 12))
+             .or(v.lanewise(VectorOperators.LSHR, 6).and(HLL_REGISTER_MAX << 18))
+             .reinterpretAsBytes()
+             .rearrange(COMPACT)
+             .intoArray(packed, p);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.mayreh.pfutil.vector;
+
+import com.mayreh.pfutil.DenseMergeKernel;
+import com.mayreh.pfutil.v5.HllV5;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.ServiceLoader;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class VectorDenseMergeKernelTest {
+    private static final int HEADER_LEN = 16;
+    private static final int REGISTERS = 16384;
+    private static final int DENSE_SIZE = HEADER_LEN + REGISTERS * 6 / 8;
+
+    @Test
+    public void testIsSupported() {
+        assertThat(new VectorDenseMergeKernel().isSupported()).isTrue();
+    }
+
+    @Test
+    public void testLoadedAsService() {
+        boolean found = false;
+        for (DenseMergeKernel kernel : ServiceLoader.load(DenseMergeKernel.class)) {
+            found |= kernel instanceof VectorDenseMergeKernel;
+        }
+        assertThat(found).isTrue();
+    }
+
+    @Test
+    public void testMerge() {
+        Random random = new Random(42);
+        for (int count : new int[]{0, 1, 2, 7, 64}) {
+            byte[] target = randomDense(random);
+            byte[][] sources = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                sources[i] = randomDense(random);
+            }
+
+            byte[] expected = Arrays.copyOf(target, target.length);
+            for (byte[] source : sources) {
+                for (int i = 0; i < REGISTERS; i++) {
+                    setRegister(expected, i, Math.max(getRegister(expected, i), getRegister(source, i)));
+                }
+            }
+
+            new VectorDenseMergeKernel().merge(target, sources, count, HEADER_LEN, DENSE_SIZE - HEADER_LEN);
+
+            assertThat(target).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testPfMerge() {
+        HllV5 expected = HllV5.newBuilder().withSparseMaxBytes(0).build();
+        HllV5[] hlls = new HllV5[10];
+        for (int i = 0; i < hlls.length; i++) {
+            hlls[i] = HllV5.newBuilder().withSparseMaxBytes(0).build();
+            for (int j = 0; j < 10000; j++) {
+                hlls[i].pfAdd(i * 5000 + j);
+                expected.pfAdd(i * 5000 + j);
+            }
+        }
+
+        HllV5 merged = HllV5.newBuilder().build().pfMerge(hlls);
+
+        assertThat(merged.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(merged.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    private static byte[] randomDense(Random random) {
+        byte[] dense = new byte[DENSE_SIZE];
+        dense[0] = 'H';
+        dense[1] = 'Y';
+        dense[2] = 'L';
+        dense[3] = 'L';
+        for (int i = 0; i < REGISTERS; i++) {
+            // skewed to small values as real HLLs, but covers whole 6-bit range
+            int reg = random.nextInt(4) == 0 ? random.nextInt(64) : random.nextInt(8);
+            setRegister(dense, i, reg);
+        }
+        return dense;
+    }
+
+    private static int getRegister(byte[] dense, int regNum) {
+        int bit = regNum * 6;
+        int b0 = dense[HEADER_LEN + bit / 8] & 0xff;
+        int b1 = HEADER_LEN + bit / 8 + 1 < dense.length ? dense[HEADER_LEN + bit / 8 + 1] & 0xff : 0;
+        return ((b0 | b1 << 8) >>> (bit & 7)) & 63;
+    }
+
+    private static void setRegister(byte[] dense, int regNum, int value) {
+        int bit = regNum * 6;
+        int p = HEADER_LEN + bit / 8;
+        int shift = bit & 7;
+        int word = (dense[p] & 0xff) | (p + 1 < dense.length ? (dense[p + 1] & 0xff) << 8 : 0);
+        word = (word & ~(63 << shift)) | (value << shift);
+        dense[p] = (byte)word;
+        if (p + 1 < dense.length) {
+            dense[p + 1] = (byte)(word >>> 8);
+        }
+    }
+}
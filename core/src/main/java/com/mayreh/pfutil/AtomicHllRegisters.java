@@ -0,0 +1,126 @@
+package com.mayreh.pfutil;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.function.ToLongFunction;
+
+/**
+ * Unpacked HLL registers which can be updated concurrently without locks.
+ * <p>
+ * Each register is stored in an 8-bit lane of an {@link AtomicLongArray}, i.e. 8 registers per word,
+ * and updated by compare-and-set only when the new value is greater than the current one.
+ * Since register values only grow, a failed compare-and-set is retried only while the new value is still greater,
+ * so the contention is limited to the early phase when registers are frequently updated.
+ * </p>
+ * <p>
+ * The cardinality is cached until any register is updated.
+ * The cache is published by compare-and-set with a token unique to each count,
+ * so an estimation which raced with updates is never cached.
+ * </p>
+ */
+public final class AtomicHllRegisters {
+    private static final int LANE_BITS = 8;
+    private static final int LANES_PER_WORD = Long.SIZE / LANE_BITS;
+    private static final long LANE_MASK = (1L << LANE_BITS) - 1;
+
+    private static final long INVALID = -1L;
+    private static final AtomicLongFieldUpdater<AtomicHllRegisters> CACHE =
+            AtomicLongFieldUpdater.newUpdater(AtomicHllRegisters.class, "cache");
+
+    private final AtomicLongArray words = new AtomicLongArray(HllByteBuffer.registerSize() / LANES_PER_WORD);
+
+    /**
+     * Cached count if non-negative, {@link #INVALID} if registers are updated,
+     * or the token of the count in progress otherwise.
+     */
+    private volatile long cache = 0L;
+    private final AtomicLong tokens = new AtomicLong(-INVALID);
+
+    /**
+     * Set the register to the pattern length if it is greater than current value.
+     *
+     * @param patLen the register index and the pattern length packed by {@link HllByteBuffer#patLen(int, int)}
+     * @return whether the register was updated or not
+     */
+    public boolean set(int patLen) {
+        int index = HllByteBuffer.patLenRegNum(patLen);
+        long count = HllByteBuffer.patLenLen(patLen);
+
+        int word = index / LANES_PER_WORD;
+        int shift = (index % LANES_PER_WORD) * LANE_BITS;
+        long current = words.get(word);
+        while (((current >>> shift) & LANE_MASK) < count) {
+            long next = (current & ~(LANE_MASK << shift)) | (count << shift);
+            if (words.compareAndSet(word, current, next)) {
+                // invalidate after the register is updated so that any count which scanned
+                // registers before the update fails to publish its result
+                if (cache != INVALID) {
+                    cache = INVALID;
+                }
+                return true;
+            }
+            current = words.get(word);
+        }
+        return false;
+    }
+
+    /**
+     * Set all registers to the greater of current value and given value.
+     *
+     * @param registers the array which has one register per byte
+     */
+    public void setAll(byte[] registers) {
+        for (int i = 0; i < HllByteBuffer.registerSize(); i++) {
+            if (registers[i] != 0) {
+                set(HllByteBuffer.patLen(i, registers[i]));
+            }
+        }
+    }
+
+    /**
+     * Copy current registers into an array, one register per byte.
+     * <p>
+     * Each register is read atomically, but registers updated concurrently may or may not be reflected.
+     * </p>
+     *
+     * @return the array which has {@link HllByteBuffer#registerSize()} registers
+     */
+    public byte[] snapshot() {
+        byte[] registers = new byte[HllByteBuffer.registerSize()];
+        int idx = 0;
+        for (int word = 0; word < words.length(); word++) {
+            long v = words.get(word);
+            for (int lane = 0; lane < LANES_PER_WORD; lane++) {
+                registers[idx++] = (byte)(v >>> (lane * LANE_BITS));
+            }
+        }
+        return registers;
+    }
+
+    /**
+     * Estimate the cardinality from the snapshot of registers, or return the cached one.
+     * <p>
+     * The result reflects all updates which completed before the call.
+     * </p>
+     *
+     * @param estimator the function which estimates the cardinality from registers
+     * @return approximate distinct count
+     */
+    public long count(ToLongFunction<byte[]> estimator) {
+        long cached = cache;
+        if (cached >= 0) {
+            return cached;
+        }
+
+        long token = -tokens.incrementAndGet();
+        boolean claimed = CACHE.compareAndSet(this, cached, token);
+
+        long count = estimator.applyAsLong(snapshot());
+
+        if (claimed) {
+            CACHE.compareAndSet(this, token, count);
+        }
+        return count;
+    }
+}
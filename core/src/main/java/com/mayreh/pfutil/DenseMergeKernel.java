@@ -0,0 +1,35 @@
+package com.mayreh.pfutil;
+
+/**
+ * Kernel which merges dense HLL registers, i.e. takes register-wise max of them.
+ * <p>
+ * Implementations are discovered through {@link java.util.ServiceLoader}, and the first one
+ * which is supported on the running JVM is used by {@link HllByteBuffer#hllMerge(HllByteBuffer...)}.
+ * When there's no such implementation, a pure-Java kernel which handles 8 registers per
+ * 48-bit word is used.
+ * </p>
+ */
+public interface DenseMergeKernel {
+    /**
+     * Check if this kernel can run on current JVM.
+     *
+     * @return true if this kernel is usable
+     */
+    boolean isSupported();
+
+    /**
+     * Merge registers of sources into target.
+     * <p>
+     * Registers are 6-bit values packed LSB-first as in Redis's dense representation.
+     * Only the bytes in [off, off + len) are read or written, and the result must be
+     * byte-identical to merging registers one by one.
+     * </p>
+     *
+     * @param target dense representation which registers are merged into
+     * @param sources dense representations to be merged
+     * @param count the number of sources to be merged from the head of sources
+     * @param off offset of the register payload
+     * @param len length of the register payload. must be multiple of 24 (i.e. 32 registers)
+     */
+    void merge(byte[] target, byte[][] sources, int count, int off, int len);
+}
@@ -0,0 +1,35 @@
+package com.mayreh.pfutil;
+
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+/**
+ * Holder of the {@link DenseMergeKernel} used on this JVM.
+ */
+final class DenseMergeKernels {
+    private static final DenseMergeKernel KERNEL = load();
+
+    private DenseMergeKernels() {
+    }
+
+    static DenseMergeKernel get() {
+        return KERNEL;
+    }
+
+    private static DenseMergeKernel load() {
+        try {
+            Iterator<DenseMergeKernel> it =
+                    ServiceLoader.load(DenseMergeKernel.class, DenseMergeKernel.class.getClassLoader()).iterator();
+            while (it.hasNext()) {
+                DenseMergeKernel kernel = it.next();
+                if (kernel.isSupported()) {
+                    return kernel;
+                }
+            }
+        } catch (ServiceConfigurationError | LinkageError e) {
+            // optional kernel is present but unusable (e.g. jdk.incubator.vector is not added)
+        }
+        return new SwarDenseMergeKernel();
+    }
+}
@@ -0,0 +1,272 @@
+package com.mayreh.pfutil;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Compact format to archive HLL representations, which can be converted back to the exact Redis representation.
+ * <p>
+ * Dense registers are encoded by frame-of-reference bit-packing with exceptions.
+ * Register values of a dense HLL concentrate around log2(cardinality / 16384), so most of them fit in
+ * a narrow range [base, base + 2^width), which are packed in width bits per register.
+ * Registers out of the range are stored as exceptions which have the register number and the value.
+ * The base and the width are chosen to minimize the size, which is never larger than the dense representation
+ * (typically 40-50% smaller for HLLs which have millions of elements).
+ * Sparse representations are already compact, so they are archived as is.
+ * </p>
+ * <pre>
+ * {@code
+ * byte[] archive = HllArchive.encode(hll.dumpRepr());
+ * byte[] repr = HllArchive.decode(archive); // same as hll.dumpRepr()
+ * }
+ * </pre>
+ * <p>
+ * Layout of the archive:
+ * </p>
+ * <pre>
+ * "HYLA" | kind (1 byte) | payload
+ *
+ * kind 0 (as is):  Redis representation
+ * kind 1 (packed): Redis header (16 bytes) | base (1 byte) | width (1 byte) | exception count (2 bytes)
+ *                  | codes (width bytes per 8 registers) | exceptions (3 bytes each)
+ * </pre>
+ * <p>
+ * Multi-byte values are little-endian. 8 codes of each 8 registers are packed LSB-first into width bytes,
+ * and the code of an exception is 0. Each exception is (register number &lt;&lt; 6 | value) in 3 bytes.
+ * </p>
+ */
+public final class HllArchive {
+    private static final byte[] MAGIC = new byte[]{'H', 'Y', 'L', 'A'};
+    private static final byte KIND_AS_IS = 0;
+    private static final byte KIND_PACKED = 1;
+
+    private static final int HLL_BITS = 6;
+    private static final int HLL_REGISTER_MAX = (1 << HLL_BITS) - 1;
+    private static final int CHUNKS = HllByteBuffer.registerSize() / 8;
+    private static final int EXCEPTION_BYTES = 3;
+
+    /**
+     * Each 6-bit lane has 1
+     */
+    private static final long LANE_ONES = 0x041041041041L;
+
+    private static final int KIND_OFFSET = MAGIC.length;
+    private static final int HEADER_OFFSET = KIND_OFFSET + 1;
+    private static final int BASE_OFFSET = HEADER_OFFSET + HllByteBuffer.headerLen();
+    private static final int WIDTH_OFFSET = BASE_OFFSET + 1;
+    private static final int EXCEPTION_COUNT_OFFSET = WIDTH_OFFSET + 1;
+    private static final int CODES_OFFSET = EXCEPTION_COUNT_OFFSET + 2;
+
+    private HllArchive() {
+    }
+
+    /**
+     * Encode a Redis HLL representation into the archive format.
+     *
+     * @param representation Redis HLL representation
+     * @return archived bytes
+     * @throws IllegalArgumentException if the representation is invalid
+     */
+    public static byte[] encode(byte[] representation) {
+        ByteBuffer repr = ByteBuffer.wrap(representation).order(ByteOrder.LITTLE_ENDIAN);
+        if (!HllByteBuffer.isValidRepr(repr)) {
+            throw new IllegalArgumentException("Invalid HLL representation");
+        }
+        if (representation[HllByteBuffer.magic().length] != HllEncoding.DENSE.value) {
+            byte[] archive = new byte[HEADER_OFFSET + representation.length];
+            System.arraycopy(MAGIC, 0, archive, 0, MAGIC.length);
+            archive[KIND_OFFSET] = KIND_AS_IS;
+            System.arraycopy(representation, 0, archive, HEADER_OFFSET, representation.length);
+            return archive;
+        }
+
+        int[] histo = new int[HLL_REGISTER_MAX + 1];
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            long v = SwarDenseMergeKernel.load48(repr, chunkOffset(chunk));
+            for (int i = 0; i < 8; i++, v >>>= HLL_BITS) {
+                histo[(int)v & HLL_REGISTER_MAX]++;
+            }
+        }
+
+        // choose the frame which minimizes the size
+        int[] cumulative = new int[histo.length + 1];
+        for (int i = 0; i < histo.length; i++) {
+            cumulative[i + 1] = cumulative[i] + histo[i];
+        }
+        int base = 0;
+        int width = HLL_BITS;
+        int size = CHUNKS * HLL_BITS;
+        for (int w = 0; w < HLL_BITS; w++) {
+            for (int b = 0; b + (1 << w) <= histo.length; b++) {
+                int exceptions = HllByteBuffer.registerSize() - (cumulative[b + (1 << w)] - cumulative[b]);
+                int s = CHUNKS * w + exceptions * EXCEPTION_BYTES;
+                if (s < size) {
+                    base = b;
+                    width = w;
+                    size = s;
+                }
+            }
+        }
+        int exceptionCount = (size - CHUNKS * width) / EXCEPTION_BYTES;
+
+        byte[] archive = new byte[CODES_OFFSET + size];
+        System.arraycopy(MAGIC, 0, archive, 0, MAGIC.length);
+        archive[KIND_OFFSET] = KIND_PACKED;
+        System.arraycopy(representation, 0, archive, HEADER_OFFSET, HllByteBuffer.headerLen());
+        archive[BASE_OFFSET] = (byte)base;
+        archive[WIDTH_OFFSET] = (byte)width;
+        archive[EXCEPTION_COUNT_OFFSET] = (byte)exceptionCount;
+        archive[EXCEPTION_COUNT_OFFSET + 1] = (byte)(exceptionCount >>> 8);
+
+        int mask = (1 << width) - 1;
+        int p = CODES_OFFSET;
+        int e = CODES_OFFSET + CHUNKS * width;
+        for (int chunk = 0; chunk < CHUNKS; chunk++) {
+            long v = SwarDenseMergeKernel.load48(repr, chunkOffset(chunk));
+            long codes = 0;
+            for (int i = 0; i < 8; i++, v >>>= HLL_BITS) {
+                int reg = (int)v & HLL_REGISTER_MAX;
+                int code = reg - base;
+                if (code < 0 || code > mask) {
+                    int exception = ((chunk * 8 + i) << HLL_BITS) | reg;
+                    archive[e++] = (byte)exception;
+                    archive[e++] = (byte)(exception >>> 8);
+                    archive[e++] = (byte)(exception >>> 16);
+                    code = 0;
+                }
+                codes |= (long)code << (i * width);
+            }
+            for (int i = 0; i < width; i++) {
+                archive[p++] = (byte)(codes >>> (i * 8));
+            }
+        }
+        return archive;
+    }
+
+    /**
+     * Decode the archive into the Redis HLL representation.
+     *
+     * @param archive archived bytes
+     * @return Redis HLL representation which is same as the one encoded
+     * @throws IllegalArgumentException if the archive is invalid
+     */
+    public static byte[] decode(byte[] archive) {
+        byte[] repr = new byte[decodedLength(archive)];
+        decodeInto(archive, ByteBuffer.wrap(repr), 0);
+        return repr;
+    }
+
+    /**
+     * Length of the Redis HLL representation which is decoded from the archive.
+     *
+     * @param archive archived bytes
+     * @return the length of the representation
+     * @throws IllegalArgumentException if the archive is invalid
+     */
+    public static int decodedLength(byte[] archive) {
+        if (archive.length < HEADER_OFFSET || !Arrays.equals(Arrays.copyOf(archive, MAGIC.length), MAGIC)) {
+            throw new IllegalArgumentException("Invalid HLL archive");
+        }
+        switch (archive[KIND_OFFSET]) {
+            case KIND_AS_IS:
+                return archive.length - HEADER_OFFSET;
+            case KIND_PACKED:
+                return HllByteBuffer.denseSize();
+            default:
+                throw new IllegalArgumentException("Invalid HLL archive");
+        }
+    }
+
+    /**
+     * Decode the archive into given buffer at given absolute index, e.g. a slot of {@link MappedHllStore}.
+     * The position and limit of the buffer are not changed.
+     * <p>
+     * Packed registers are written directly in the dense layout 8 registers at a time,
+     * so no intermediate register array is allocated.
+     * </p>
+     *
+     * @param archive archived bytes
+     * @param dst the buffer to decode into
+     * @param off the index in the buffer
+     * @return the number of bytes written, i.e. {@link #decodedLength(byte[])}
+     * @throws IllegalArgumentException if the archive is invalid
+     * @throws IndexOutOfBoundsException if the buffer doesn't have enough room
+     */
+    public static int decodeInto(byte[] archive, ByteBuffer dst, int off) {
+        int length = decodedLength(archive);
+        if (off < 0 || off > dst.limit() - length) {
+            throw new IndexOutOfBoundsException(
+                    "not enough room. offset: " + off + ", length: " + length + ", limit: " + dst.limit());
+        }
+        ByteBuffer out = dst.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ((Buffer)out).limit(off + length);
+        ((Buffer)out).position(off);
+        out = out.slice().order(ByteOrder.LITTLE_ENDIAN);
+
+        if (archive[KIND_OFFSET] == KIND_AS_IS) {
+            if (!HllByteBuffer.isValidRepr(ByteBuffer.wrap(archive, HEADER_OFFSET, length).slice())) {
+                throw new IllegalArgumentException("Invalid HLL archive");
+            }
+            out.put(archive, HEADER_OFFSET, length);
+            return length;
+        }
+
+        if (archive.length < CODES_OFFSET) {
+            throw new IllegalArgumentException("Invalid HLL archive");
+        }
+        int base = archive[BASE_OFFSET] & 0xff;
+        int width = archive[WIDTH_OFFSET] & 0xff;
+        int exceptionCount = (archive[EXCEPTION_COUNT_OFFSET] & 0xff) | (archive[EXCEPTION_COUNT_OFFSET + 1] & 0xff) << 8;
+        if (width > HLL_BITS
+            || base + (1 << width) > HLL_REGISTER_MAX + 1
+            || archive.length != CODES_OFFSET + CHUNKS * width + exceptionCount * EXCEPTION_BYTES
+            || archive[HEADER_OFFSET + HllByteBuffer.magic().length] != HllEncoding.DENSE.value) {
+            throw new IllegalArgumentException("Invalid HLL archive");
+        }
+
+        out.put(archive, HEADER_OFFSET, HllByteBuffer.headerLen());
+        if (width == HLL_BITS && base == 0) {
+            // codes are same as the dense layout
+            out.put(archive, CODES_OFFSET, CHUNKS * HLL_BITS);
+        } else {
+            // base is added to all lanes at once, which never carries since base + code fits in a register
+            long bases = base * LANE_ONES;
+            long mask = (1L << width) - 1;
+            int p = CODES_OFFSET;
+            for (int chunk = 0; chunk < CHUNKS; chunk++) {
+                long codes = 0;
+                for (int i = 0; i < width; i++) {
+                    codes |= ((long)archive[p++] & 0xffL) << (i * 8);
+                }
+                long v = 0;
+                for (int i = 0; i < 8; i++) {
+                    v |= ((codes >>> (i * width)) & mask) << (i * HLL_BITS);
+                }
+                SwarDenseMergeKernel.store48(out, chunkOffset(chunk), v + bases);
+            }
+        }
+
+        int e = CODES_OFFSET + CHUNKS * width;
+        for (int i = 0; i < exceptionCount; i++) {
+            int exception = (archive[e] & 0xff) | (archive[e + 1] & 0xff) << 8 | (archive[e + 2] & 0xff) << 16;
+            e += EXCEPTION_BYTES;
+            int regNum = exception >>> HLL_BITS;
+            if (regNum >= HllByteBuffer.registerSize()) {
+                throw new IllegalArgumentException("Invalid HLL archive");
+            }
+            // the code of an exception is 0, so the lane has the base
+            int offset = chunkOffset(regNum / 8);
+            int shift = (regNum % 8) * HLL_BITS;
+            long v = SwarDenseMergeKernel.load48(out, offset);
+            v = (v & ~((long)HLL_REGISTER_MAX << shift)) | (long)(exception & HLL_REGISTER_MAX) << shift;
+            SwarDenseMergeKernel.store48(out, offset, v);
+        }
+        return length;
+    }
+
+    private static int chunkOffset(int chunk) {
+        return HllByteBuffer.headerLen() + chunk * SwarDenseMergeKernel.CHUNK_BYTES;
+    }
+}
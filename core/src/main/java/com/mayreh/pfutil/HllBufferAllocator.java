@@ -0,0 +1,68 @@
+package com.mayreh.pfutil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocator of the buffers which back HLL representations.
+ * <p>
+ * By default, HLLs are backed by heap buffers.
+ * Direct buffers can be used to keep a large number of HLLs out of the Java heap.
+ * Any other memory which can be viewed as a {@link ByteBuffer} can be used as well.
+ * For example, on Java 21+ HLLs can be backed by memory segments of an arena:
+ * </p>
+ * <pre>
+ * {@code
+ * Arena arena = Arena.ofShared();
+ * HllV5 hll = HllV5.newBuilder()
+ *         .withAllocator(capacity -> arena.allocate(capacity).asByteBuffer())
+ *         .build();
+ * ...
+ * hll.close();
+ * arena.close();
+ * }
+ * </pre>
+ */
+@FunctionalInterface
+public interface HllBufferAllocator {
+    /**
+     * Allocate a zero-filled buffer.
+     * <p>
+     * The representation is written and read by absolute index from 0,
+     * so the position, limit and byte order of the returned buffer may be changed.
+     * </p>
+     *
+     * @param capacity required capacity in bytes
+     * @return zero-filled buffer which has at least given capacity
+     */
+    ByteBuffer allocate(int capacity);
+
+    /**
+     * Release the buffer which is no longer used by the HLL,
+     * i.e. the HLL grew (or was promoted to dense) into a new buffer, or the HLL was closed.
+     * <p>
+     * Do nothing by default, which is the right thing to do for buffers reclaimed by GC.
+     * </p>
+     *
+     * @param buffer the buffer allocated by this allocator
+     */
+    default void release(ByteBuffer buffer) {
+    }
+
+    /**
+     * Allocator of heap buffers, which is used by default.
+     *
+     * @return heap allocator
+     */
+    static HllBufferAllocator heap() {
+        return ByteBuffer::allocate;
+    }
+
+    /**
+     * Allocator of direct buffers.
+     *
+     * @return direct allocator
+     */
+    static HllBufferAllocator direct() {
+        return ByteBuffer::allocateDirect;
+    }
+}
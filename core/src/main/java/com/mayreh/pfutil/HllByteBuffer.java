@@ -1,9 +1,20 @@
 package com.mayreh.pfutil;
 
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.util.Arrays;
 
 /**
  * HLL algorithm-independent data structure which is compatible with Redis
+ * <p>
+ * The representation is stored in a {@link ByteBuffer} allocated by {@link HllBufferAllocator},
+ * which is accessed by absolute index in little-endian order.
+ * The limit of the buffer is the length of the representation, and the rest of the capacity
+ * is used as a room for sparse representation to grow.
+ * </p>
  */
 public abstract class HllByteBuffer {
     private static final int HEADER_LEN = 16;
@@ -16,19 +27,96 @@ public abstract class HllByteBuffer {
     private static final int HLL_DENSE_SIZE = HEADER_LEN + ((HLL_REGISTERS * HLL_BITS + 7) / 8);
     private static final int HLL_SPARSE_XZERO_MAX_LEN = 16384;
     private static final int HLL_SPARSE_XZERO_BIT = 0x40;
+    private static final int HLL_SPARSE_VAL_BIT = 0x80;
+    private static final int HLL_SPARSE_ZERO_MAX_LEN = 64;
+    private static final int HLL_SPARSE_VAL_MAX_VALUE = 32;
+    private static final int HLL_SPARSE_VAL_MAX_LEN = 4;
+
+    /**
+     * Same as Redis's default hll-sparse-max-bytes
+     */
+    public static final int DEFAULT_SPARSE_MAX_BYTES = 3000;
+
+    private static final int DELTA_ENTRY_BYTES = 3;
 
     private static final byte[] magic = new byte[]{'H', 'Y', 'L', 'L'};
 
-    protected byte[] buffer;
+    protected ByteBuffer buffer;
+
+    private final HllBufferAllocator allocator;
+
+    /**
+     * True if the buffer is given by the user rather than allocated by the allocator.
+     * Borrowed buffer is never released by this class.
+     */
+    private boolean borrowed = false;
+
+    /**
+     * True if the borrowed buffer must not be modified, so it has to be copied before the first write.
+     */
+    private boolean copyOnWrite = false;
+
+    /**
+     * True if the representation is known to be well-formed, i.e. built by this class or validated by
+     * {@link #isValidHll()}, so sparse runs don't need to be validated again before merge.
+     */
+    private boolean validated = false;
+
+    private int sparseMaxBytes = DEFAULT_SPARSE_MAX_BYTES;
+
+    /**
+     * True if merging sparse HLLs into sparse keeps the result sparse when possible.
+     */
+    private boolean sparseMerge = false;
+
+    /**
+     * Histogram of dense register values which is kept up to date on every register change,
+     * or null if not tracked. (See {@link #trackRegisterHistogram()})
+     */
+    private int[] regHisto = null;
+
+    /**
+     * False if registers may have been changed without updating the histogram, so it has to be rebuilt.
+     */
+    private boolean regHistoValid = false;
+
+    /**
+     * True if dense registers are read from {@link #hotRegs}. (See {@link #useHotRegisters()})
+     */
+    private boolean hotRegisters = false;
+
+    /**
+     * Dense registers unpacked to one byte per register, which is written through on every register change,
+     * or null if not built yet.
+     */
+    private byte[] hotRegs = null;
+
+    /**
+     * Bitmap of registers changed since the last {@link #exportDelta()}, or null if not tracked.
+     * (See {@link #trackDirtyRegisters()})
+     */
+    private long[] dirtyRegs = null;
 
     /**
-     * Allocate new sparse byte buffer.
+     * Allocate new sparse byte buffer on heap.
      */
     public HllByteBuffer() {
+        this(HllBufferAllocator.heap());
+    }
+
+    /**
+     * Allocate new sparse byte buffer by given allocator.
+     *
+     * @param allocator allocator of the underlying buffer
+     */
+    public HllByteBuffer(HllBufferAllocator allocator) {
+        this.allocator = allocator;
+        this.validated = true;
+
         int sparseLen =
                 HEADER_LEN + (((HLL_REGISTERS + (HLL_SPARSE_XZERO_MAX_LEN - 1)) / HLL_SPARSE_XZERO_MAX_LEN) * 2);
 
-        this.buffer = new byte[sparseLen];
+        this.buffer = allocate(sparseLen, sparseLen);
 
         int p = HEADER_LEN;
         int aux = HLL_REGISTERS;
@@ -42,17 +130,155 @@ public abstract class HllByteBuffer {
             aux -= xzero;
         }
 
-        System.arraycopy(magic, 0, buffer, 0, magic.length);
-        buffer[magic.length] = HllEncoding.SPARSE.value;
+        for (int i = 0; i < magic.length; i++) {
+            buffer.put(i, magic[i]);
+        }
+        buffer.put(magic.length, HllEncoding.SPARSE.value);
     }
 
     /**
-     * Instantiate byte buffer from existing representation.
+     * Instantiate byte buffer on heap from existing representation.
      *
      * @param repr existing HLL representation
      */
     public HllByteBuffer(byte[] repr) {
-        this.buffer = Arrays.copyOf(repr, repr.length);
+        this(repr, HllBufferAllocator.heap());
+    }
+
+    /**
+     * Instantiate byte buffer by given allocator from existing representation.
+     *
+     * @param repr existing HLL representation
+     * @param allocator allocator of the underlying buffer
+     */
+    public HllByteBuffer(byte[] repr, HllBufferAllocator allocator) {
+        this.allocator = allocator;
+        this.buffer = allocate(repr.length, repr.length);
+        copy(ByteBuffer.wrap(repr), buffer, repr.length);
+    }
+
+    /**
+     * Instantiate byte buffer which uses the remaining bytes of given buffer as the representation in place.
+     * <p>
+     * Updates are written through to the given buffer, and the buffer is never released by this class.
+     * If the representation has to grow beyond the remaining bytes (only for sparse representation),
+     * it is moved to a buffer allocated by the allocator.
+     * The position, limit and byte order of given buffer are not changed.
+     * </p>
+     *
+     * @param buffer the buffer which contains HLL representation
+     * @param allocator allocator of the buffer used when the representation grows
+     */
+    public HllByteBuffer(ByteBuffer buffer, HllBufferAllocator allocator) {
+        this(buffer, allocator, false);
+    }
+
+    /**
+     * Instantiate byte buffer which uses the remaining bytes of given buffer as the representation.
+     * <p>
+     * If copyOnWrite is true, given buffer is never modified. It is copied to a buffer allocated by
+     * the allocator lazily on the first modification, and cardinality cache isn't written until then.
+     * Otherwise, updates are written through to the given buffer.
+     * See {@link #HllByteBuffer(ByteBuffer, HllBufferAllocator)} for the details.
+     * </p>
+     *
+     * @param buffer the buffer which contains HLL representation
+     * @param allocator allocator of the buffer used when the representation is copied or grows
+     * @param copyOnWrite whether to copy the buffer on the first modification
+     */
+    public HllByteBuffer(ByteBuffer buffer, HllBufferAllocator allocator, boolean copyOnWrite) {
+        this.allocator = allocator;
+        this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+        this.borrowed = true;
+        this.copyOnWrite = copyOnWrite;
+    }
+
+    /**
+     * Allocate a buffer which limit is set to given length.
+     */
+    private ByteBuffer allocate(int length, int capacity) {
+        ByteBuffer newBuffer = allocator.allocate(capacity);
+        if (newBuffer.capacity() < capacity) {
+            throw new IllegalStateException(
+                    "allocator returned insufficient buffer. required: " + capacity + ", actual: " + newBuffer.capacity());
+        }
+        setBounds(newBuffer, 0, length);
+        return newBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Set position and limit through {@link Buffer} so that the class compiled on JDK 9+
+     * runs on JDK 8, which doesn't have covariant overrides of them.
+     */
+    private static void setBounds(Buffer buffer, int position, int limit) {
+        buffer.limit(limit);
+        buffer.position(position);
+    }
+
+    /**
+     * Copy the first len bytes of src to dst.
+     */
+    private static void copy(ByteBuffer src, ByteBuffer dst, int len) {
+        ByteBuffer from = src.duplicate();
+        setBounds(from, 0, len);
+        ByteBuffer to = dst.duplicate();
+        setBounds(to, 0, to.capacity());
+        to.put(from);
+    }
+
+    /**
+     * Replace the underlying buffer then release the old one.
+     */
+    private void replaceBuffer(ByteBuffer newBuffer) {
+        ByteBuffer oldBuffer = buffer;
+        buffer = newBuffer;
+        if (!borrowed) {
+            allocator.release(oldBuffer);
+        }
+        borrowed = false;
+        copyOnWrite = false;
+        regHistoValid = false;
+        hotRegs = null;
+    }
+
+    /**
+     * Copy the borrowed buffer if it must not be modified.
+     * Must be called before modifying the buffer in place.
+     */
+    private void ensureWritable() {
+        if (copyOnWrite) {
+            int length = buffer.limit();
+            // leave a room for sparse representation to grow as same as in-place updates
+            int capacity = buffer.get(magic.length) == HllEncoding.SPARSE.value
+                           ? Math.max(length, Math.min(length * 2, sparseMaxBytes))
+                           : length;
+            ByteBuffer newBuffer = allocate(length, capacity);
+            copy(buffer, newBuffer, length);
+            replaceBuffer(newBuffer);
+        }
+    }
+
+    /**
+     * Copy bytes within the underlying buffer. The ranges may overlap.
+     */
+    private void move(int from, int to, int len) {
+        if (buffer.hasArray()) {
+            int base = buffer.arrayOffset();
+            System.arraycopy(buffer.array(), base + from, buffer.array(), base + to, len);
+        } else if (from > to) {
+            for (int i = 0; i < len; i++) {
+                buffer.put(to + i, buffer.get(from + i));
+            }
+        } else {
+            for (int i = len - 1; i >= 0; i--) {
+                buffer.put(to + i, buffer.get(from + i));
+            }
+        }
+    }
+
+    private static void copyHeader(ByteBuffer src, ByteBuffer dst) {
+        dst.putLong(0, src.getLong(0));
+        dst.putLong(8, src.getLong(8));
     }
 
     protected static int registerSize() {
@@ -63,6 +289,10 @@ public abstract class HllByteBuffer {
         return HEADER_LEN;
     }
 
+    protected static int denseSize() {
+        return HLL_DENSE_SIZE;
+    }
+
     protected static int registerBits() {
         return HLL_P;
     }
@@ -75,26 +305,66 @@ public abstract class HllByteBuffer {
         return magic;
     }
 
+    /**
+     * Pack the register index and the length of the pattern 000..1 into an int
+     * so that the PFADD path doesn't need to allocate a result object.
+     *
+     * @param regNum register index
+     * @param len the length of the pattern 000..1
+     * @return packed patLen
+     */
+    protected static int patLen(int regNum, int len) {
+        return (len << HLL_P) | regNum;
+    }
+
+    protected static int patLenRegNum(int patLen) {
+        return patLen & (HLL_REGISTERS - 1);
+    }
+
+    protected static int patLenLen(int patLen) {
+        return patLen >>> HLL_P;
+    }
+
     /**
      * Validate if the underlying bytes is a valid HLL representation.
+     * <p>
+     * Sparse representation is validated entirely in a single pass over the opcodes, i.e. the runs must sum up to
+     * exactly {@link #registerSize()} without trailing bytes or truncated opcodes, so corrupted data is rejected
+     * here rather than failing later in the middle of merge or promotion.
+     * </p>
      *
      * @return validity
      */
     public boolean isValidHll() {
-        if (buffer.length < HEADER_LEN) {
+        validated = isValidRepr(buffer);
+        return validated;
+    }
+
+    static boolean isValidRepr(ByteBuffer buffer) {
+        if (!isValidHeader(buffer)) {
+            return false;
+        }
+        return buffer.get(magic.length) == HllEncoding.DENSE.value || sparseIsWellFormed(buffer);
+    }
+
+    /**
+     * Check the magic, the encoding and the length of dense representation.
+     */
+    private static boolean isValidHeader(ByteBuffer buffer) {
+        if (buffer.limit() < HEADER_LEN) {
             return false;
         }
 
         int p = 0;
         while (p < magic.length) {
-            if (buffer[p] != magic[p]) {
+            if (buffer.get(p) != magic[p]) {
                 return false;
             }
             p++;
         }
 
         HllEncoding encoding;
-        switch (buffer[p]) {
+        switch (buffer.get(p)) {
             case 0:
                 encoding = HllEncoding.DENSE;
                 break;
@@ -106,39 +376,323 @@ public abstract class HllByteBuffer {
         }
 
         if (encoding == HllEncoding.DENSE &&
-                buffer.length != HLL_DENSE_SIZE) {
+                buffer.limit() != HLL_DENSE_SIZE) {
             return false;
         }
 
         return true;
     }
 
+    /**
+     * Set the max length of sparse representation in bytes (including header).
+     * <p>
+     * Sparse representation will be promoted to dense when it grows beyond this value.
+     * This corresponds to hll-sparse-max-bytes config of Redis.
+     * </p>
+     *
+     * @param sparseMaxBytes max bytes of sparse representation
+     */
+    public void setSparseMaxBytes(int sparseMaxBytes) {
+        if (sparseMaxBytes < 0) {
+            throw new IllegalArgumentException("sparseMaxBytes must be non-negative");
+        }
+        this.sparseMaxBytes = sparseMaxBytes;
+    }
+
+    /**
+     * Max length of sparse representation in bytes (including header).
+     *
+     * @return max bytes of sparse representation
+     */
+    public int getSparseMaxBytes() {
+        return sparseMaxBytes;
+    }
+
+    /**
+     * Keep the result of {@link #hllMerge(HllByteBuffer...)} sparse if this HLL and all sources are sparse,
+     * and the union fits in sparse max bytes.
+     *
+     * @param sparseMerge whether to keep the result sparse or not
+     */
+    public void setSparseMerge(boolean sparseMerge) {
+        this.sparseMerge = sparseMerge;
+    }
+
+    /**
+     * Keep the histogram of dense register values up to date on every register change,
+     * so that {@link #denseRegHisto()} doesn't need to scan registers.
+     * <p>
+     * Registers changed in bulk (e.g. by merge or promotion) are not tracked one by one.
+     * The histogram is rebuilt by the scan on the next {@link #denseRegHisto()} instead.
+     * </p>
+     */
+    public void trackRegisterHistogram() {
+        if (regHisto == null) {
+            regHisto = new int[64];
+            regHistoValid = false;
+        }
+    }
+
+    /**
+     * Whether the histogram of dense register values is tracked or not.
+     *
+     * @return true if {@link #trackRegisterHistogram()} is enabled
+     */
+    protected boolean isTrackingRegisterHistogram() {
+        return regHisto != null;
+    }
+
+    /**
+     * Read dense registers from an unpacked copy which has one byte per register,
+     * instead of shifting and masking the packed representation.
+     * <p>
+     * The copy is built on the first register update of dense representation, and register changes are
+     * written through to both of the copy and the representation. So the representation is always up to date,
+     * and dumps or merges don't need conversion. This costs 16KB per HLL while the copy is held.
+     * </p>
+     */
+    public void useHotRegisters() {
+        hotRegisters = true;
+    }
+
+    /**
+     * Release the unpacked copy of registers to save the memory, e.g. when the HLL becomes idle
+     * or memory pressure is observed.
+     * <p>
+     * The copy is built again on the next register update by PFADD if {@link #useHotRegisters()} is enabled.
+     * Merges never build the copy, but write through to it if it's held.
+     * </p>
+     */
+    public void releaseHotRegisters() {
+        hotRegs = null;
+    }
+
+    /**
+     * Whether the unpacked copy of registers is held or not.
+     *
+     * @return true if the copy is held
+     */
+    public boolean hasHotRegisters() {
+        return hotRegs != null;
+    }
+
+    /**
+     * Track registers changed by updates or merges, so that only the changes can be exported by {@link #exportDelta()}.
+     * <p>
+     * Changes are tracked in a bitmap of one bit per register (2KB per HLL), which is set on every register change.
+     * Merges mark the registers they change while merging, so no registers are unpacked for tracking.
+     * </p>
+     */
+    public void trackDirtyRegisters() {
+        if (dirtyRegs == null) {
+            dirtyRegs = new long[HLL_REGISTERS / Long.SIZE];
+        }
+    }
+
+    /**
+     * Number of registers changed since the last {@link #exportDelta()}.
+     *
+     * @return the number of changed registers
+     * @throws IllegalStateException if {@link #trackDirtyRegisters()} is not enabled
+     */
+    public int dirtyRegisterCount() {
+        if (dirtyRegs == null) {
+            throw new IllegalStateException("dirty registers are not tracked");
+        }
+        int count = 0;
+        for (long word : dirtyRegs) {
+            count += Long.bitCount(word);
+        }
+        return count;
+    }
+
+    /**
+     * Export registers changed since the last export, then start tracking changes from now.
+     * <p>
+     * The delta consists of 3 bytes little-endian (register number &lt;&lt; 6 | value) per changed register
+     * in ascending register order, so the size scales with the number of changes rather than the representation.
+     * It can be applied to another HLL by {@link #applyDelta(byte[])}.
+     * </p>
+     *
+     * @return the delta, which is empty if no register is changed
+     * @throws IllegalStateException if {@link #trackDirtyRegisters()} is not enabled
+     */
+    public byte[] exportDelta() {
+        byte[] delta = new byte[dirtyRegisterCount() * DELTA_ENTRY_BYTES];
+        if (buffer.get(magic.length) == HllEncoding.SPARSE.value) {
+            sparseExportDelta(delta);
+        } else {
+            int p = 0;
+            for (int i = 0; i < dirtyRegs.length; i++) {
+                long word = dirtyRegs[i];
+                while (word != 0) {
+                    int regNum = i * Long.SIZE + Long.numberOfTrailingZeros(word);
+                    word &= word - 1;
+                    p = putDeltaEntry(delta, p, regNum, (int)denseGetRegister(regNum));
+                }
+            }
+        }
+        Arrays.fill(dirtyRegs, 0L);
+        return delta;
+    }
+
+    /**
+     * Walk the opcodes and put dirty registers in VAL runs into the delta.
+     * Dirty registers are never zero since registers only grow, so ZERO and XZERO runs are skipped.
+     */
+    private void sparseExportDelta(byte[] delta) {
+        int p = HEADER_LEN;
+        int idx = 0;
+        int q = 0;
+        while (p < buffer.limit()) {
+            byte b = buffer.get(p);
+            if (sparseIsZero(b)) {
+                idx += sparseZeroLen(b);
+                p++;
+            } else if (sparseIsXZero(b)) {
+                idx += sparseXZeroLen(b, buffer.get(p + 1));
+                p += 2;
+            } else {
+                int regVal = sparseValValue(b);
+                for (int end = idx + sparseValLen(b); idx < end; idx++) {
+                    if ((dirtyRegs[idx >>> 6] & (1L << idx)) != 0) {
+                        q = putDeltaEntry(delta, q, idx, regVal);
+                    }
+                }
+                p++;
+            }
+        }
+    }
+
+    private static int putDeltaEntry(byte[] delta, int p, int regNum, int regVal) {
+        int entry = (regNum << HLL_BITS) | regVal;
+        delta[p] = (byte)entry;
+        delta[p + 1] = (byte)(entry >>> 8);
+        delta[p + 2] = (byte)(entry >>> 16);
+        return p + DELTA_ENTRY_BYTES;
+    }
+
+    /**
+     * Apply the delta exported by {@link #exportDelta()} of another HLL.
+     * <p>
+     * Each register is set to the greater of the current value and the value in the delta as same as merge,
+     * so deltas can be applied in any order or more than once.
+     * The delta is validated before applying, so nothing is changed if it is invalid.
+     * </p>
+     *
+     * @param delta the delta exported by {@link #exportDelta()}
+     * @return the number of registers changed
+     * @throws IllegalArgumentException if the delta is invalid
+     */
+    public int applyDelta(byte[] delta) {
+        if (delta.length % DELTA_ENTRY_BYTES != 0) {
+            throw new IllegalArgumentException("Invalid HLL delta");
+        }
+        int[] patLens = new int[delta.length / DELTA_ENTRY_BYTES];
+        int count = 0;
+        for (int p = 0; p < delta.length; p += DELTA_ENTRY_BYTES) {
+            int entry = (delta[p] & 0xff) | (delta[p + 1] & 0xff) << 8 | (delta[p + 2] & 0xff) << 16;
+            if ((entry >>> HLL_BITS) >= HLL_REGISTERS) {
+                throw new IllegalArgumentException("Invalid HLL delta");
+            }
+            // zero never changes a register
+            if ((entry & HLL_REGISTER_MAX) != 0) {
+                patLens[count++] = patLen(entry >>> HLL_BITS, entry & HLL_REGISTER_MAX);
+            }
+        }
+
+        if (isLargeBatch(count)) {
+            byte[] max = newBatchMax();
+            for (int i = 0; i < count; i++) {
+                accumulatePatLen(max, patLens[i]);
+            }
+            return hllSetAll(max);
+        }
+        return hllSetAll(patLens, count);
+    }
+
+    private void markDirty(int regNum) {
+        if (dirtyRegs != null) {
+            dirtyRegs[regNum >>> 6] |= 1L << regNum;
+        }
+    }
+
+    /**
+     * Mark registers in the chunk of 8 registers which are changed from current to updated as dirty,
+     * and keep the histogram and the unpacked copy up to date.
+     */
+    private void updateLanes(int chunk, long current, long updated) {
+        for (int i = 0; current != updated; i++, current >>>= HLL_BITS, updated >>>= HLL_BITS) {
+            int oldCount = (int)current & HLL_REGISTER_MAX;
+            int count = (int)updated & HLL_REGISTER_MAX;
+            if (oldCount != count) {
+                markDirty(chunk * 8 + i);
+                if (hotRegs != null) {
+                    hotRegs[chunk * 8 + i] = (byte)count;
+                }
+                if (regHistoValid) {
+                    regHisto[oldCount]--;
+                    regHisto[count]++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Mark registers which differ between the current sparse runs and given merged sparse runs as dirty,
+     * by walking both runs together.
+     */
+    private void markDirtySparse(ByteBuffer merged) {
+        ByteBuffer[] sources = new ByteBuffer[]{buffer, merged};
+        int[] pos = new int[]{HEADER_LEN, 0};
+        int[] runVal = new int[2];
+        int currentEnd = 0;
+        int mergedEnd = 0;
+        int idx = 0;
+        while (idx < HLL_REGISTERS) {
+            if (currentEnd == idx) {
+                currentEnd += sparseNextRun(sources[0], pos, runVal, 0);
+            }
+            if (mergedEnd == idx) {
+                mergedEnd += sparseNextRun(sources[1], pos, runVal, 1);
+            }
+            int end = Math.min(currentEnd, mergedEnd);
+            if (runVal[0] != runVal[1]) {
+                for (; idx < end; idx++) {
+                    markDirty(idx);
+                }
+            }
+            idx = end;
+        }
+    }
+
     /**
      * Invalidate cardinality cache.
      */
     public void invalidateCache() {
+        ensureWritable();
         // set position to cache flag
         int p = 15;
-        buffer[p] = (byte)(buffer[p] | (1 << 7));
+        buffer.put(p, (byte)(buffer.get(p) | (1 << 7)));
     }
 
     /**
      * Set cardinality cache to given value.
+     * <p>
+     * Do nothing while the representation is borrowed as copy-on-write,
+     * since copying whole representation only for the cache doesn't pay.
+     * </p>
      *
      * @param count New cardinality to be set
      */
     public void setCache(long count) {
+        if (copyOnWrite) {
+            return;
+        }
         // set position to the beginning of Cardin.
         int p = 8;
 
-        buffer[p] = (byte)(count & 0xff);
-        buffer[p + 1] = (byte)((count >>> 8) & 0xff);
-        buffer[p + 2] = (byte)((count >>> 16) & 0xff);
-        buffer[p + 3] = (byte)((count >>> 24) & 0xff);
-        buffer[p + 4] = (byte)((count >>> 32) & 0xff);
-        buffer[p + 5] = (byte)((count >>> 40) & 0xff);
-        buffer[p + 6] = (byte)((count >>> 48) & 0xff);
-        buffer[p + 7] = (byte)((count >>> 56) & 0xff);
+        buffer.putLong(p, count);
     }
 
     /**
@@ -150,17 +704,7 @@ public abstract class HllByteBuffer {
         // set position to the beginning of Cardin.
         int p = 8;
 
-        long cardinality;
-        cardinality = (long)buffer[p] & 0xffL;
-        cardinality |= ((long)buffer[p + 1] & 0xffL) << 8;
-        cardinality |= ((long)buffer[p + 2] & 0xffL) << 16;
-        cardinality |= ((long)buffer[p + 3] & 0xffL) << 24;
-        cardinality |= ((long)buffer[p + 4] & 0xffL) << 32;
-        cardinality |= ((long)buffer[p + 5] & 0xffL) << 40;
-        cardinality |= ((long)buffer[p + 6] & 0xffL) << 48;
-        cardinality |= ((long)buffer[p + 7] & 0xffL) << 56;
-
-        return cardinality;
+        return buffer.getLong(p);
     }
 
     /**
@@ -169,14 +713,15 @@ public abstract class HllByteBuffer {
      * @return The validity of the cache
      */
     public boolean isValidCache() {
-        return (buffer[15] & (1<<7)) == 0;
+        return (buffer.get(15) & (1<<7)) == 0;
     }
 
     /**
      * Set specified register to given value.
      * <p>
-     * NOTE: Unlike original Redis implementation, the representation always be promoted to
-     * dense representation regardless of current encoding for simplification.
+     * Sparse representation is updated in place same as Redis, and will be promoted to
+     * dense representation only when the value can't be represented in sparse encoding or
+     * the length exceeds sparse max bytes. (See {@link #setSparseMaxBytes(int)})
      * </p>
      *
      * @param regNum register number
@@ -184,68 +729,731 @@ public abstract class HllByteBuffer {
      * @return 1 if the cardinality changed, 0 if not changed, -1 if an error is occurred
      */
     public int hllSet(int regNum, int len) {
-        switch (buffer[magic.length]) {
+        switch (buffer.get(magic.length)) {
             case 0:
                 return denseSetIfNeeded(regNum, len);
             case 1:
-                promoteSparseToDense();
-                return denseSetIfNeeded(regNum, len);
+                int retVal = sparseSet(regNum, len);
+                if (retVal > 0) {
+                    markDirty(regNum);
+                }
+                return retVal;
             default:
                 return -1;
         }
     }
 
     /**
-     * Dump current HLL representation.
+     * Returns if the batch of given size should be accumulated into per-register max values by
+     * {@link #accumulatePatLen(byte[], int)} then applied by {@link #hllSetAll(byte[])},
+     * rather than applied by {@link #hllSetAll(int[], int)}.
      *
-     * @return The snapshot of current HLL
+     * @param len batch size
+     * @return true if the batch is large enough
      */
-    public byte[] dump() {
-        return Arrays.copyOf(buffer, buffer.length);
+    protected static boolean isLargeBatch(int len) {
+        return len >= HLL_REGISTERS / 16;
     }
 
-    // sparse operations
-
-    protected boolean sparseIsZero(byte b) {
-        return (((int)b & 0xff) & 0xc0) == 0;
+    /**
+     * Allocate per-register max values for large batch.
+     *
+     * @return the array to accumulate patLens
+     */
+    protected static byte[] newBatchMax() {
+        return new byte[HLL_REGISTERS];
     }
 
-    protected boolean sparseIsXZero(byte b) {
-        return (((int)b & 0xff) & 0xc0) == HLL_SPARSE_XZERO_BIT;
-    }
+    /**
+     * Accumulate the patLen into per-register max values.
+     *
+     * @param max per-register max values
+     * @param patLen register number and patLen count packed by {@link #patLen(int, int)}
+     */
+    protected static void accumulatePatLen(byte[] max, int patLen) {
+        int regNum = patLenRegNum(patLen);
+        int count = patLenLen(patLen);
+        if (count > max[regNum]) {
+            max[regNum] = (byte)count;
+        }
+    }
+
+    /**
+     * Set registers to given values in batch.
+     * <p>
+     * Updates are sorted by register then applied in ascending register order, so that each register
+     * is updated at most once and the representation is accessed sequentially.
+     * </p>
+     *
+     * @param patLens register numbers and patLen counts packed by {@link #patLen(int, int)}.
+     *                The content of the array will be modified.
+     * @param len the number of patLens
+     * @return the number of registers changed
+     */
+    public int hllSetAll(int[] patLens, int len) {
+        for (int i = 0; i < len; i++) {
+            patLens[i] = (patLenRegNum(patLens[i]) << 8) | patLenLen(patLens[i]);
+        }
+        Arrays.sort(patLens, 0, len);
 
-    protected int sparseZeroLen(byte b) {
+        int changed = 0;
+        for (int i = 0; i < len; i++) {
+            int regNum = patLens[i] >>> 8;
+            // apply only the max value of each register, which comes last
+            if (i + 1 < len && (patLens[i + 1] >>> 8) == regNum) {
+                continue;
+            }
+            if (hllSet(regNum, patLens[i] & 0xff) > 0) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Set registers to given per-register max values.
+     * <p>
+     * For sparse representation, registers are merged and re-encoded at once rather than updating
+     * the representation one by one. The result is promoted to dense if it can't be fit in sparse max bytes.
+     * </p>
+     *
+     * @param max per-register max values accumulated by {@link #accumulatePatLen(byte[], int)}.
+     *            The content of the array will be modified.
+     * @return the number of registers changed
+     */
+    public int hllSetAll(byte[] max) {
+        if (buffer.get(magic.length) == HllEncoding.SPARSE.value) {
+            return sparseSetAll(max);
+        }
+
+        int changed = 0;
+        for (int i = 0; i < HLL_REGISTERS; i++) {
+            if (max[i] != 0 && denseSetIfNeeded(i, max[i]) > 0) {
+                changed++;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Dump current HLL representation.
+     *
+     * @return The snapshot of current HLL
+     */
+    public byte[] dump() {
+        byte[] repr = new byte[buffer.limit()];
+        copy(buffer, ByteBuffer.wrap(repr), repr.length);
+        return repr;
+    }
+
+    /**
+     * Dump current HLL representation in the smallest encoding, i.e. dense representation is re-encoded
+     * into sparse if it is smaller.
+     * <p>
+     * See {@link #dumpCompact(int)} for the details.
+     * </p>
+     *
+     * @return The snapshot of current HLL
+     */
+    public byte[] dumpCompact() {
+        return dumpCompact(HLL_DENSE_SIZE - 1);
+    }
+
+    /**
+     * Dump current HLL representation, re-encoding dense representation into sparse if it fits in given bytes.
+     * <p>
+     * Redis accepts sparse representation of any length, and promotes it to dense on PFADD when it grows beyond
+     * hll-sparse-max-bytes. Sparse representation is dumped as is. The header including the cardinality cache
+     * is kept, and sparse is never chosen if it is not smaller than dense, or any register exceeds
+     * the max value which sparse can represent.
+     * </p>
+     *
+     * @param sparseMaxBytes max length of sparse representation in bytes (including header)
+     * @return The snapshot of current HLL
+     */
+    public byte[] dumpCompact(int sparseMaxBytes) {
+        int maxLen = Math.min(sparseMaxBytes, HLL_DENSE_SIZE - 1);
+        if (buffer.get(magic.length) != HllEncoding.DENSE.value || maxLen <= HEADER_LEN) {
+            return dump();
+        }
+        byte[] repr = new byte[maxLen];
+        int sparseLen = denseSparseEncode(ByteBuffer.wrap(repr), HEADER_LEN, maxLen - HEADER_LEN);
+        if (sparseLen < 0) {
+            return dump();
+        }
+        for (int i = 0; i < HEADER_LEN; i++) {
+            repr[i] = buffer.get(i);
+        }
+        repr[magic.length] = HllEncoding.SPARSE.value;
+        return Arrays.copyOf(repr, HEADER_LEN + sparseLen);
+    }
+
+    /**
+     * Length of current HLL representation in bytes.
+     *
+     * @return the length of the representation
+     */
+    public int dumpLength() {
+        return buffer.limit();
+    }
+
+    /**
+     * Approximate number of bytes retained by this HLL.
+     * <p>
+     * This is the capacity of the buffer, which may be larger than the representation since sparse buffers
+     * grow geometrically, plus the register histogram, the unpacked registers and the dirty bitmap if held.
+     * </p>
+     *
+     * @return retained bytes
+     */
+    public int retainedBytes() {
+        return buffer.capacity()
+               + (regHisto != null ? regHisto.length * Integer.BYTES : 0)
+               + (hotRegs != null ? hotRegs.length : 0)
+               + (dirtyRegs != null ? dirtyRegs.length * Long.BYTES : 0);
+    }
+
+    /**
+     * Copy current HLL representation into given array.
+     *
+     * @param dst the array to copy into
+     * @param off the offset in the array
+     * @return the number of bytes copied, i.e. {@link #dumpLength()}
+     * @throws IndexOutOfBoundsException if the array doesn't have enough room
+     */
+    public int dumpInto(byte[] dst, int off) {
+        return dumpInto(ByteBuffer.wrap(dst), off);
+    }
+
+    /**
+     * Copy current HLL representation into given buffer at given absolute index.
+     * The position and limit of the buffer are not changed.
+     *
+     * @param dst the buffer to copy into
+     * @param off the index in the buffer
+     * @return the number of bytes copied, i.e. {@link #dumpLength()}
+     * @throws IndexOutOfBoundsException if the buffer doesn't have enough room
+     */
+    public int dumpInto(ByteBuffer dst, int off) {
+        int length = buffer.limit();
+        if (off < 0 || off > dst.limit() - length) {
+            throw new IndexOutOfBoundsException(
+                    "not enough room. offset: " + off + ", length: " + length + ", limit: " + dst.limit());
+        }
+        ByteBuffer from = buffer.duplicate();
+        setBounds(from, 0, length);
+        ByteBuffer to = dst.duplicate();
+        setBounds(to, off, off + length);
+        to.put(from);
+        return length;
+    }
+
+    /**
+     * Write current HLL representation to given channel.
+     *
+     * @param channel the channel to write to
+     * @return the number of bytes written
+     * @throws IOException if failed to write
+     */
+    public int dumpTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer dup = buffer.duplicate();
+        setBounds(dup, 0, buffer.limit());
+        int written = 0;
+        while (dup.hasRemaining()) {
+            written += channel.write(dup);
+        }
+        return written;
+    }
+
+    /**
+     * Release the underlying buffer through the allocator.
+     * <p>
+     * This instance must not be used after released.
+     * </p>
+     */
+    public void release() {
+        if (buffer != null) {
+            if (!borrowed) {
+                allocator.release(buffer);
+            }
+            buffer = null;
+        }
+    }
+
+    // sparse operations
+
+    protected static boolean sparseIsZero(byte b) {
+        return (((int)b & 0xff) & 0xc0) == 0;
+    }
+
+    protected static boolean sparseIsXZero(byte b) {
+        return (((int)b & 0xff) & 0xc0) == HLL_SPARSE_XZERO_BIT;
+    }
+
+    protected static boolean sparseIsVal(byte b) {
+        return (((int)b & 0xff) & HLL_SPARSE_VAL_BIT) != 0;
+    }
+
+    protected static int sparseZeroLen(byte b) {
         return (((int)b & 0xff) & 0x3f) + 1;
     }
 
-    protected int sparseXZeroLen(byte b, byte nextB) {
+    protected static int sparseXZeroLen(byte b, byte nextB) {
         return (((((int)b & 0xff) & 0x3f) << 8) | ((int)nextB & 0xff)) + 1;
     }
 
-    protected int sparseValValue(byte b) {
+    protected static int sparseValValue(byte b) {
         return ((((int)b & 0xff) >>> 2) & 0x1f) + 1;
     }
 
-    protected int sparseValLen(byte b) {
+    protected static int sparseValLen(byte b) {
         return (((int)b & 0xff) & 0x3) + 1;
     }
 
     private void sparseXZeroSet(int p, int len) {
         int _l = len - 1;
 
-        buffer[p] = (byte)((_l >>> 8) | HLL_SPARSE_XZERO_BIT);
-        buffer[p + 1] = (byte)(_l & 0xff);
+        buffer.put(p, (byte)((_l >>> 8) | HLL_SPARSE_XZERO_BIT));
+        buffer.put(p + 1, (byte)(_l & 0xff));
+    }
+
+    private static int sparseZeroOpcode(int len) {
+        return (len - 1) & 0xff;
+    }
+
+    private static int sparseXZeroOpcode(int len) {
+        int _l = len - 1;
+        // first byte in lower 8 bits so that it can be appended to the sequence as is
+        return (((_l >>> 8) | HLL_SPARSE_XZERO_BIT) & 0xff) | ((_l & 0xff) << 8);
+    }
+
+    private static int sparseValOpcode(int val, int len) {
+        return (((val - 1) << 2) | (len - 1) | HLL_SPARSE_VAL_BIT) & 0xff;
+    }
+
+    /**
+     * Set specified register of sparse representation to given value, which is the port of
+     * hllSparseSet in Redis.
+     * <p>
+     * The opcode that covers the register is split into (up to) three opcodes in place,
+     * then adjacent VAL opcodes are merged if possible.
+     * The representation will be promoted to dense if necessary.
+     * </p>
+     */
+    private int sparseSet(int regNum, int count) {
+        // if the count is too big to be representable by the sparse representation
+        // switch to dense representation.
+        if (count > HLL_SPARSE_VAL_MAX_VALUE) {
+            return promoteAndSet(regNum, count);
+        }
+
+        // step 1: locate the opcode we need to modify
+        int end = buffer.limit();
+        int p = HEADER_LEN;
+        int prev = -1;
+        int first = 0;
+        int span = 0;
+        while (p < end) {
+            int oplen = 1;
+            if (sparseIsZero(buffer.get(p))) {
+                span = sparseZeroLen(buffer.get(p));
+            } else if (sparseIsVal(buffer.get(p))) {
+                span = sparseValLen(buffer.get(p));
+            } else {
+                if (p + 1 >= end) {
+                    return -1;
+                }
+                span = sparseXZeroLen(buffer.get(p), buffer.get(p + 1));
+                oplen = 2;
+            }
+            // break if this opcode covers the register
+            if (regNum <= first + span - 1) {
+                break;
+            }
+            prev = p;
+            p += oplen;
+            first += span;
+        }
+        if (span == 0 || p >= end) {
+            // invalid format
+            return -1;
+        }
+
+        boolean isZero = false;
+        boolean isXZero = false;
+        boolean isVal = false;
+        int runlen;
+        if (sparseIsZero(buffer.get(p))) {
+            isZero = true;
+            runlen = sparseZeroLen(buffer.get(p));
+        } else if (sparseIsXZero(buffer.get(p))) {
+            isXZero = true;
+            runlen = sparseXZeroLen(buffer.get(p), buffer.get(p + 1));
+        } else {
+            isVal = true;
+            runlen = sparseValLen(buffer.get(p));
+        }
+
+        // step 2: update the opcode in place
+        boolean updated = false;
+        if (isVal) {
+            // A) VAL opcode already set to a value >= count. nothing to do
+            if (sparseValValue(buffer.get(p)) >= count) {
+                return 0;
+            }
+        }
+        ensureWritable();
+        if (isVal) {
+            // B) VAL opcode with len = 1. just update it
+            if (runlen == 1) {
+                buffer.put(p, (byte)sparseValOpcode(count, 1));
+                updated = true;
+            }
+        }
+        // C) ZERO opcode with len = 1. just replace it with VAL opcode
+        if (isZero && runlen == 1) {
+            buffer.put(p, (byte)sparseValOpcode(count, 1));
+            updated = true;
+        }
+
+        if (!updated) {
+            // D) general case. split the opcode into multiple opcodes.
+            // resulting sequence is at most 5 bytes (XZERO-VAL-XZERO) so it is packed into a long
+            long seq = 0;
+            int seqlen = 0;
+            int last = first + span - 1;
+            int len;
+
+            if (isZero || isXZero) {
+                if (regNum != first) {
+                    len = regNum - first;
+                    if (len > HLL_SPARSE_ZERO_MAX_LEN) {
+                        seq |= (long)sparseXZeroOpcode(len) << (seqlen * 8);
+                        seqlen += 2;
+                    } else {
+                        seq |= (long)sparseZeroOpcode(len) << (seqlen * 8);
+                        seqlen++;
+                    }
+                }
+                seq |= (long)sparseValOpcode(count, 1) << (seqlen * 8);
+                seqlen++;
+                if (regNum != last) {
+                    len = last - regNum;
+                    if (len > HLL_SPARSE_ZERO_MAX_LEN) {
+                        seq |= (long)sparseXZeroOpcode(len) << (seqlen * 8);
+                        seqlen += 2;
+                    } else {
+                        seq |= (long)sparseZeroOpcode(len) << (seqlen * 8);
+                        seqlen++;
+                    }
+                }
+            } else {
+                int curval = sparseValValue(buffer.get(p));
+
+                if (regNum != first) {
+                    len = regNum - first;
+                    seq |= (long)sparseValOpcode(curval, len) << (seqlen * 8);
+                    seqlen++;
+                }
+                seq |= (long)sparseValOpcode(count, 1) << (seqlen * 8);
+                seqlen++;
+                if (regNum != last) {
+                    len = last - regNum;
+                    seq |= (long)sparseValOpcode(curval, len) << (seqlen * 8);
+                    seqlen++;
+                }
+            }
+
+            // step 3: substitute the new sequence with the old one
+            int oldlen = isXZero ? 2 : 1;
+            int deltalen = seqlen - oldlen;
+
+            if (deltalen > 0 && end + deltalen > sparseMaxBytes) {
+                return promoteAndSet(regNum, count);
+            }
+            if (end + deltalen > buffer.capacity()) {
+                // grow geometrically so that in-place updates don't reallocate every time,
+                // but never beyond what sparse representation can use
+                int capacity = Math.max(end + deltalen, Math.min(buffer.capacity() * 2, sparseMaxBytes));
+                ByteBuffer newBuffer = allocate(end, capacity);
+                copy(buffer, newBuffer, end);
+                replaceBuffer(newBuffer);
+            }
+            if (deltalen > 0) {
+                setBounds(buffer, 0, end + deltalen);
+            }
+            if (deltalen != 0) {
+                move(p + oldlen, p + seqlen, end - p - oldlen);
+            }
+            end += deltalen;
+            for (int i = 0; i < seqlen; i++) {
+                buffer.put(p + i, (byte)(seq >>> (i * 8)));
+            }
+        }
+
+        // step 4: merge adjacent VAL opcodes if possible.
+        // scan up to 5 opcodes starting from prev
+        p = prev >= 0 ? prev : HEADER_LEN;
+        int scanlen = 5;
+        while (p < end && scanlen-- > 0) {
+            if (sparseIsXZero(buffer.get(p))) {
+                p += 2;
+                continue;
+            } else if (sparseIsZero(buffer.get(p))) {
+                p++;
+                continue;
+            }
+            // need two adjacent VAL opcodes having same value and a len that fits the VAL opcode max len
+            if (p + 1 < end && sparseIsVal(buffer.get(p + 1))) {
+                int v1 = sparseValValue(buffer.get(p));
+                int v2 = sparseValValue(buffer.get(p + 1));
+                if (v1 == v2) {
+                    int len = sparseValLen(buffer.get(p)) + sparseValLen(buffer.get(p + 1));
+                    if (len <= HLL_SPARSE_VAL_MAX_LEN) {
+                        buffer.put(p + 1, (byte)sparseValOpcode(v1, len));
+                        move(p + 1, p, end - p - 1);
+                        end--;
+                        // reiterate without incrementing p to try to merge
+                        // the just merged value with a value on its right
+                        continue;
+                    }
+                }
+            }
+            p++;
+        }
+
+        setBounds(buffer, 0, end);
+        return 1;
+    }
+
+    private int sparseSetAll(byte[] max) {
+        // merge current registers into max while counting registers to be changed
+        int changed = 0;
+        int p = HEADER_LEN;
+        int idx = 0;
+        while (p < buffer.limit() && idx < HLL_REGISTERS) {
+            if (sparseIsZero(buffer.get(p)) || sparseIsXZero(buffer.get(p))) {
+                int runlen;
+                if (sparseIsZero(buffer.get(p))) {
+                    runlen = sparseZeroLen(buffer.get(p));
+                    p++;
+                } else {
+                    runlen = sparseXZeroLen(buffer.get(p), buffer.get(p + 1));
+                    p += 2;
+                }
+                int end = Math.min(idx + runlen, HLL_REGISTERS);
+                for (; idx < end; idx++) {
+                    if (max[idx] != 0) {
+                        changed++;
+                        markDirty(idx);
+                    }
+                }
+            } else {
+                int runlen = sparseValLen(buffer.get(p));
+                int regVal = sparseValValue(buffer.get(p));
+                int end = Math.min(idx + runlen, HLL_REGISTERS);
+                for (; idx < end; idx++) {
+                    if (max[idx] > regVal) {
+                        changed++;
+                        markDirty(idx);
+                    } else {
+                        max[idx] = (byte)regVal;
+                    }
+                }
+                p++;
+            }
+        }
+        if (idx != HLL_REGISTERS || p != buffer.limit()) {
+            throw new RuntimeException("failed to set registers");
+        }
+        if (changed == 0) {
+            return 0;
+        }
+
+        int sparseLen = sparseEncode(max, null, 0);
+        if (sparseLen >= 0 && HEADER_LEN + sparseLen <= sparseMaxBytes) {
+            ByteBuffer sparseBuffer = !copyOnWrite && HEADER_LEN + sparseLen <= buffer.capacity()
+                                      ? buffer
+                                      : allocate(HEADER_LEN + sparseLen, HEADER_LEN + sparseLen);
+            copyHeader(buffer, sparseBuffer);
+            setBounds(sparseBuffer, 0, HEADER_LEN + sparseLen);
+            // opcodes are encoded from max, so it's safe to overwrite current opcodes
+            sparseEncode(max, sparseBuffer, HEADER_LEN);
+            if (sparseBuffer != buffer) {
+                replaceBuffer(sparseBuffer);
+            }
+        } else {
+            ByteBuffer denseBuffer = allocate(HLL_DENSE_SIZE, HLL_DENSE_SIZE);
+            copyHeader(buffer, denseBuffer);
+            denseBuffer.put(magic.length, HllEncoding.DENSE.value);
+            replaceBuffer(denseBuffer);
+            for (int i = 0; i < HLL_REGISTERS; i++) {
+                if (max[i] != 0) {
+                    denseSetRegister(i, max[i]);
+                }
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Encode registers into a Redis compatible representation.
+     * <p>
+     * The representation is sparse if it fits in sparse max bytes, dense otherwise.
+     * The cardinality cache is invalidated, as same as the result of PFMERGE.
+     * </p>
+     *
+     * @param registers the array which has {@link #registerSize()} registers, one register per byte
+     * @param sparseMaxBytes max bytes of sparse representation (including header)
+     * @return the byte array of the HLL representation
+     */
+    public static byte[] encodeRegisters(byte[] registers, int sparseMaxBytes) {
+        byte[] repr;
+        int sparseLen = sparseEncode(registers, null, 0);
+        if (sparseLen >= 0 && HEADER_LEN + sparseLen <= sparseMaxBytes) {
+            repr = new byte[HEADER_LEN + sparseLen];
+            repr[magic.length] = HllEncoding.SPARSE.value;
+            sparseEncode(registers, ByteBuffer.wrap(repr), HEADER_LEN);
+        } else {
+            repr = new byte[HLL_DENSE_SIZE];
+            repr[magic.length] = HllEncoding.DENSE.value;
+            ByteBuffer dense = ByteBuffer.wrap(repr).order(ByteOrder.LITTLE_ENDIAN);
+            int idx = 0;
+            for (int off = HEADER_LEN; off < HLL_DENSE_SIZE; off += SwarDenseMergeKernel.CHUNK_BYTES) {
+                long v = 0;
+                for (int i = 0; i < 8; i++) {
+                    v |= (long)registers[idx++] << (i * HLL_BITS);
+                }
+                SwarDenseMergeKernel.store48(dense, off, v);
+            }
+        }
+        System.arraycopy(magic, 0, repr, 0, magic.length);
+        repr[15] |= (byte)(1 << 7);
+        return repr;
+    }
+
+    /**
+     * Encode registers into sparse opcodes.
+     *
+     * @param registers register values
+     * @param out the buffer to write opcodes. Only the length is computed if null
+     * @param off the offset to start writing
+     * @return the length of the opcodes, or -1 if the registers can't be represented in sparse
+     */
+    private static int sparseEncode(byte[] registers, ByteBuffer out, int off) {
+        int p = off;
+        int idx = 0;
+        while (idx < HLL_REGISTERS) {
+            int regVal = registers[idx];
+            if (regVal > HLL_SPARSE_VAL_MAX_VALUE) {
+                return -1;
+            }
+            int runlen = 1;
+            while (idx + runlen < HLL_REGISTERS && registers[idx + runlen] == regVal) {
+                runlen++;
+            }
+            p = sparseEncodeRun(regVal, runlen, out, p);
+            idx += runlen;
+        }
+        return p - off;
+    }
+
+    /**
+     * Encode dense registers into sparse opcodes, decoding 8 registers per chunk load.
+     *
+     * @param out the buffer to write opcodes, which must have maxLen bytes from off
+     * @param off the offset to start writing
+     * @param maxLen max length of the opcodes
+     * @return the length of the opcodes, or -1 if it exceeds maxLen or the registers can't be represented in sparse
+     */
+    private int denseSparseEncode(ByteBuffer out, int off, int maxLen) {
+        int p = off;
+        int pendingVal = 0;
+        int pendingLen = 0;
+        for (int chunk = HEADER_LEN; chunk < HLL_DENSE_SIZE; chunk += SwarDenseMergeKernel.CHUNK_BYTES) {
+            long v = SwarDenseMergeKernel.load48(buffer, chunk);
+            for (int i = 0; i < 8; i++, v >>>= HLL_BITS) {
+                int regVal = (int)v & HLL_REGISTER_MAX;
+                if (regVal == pendingVal) {
+                    pendingLen++;
+                    continue;
+                }
+                if (regVal > HLL_SPARSE_VAL_MAX_VALUE) {
+                    return -1;
+                }
+                if (pendingLen > 0) {
+                    if (p - off + sparseEncodeRun(pendingVal, pendingLen, null, 0) > maxLen) {
+                        return -1;
+                    }
+                    p = sparseEncodeRun(pendingVal, pendingLen, out, p);
+                }
+                pendingVal = regVal;
+                pendingLen = 1;
+            }
+        }
+        if (p - off + sparseEncodeRun(pendingVal, pendingLen, null, 0) > maxLen) {
+            return -1;
+        }
+        p = sparseEncodeRun(pendingVal, pendingLen, out, p);
+        return p - off;
+    }
+
+    /**
+     * Encode a run of registers which have same value into sparse opcodes.
+     *
+     * @param regVal register value, which must be representable in sparse
+     * @param runlen the number of registers, which must be maximal so that the encoding is canonical
+     * @param out the buffer to write opcodes. Only the length is computed if null
+     * @param p the offset to start writing
+     * @return the offset next to the written opcodes
+     */
+    private static int sparseEncodeRun(int regVal, int runlen, ByteBuffer out, int p) {
+        if (regVal == 0) {
+            // zero run never exceeds XZERO max len since it is bounded by the number of registers
+            if (runlen > HLL_SPARSE_ZERO_MAX_LEN) {
+                if (out != null) {
+                    int opcode = sparseXZeroOpcode(runlen);
+                    out.put(p, (byte)opcode);
+                    out.put(p + 1, (byte)(opcode >>> 8));
+                }
+                return p + 2;
+            }
+            if (out != null) {
+                out.put(p, (byte)sparseZeroOpcode(runlen));
+            }
+            return p + 1;
+        }
+        while (runlen > 0) {
+            int len = Math.min(runlen, HLL_SPARSE_VAL_MAX_LEN);
+            if (out != null) {
+                out.put(p, (byte)sparseValOpcode(regVal, len));
+            }
+            p++;
+            runlen -= len;
+        }
+        return p;
+    }
+
+    private int promoteAndSet(int regNum, int count) {
+        promoteSparseToDense();
+
+        // the result must be 1 since if we need to convert from sparse to dense,
+        // the register requires to be updated
+        return denseSetIfNeeded(regNum, count);
     }
 
     // dense oprations
 
     protected long denseGetRegister(int regNum) {
+        if (hotRegs != null) {
+            return hotRegs[regNum];
+        }
         int byteOffset = HEADER_LEN + (regNum * HLL_BITS / 8);
         long bitPosFromLSB = regNum * HLL_BITS & 7;
         long bitPosFromLSBInNextByte = 8 - bitPosFromLSB;
 
-        long b0 = (long)buffer[byteOffset] & 0xffL;
-        long b1 = (byteOffset < buffer.length - 1) ? (long)buffer[byteOffset + 1] & 0xffL : 0;
+        long b0 = (long)buffer.get(byteOffset) & 0xffL;
+        long b1 = (byteOffset < buffer.limit() - 1) ? (long)buffer.get(byteOffset + 1) & 0xffL : 0;
 
         return ((b0 >>> bitPosFromLSB) | (b1 << bitPosFromLSBInNextByte)) & HLL_REGISTER_MAX;
     }
@@ -257,24 +1465,45 @@ public abstract class HllByteBuffer {
 
         long val = count & 0xffffffffL;
 
-        byte b0 = buffer[byteOffset];
-        byte b1 = (byteOffset < buffer.length - 1) ? buffer[byteOffset + 1] : 0;
+        byte b0 = buffer.get(byteOffset);
+        byte b1 = (byteOffset < buffer.limit() - 1) ? buffer.get(byteOffset + 1) : 0;
 
         b0 &= ~(HLL_REGISTER_MAX << bitPosFromLSB);
         b0 |= val << bitPosFromLSB;
         b1 &= ~(HLL_REGISTER_MAX >>> bitPosFromLSBInNextByte);
         b1 |= val >>> bitPosFromLSBInNextByte;
 
-        buffer[byteOffset] = b0;
+        buffer.put(byteOffset, b0);
 
-        if (byteOffset < buffer.length - 1) {
-            buffer[byteOffset + 1] = b1;
+        if (byteOffset < buffer.limit() - 1) {
+            buffer.put(byteOffset + 1, b1);
         }
     }
 
     private int denseSetIfNeeded(int regNum, int count) {
-        if (denseGetRegister(regNum) < count) {
+        if (hotRegisters && hotRegs == null) {
+            hotRegs = unpackRegisters();
+        }
+        return denseMaxRegister(regNum, count);
+    }
+
+    /**
+     * Same as {@link #denseSetIfNeeded(int, int)} but never builds the unpacked copy.
+     * The register is written through to the unpacked copy only if it's already built.
+     */
+    private int denseMaxRegister(int regNum, int count) {
+        int oldCount = (int)denseGetRegister(regNum);
+        if (oldCount < count) {
+            ensureWritable();
             denseSetRegister(regNum, count);
+            if (hotRegs != null) {
+                hotRegs[regNum] = (byte)count;
+            }
+            markDirty(regNum);
+            if (regHistoValid) {
+                regHisto[oldCount]--;
+                regHisto[count]++;
+            }
             return 1;
         } else {
             return 0;
@@ -289,32 +1518,35 @@ public abstract class HllByteBuffer {
      */
     private void promoteSparseToDense() {
         // nothing to do
-        if (buffer[magic.length] == HllEncoding.DENSE.value) {
+        if (buffer.get(magic.length) == HllEncoding.DENSE.value) {
             return;
         }
 
-        byte[] denseBuffer = new byte[HLL_DENSE_SIZE];
+        ByteBuffer denseBuffer = allocate(HLL_DENSE_SIZE, HLL_DENSE_SIZE);
 
         // copy header
-        System.arraycopy(buffer, 0, denseBuffer, 0, HEADER_LEN);
+        copyHeader(buffer, denseBuffer);
 
         // skip magic and put encoding
-        denseBuffer[magic.length] = HllEncoding.DENSE.value;
+        denseBuffer.put(magic.length, HllEncoding.DENSE.value);
+
+        ByteBuffer sparse = buffer;
+        this.buffer = denseBuffer;
 
         int p = HEADER_LEN;
         int idx = 0;
-        while (p < buffer.length) {
-            if (sparseIsZero(buffer[p])) {
-                int runlen = sparseZeroLen(buffer[p]);
+        while (p < sparse.limit()) {
+            if (sparseIsZero(sparse.get(p))) {
+                int runlen = sparseZeroLen(sparse.get(p));
                 idx += runlen;
                 p++;
-            } else if (sparseIsXZero(buffer[p])) {
-                int runlen = sparseXZeroLen(buffer[p], buffer[p + 1]);
+            } else if (sparseIsXZero(sparse.get(p))) {
+                int runlen = sparseXZeroLen(sparse.get(p), sparse.get(p + 1));
                 idx += runlen;
                 p += 2;
             } else {
-                int runlen = sparseValLen(buffer[p]);
-                int regVal = sparseValValue(buffer[p]);
+                int runlen = sparseValLen(sparse.get(p));
+                int regVal = sparseValValue(sparse.get(p));
 
                 while(runlen-- > 0) {
                     denseSetRegister(idx, regVal);
@@ -325,75 +1557,500 @@ public abstract class HllByteBuffer {
         }
 
         if (idx != HLL_REGISTERS) {
+            this.buffer = sparse;
+            allocator.release(denseBuffer);
             throw new RuntimeException("failed to promote to dense");
         }
-
-        this.buffer = denseBuffer;
+        this.buffer = sparse;
+        replaceBuffer(denseBuffer);
     }
 
     /**
      * Merge given HLLs into this HLL
      * <p>
      * NOTE: Unlike original Redis implementation, the representation always be promoted to
-     * dense representation regardless of current encoding for simplification.
+     * dense representation regardless of current encoding for simplification,
+     * unless {@link #setSparseMerge(boolean)} is enabled.
+     * </p>
+     * <p>
+     * If it is enabled and this HLL and all sources are sparse, the run encodings of all of them
+     * are walked together and the union is encoded in sparse directly, as long as it fits in sparse max bytes.
+     * Since PFMERGE of Redis v4 / v5 always results in dense, the representation differs from Redis in that case
+     * (the registers and the count are same).
+     * </p>
+     * <p>
+     * Registers are max-ed in place directly on the packed dense representation,
+     * so no intermediate register array is allocated.
+     * </p>
+     * <p>
+     * The cardinality cache is invalidated when registers are updated. A borrowed copy-on-write buffer is copied
+     * only on the first register update, so merging HLLs whose registers are all covered by this HLL
+     * keeps it as is along with its cache.
      * </p>
      */
     public void hllMerge(HllByteBuffer... others) {
-        byte[] max = new byte[HLL_REGISTERS];
-        hllMergeRegisters(max, this);
-        hllMergeRegisters(max, others);
+        // validate all sparse sources up front so that a corrupted source
+        // doesn't leave this HLL partially merged
+        for (HllByteBuffer other : others) {
+            if (other.buffer.get(magic.length) != HllEncoding.DENSE.value
+                && !other.validated && !sparseIsWellFormed(other.buffer)) {
+                throw new RuntimeException("failed to merge");
+            }
+        }
 
-        if (buffer[magic.length] == HllEncoding.SPARSE.value) {
+        if (buffer.get(magic.length) == HllEncoding.SPARSE.value) {
+            if (sparseMerge && sparseMergeSparse(others)) {
+                return;
+            }
             promoteSparseToDense();
         }
 
-        for (int i = 0; i < max.length; i++) {
-            denseSetRegister(i, max[i]);
+        boolean updated = false;
+        ByteBuffer[] denseSources = new ByteBuffer[others.length];
+        int denseCount = 0;
+        for (HllByteBuffer other : others) {
+            if (other.buffer.get(magic.length) == HllEncoding.DENSE.value) {
+                denseSources[denseCount++] = other.buffer;
+            } else {
+                updated |= denseMergeSparse(other.buffer);
+            }
+        }
+        // dense sources are merged in bulk
+        if (denseCount > 0) {
+            updated |= denseMerge(denseSources, denseCount);
+        }
+        if (updated) {
+            invalidateCache();
         }
     }
 
     /**
-     * Merge registers of given HLLs then write to target array
+     * Merge sparse sources into this sparse HLL, keeping the representation sparse.
+     *
+     * @return false if any source is dense or the union doesn't fit in sparse max bytes,
+     *         then nothing is changed
      */
-    private static void hllMergeRegisters(byte[] max, HllByteBuffer... hlls) {
-        for (HllByteBuffer hll : hlls) {
-            boolean isDense = hll.buffer[magic.length] == HllEncoding.DENSE.value;
-            if (isDense) {
-                for (int i = 0; i < max.length; i++) {
-                    long val = hll.denseGetRegister(i);
-                    if (val > (max[i] & 0xffL)) {
-                        max[i] = (byte)val;
-                    }
+    private boolean sparseMergeSparse(HllByteBuffer[] others) {
+        ByteBuffer[] sources = new ByteBuffer[others.length + 1];
+        sources[0] = buffer;
+        for (int i = 0; i < others.length; i++) {
+            if (others[i].buffer.get(magic.length) != HllEncoding.SPARSE.value) {
+                return false;
+            }
+            sources[i + 1] = others[i].buffer;
+        }
+        if (!validated && !sparseIsWellFormed(buffer)) {
+            throw new RuntimeException("failed to merge");
+        }
+
+        if (sparseMaxBytes <= HEADER_LEN) {
+            return false;
+        }
+        // encode into a scratch buffer in one pass, since walking runs costs more than copying.
+        // sparse opcodes never exceed one VAL opcode per register, so larger sparse max bytes don't matter
+        ByteBuffer opcodes = ByteBuffer.allocate(Math.min(sparseMaxBytes, HEADER_LEN + HLL_REGISTERS) - HEADER_LEN);
+        int sparseLen = sparseMergeRuns(sources, opcodes, 0, opcodes.capacity());
+        if (sparseLen < 0) {
+            return false;
+        }
+        ByteBuffer current = buffer.duplicate();
+        setBounds(current, HEADER_LEN, current.limit());
+        setBounds(opcodes, 0, sparseLen);
+        if (opcodes.equals(current)) {
+            // no register is updated
+            return true;
+        }
+        if (dirtyRegs != null) {
+            markDirtySparse(opcodes);
+        }
+        ByteBuffer sparseBuffer = allocate(HEADER_LEN + sparseLen, HEADER_LEN + sparseLen);
+        copyHeader(buffer, sparseBuffer);
+        setBounds(opcodes, 0, sparseLen);
+        setBounds(sparseBuffer, HEADER_LEN, HEADER_LEN + sparseLen);
+        sparseBuffer.put(opcodes);
+        setBounds(sparseBuffer, 0, HEADER_LEN + sparseLen);
+        replaceBuffer(sparseBuffer);
+        invalidateCache();
+        return true;
+    }
+
+    /**
+     * Walk the runs of all well-formed sparse sources together, and encode the max of them into sparse opcodes.
+     * <p>
+     * Sources are ordered by the end of their current runs in a min-heap, and the number of sources
+     * for each current run value is counted, so each run boundary costs O(log n) regardless of the number of
+     * registers. Adjacent segments which have same value are coalesced so that the result is same as
+     * {@link #sparseEncode}.
+     * </p>
+     *
+     * @param sources sparse representations
+     * @param out the buffer to write opcodes, which must have maxLen bytes from off
+     * @param off the offset to start writing
+     * @param maxLen max length of the opcodes
+     * @return the length of the opcodes, or -1 if it exceeds maxLen
+     */
+    private static int sparseMergeRuns(ByteBuffer[] sources, ByteBuffer out, int off, int maxLen) {
+        int n = sources.length;
+        int[] pos = new int[n];
+        int[] runVal = new int[n];
+        int[] valCount = new int[HLL_SPARSE_VAL_MAX_VALUE + 1];
+        // run end in upper 32 bits, source index in lower 32 bits
+        long[] heap = new long[n];
+
+        int max = 0;
+        for (int i = 0; i < n; i++) {
+            pos[i] = HEADER_LEN;
+            int runlen = sparseNextRun(sources[i], pos, runVal, i);
+            valCount[runVal[i]]++;
+            max = Math.max(max, runVal[i]);
+            heap[i] = ((long)runlen << 32) | i;
+        }
+        for (int i = n / 2 - 1; i >= 0; i--) {
+            siftDown(heap, n, i);
+        }
+
+        int p = off;
+        int idx = 0;
+        int pendingVal = 0;
+        int pendingLen = 0;
+        while (idx < HLL_REGISTERS) {
+            int end = (int)(heap[0] >>> 32);
+            if (pendingLen > 0 && max != pendingVal) {
+                if (p - off + sparseEncodeRun(pendingVal, pendingLen, null, 0) > maxLen) {
+                    return -1;
+                }
+                p = sparseEncodeRun(pendingVal, pendingLen, out, p);
+                pendingLen = 0;
+            }
+            pendingVal = max;
+            pendingLen += end - idx;
+            idx = end;
+            if (idx == HLL_REGISTERS) {
+                // all sources end here since they are well-formed
+                break;
+            }
+
+            while ((int)(heap[0] >>> 32) == end) {
+                int i = (int)heap[0];
+                valCount[runVal[i]]--;
+                int runlen = sparseNextRun(sources[i], pos, runVal, i);
+                valCount[runVal[i]]++;
+                max = Math.max(max, runVal[i]);
+                heap[0] = ((long)(end + runlen) << 32) | i;
+                siftDown(heap, n, 0);
+            }
+            while (max > 0 && valCount[max] == 0) {
+                max--;
+            }
+        }
+        if (p - off + sparseEncodeRun(pendingVal, pendingLen, null, 0) > maxLen) {
+            return -1;
+        }
+        p = sparseEncodeRun(pendingVal, pendingLen, out, p);
+        return p - off;
+    }
+
+    /**
+     * Read the opcode of i-th source at pos[i], then advance pos[i] and set the run value to runVal[i].
+     *
+     * @return the run length
+     */
+    private static int sparseNextRun(ByteBuffer source, int[] pos, int[] runVal, int i) {
+        byte b = source.get(pos[i]);
+        if (sparseIsZero(b)) {
+            runVal[i] = 0;
+            pos[i]++;
+            return sparseZeroLen(b);
+        }
+        if (sparseIsXZero(b)) {
+            runVal[i] = 0;
+            pos[i] += 2;
+            return sparseXZeroLen(b, source.get(pos[i] - 1));
+        }
+        runVal[i] = sparseValValue(b);
+        pos[i]++;
+        return sparseValLen(b);
+    }
+
+    private static void siftDown(long[] heap, int size, int i) {
+        long e = heap[i];
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= e) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = e;
+    }
+
+    /**
+     * Merge dense sources by {@link DenseMergeKernel} if all buffers are plain heap arrays,
+     * otherwise by the SWAR kernel which works on any buffer.
+     * <p>
+     * Chunks are merged one by one instead if the changed registers have to be known,
+     * i.e. registers are tracked or the buffer is copy-on-write.
+     * </p>
+     *
+     * @return true if registers may have been updated. Always true if merged in bulk
+     */
+    private boolean denseMerge(ByteBuffer[] sources, int count) {
+        if (dirtyRegs != null || copyOnWrite) {
+            return denseMergeChunks(sources, count);
+        }
+        regHistoValid = false;
+        hotRegs = null;
+        int off = HEADER_LEN;
+        int len = HLL_DENSE_SIZE - HEADER_LEN;
+
+        byte[][] arrays = isPlainArray(buffer) ? new byte[count][] : null;
+        for (int i = 0; arrays != null && i < count; i++) {
+            arrays[i] = isPlainArray(sources[i]) ? sources[i].array() : null;
+            if (arrays[i] == null) {
+                arrays = null;
+            }
+        }
+
+        if (arrays != null) {
+            DenseMergeKernels.get().merge(buffer.array(), arrays, count, off, len);
+        } else {
+            SwarDenseMergeKernel.merge(buffer, sources, count, off, len);
+        }
+        return true;
+    }
+
+    /**
+     * Merge dense sources chunk by chunk by the SWAR kernel, marking the registers changed by each chunk as dirty.
+     * The borrowed buffer is copied on the first changed chunk.
+     *
+     * @return true if any register is updated
+     */
+    private boolean denseMergeChunks(ByteBuffer[] sources, int count) {
+        boolean updated = false;
+        for (int chunk = 0; chunk < HLL_REGISTERS / 8; chunk++) {
+            int off = HEADER_LEN + chunk * SwarDenseMergeKernel.CHUNK_BYTES;
+            long current = SwarDenseMergeKernel.load48(buffer, off);
+            long max = current;
+            for (int i = 0; i < count; i++) {
+                max = SwarDenseMergeKernel.packedMax(max, SwarDenseMergeKernel.load48(sources[i], off));
+            }
+            if (max != current) {
+                ensureWritable();
+                SwarDenseMergeKernel.store48(buffer, off, max);
+                updateLanes(chunk, current, max);
+                updated = true;
+            }
+        }
+        return updated;
+    }
+
+    private static boolean isPlainArray(ByteBuffer buffer) {
+        return buffer.hasArray() && buffer.arrayOffset() == 0;
+    }
+
+    /**
+     * Check if the sparse runs sum up to exactly HLL_REGISTERS.
+     * <p>
+     * Values of VAL opcodes are always in range by the encoding, so only the run lengths need to be checked.
+     * This fails as soon as the runs exceed HLL_REGISTERS, which also rejects trailing bytes.
+     * </p>
+     */
+    private static boolean sparseIsWellFormed(ByteBuffer buffer) {
+        int p = HEADER_LEN;
+        int idx = 0;
+        int limit = buffer.limit();
+        while (p < limit) {
+            byte b = buffer.get(p);
+            if (sparseIsZero(b)) {
+                idx += sparseZeroLen(b);
+                p++;
+            } else if (sparseIsXZero(b)) {
+                if (p + 1 >= limit) {
+                    return false;
                 }
+                idx += sparseXZeroLen(b, buffer.get(p + 1));
+                p += 2;
             } else {
-                int p = HEADER_LEN;
-                int idx = 0;
-                while (p < hll.buffer.length) {
-                    long runlen;
-                    if (hll.sparseIsZero(hll.buffer[p])) {
-                        runlen = hll.sparseZeroLen(hll.buffer[p]);
-                        idx += runlen;
-                        p++;
-                    } else if (hll.sparseIsXZero(hll.buffer[p])) {
-                        runlen = hll.sparseXZeroLen(hll.buffer[p], hll.buffer[p + 1]);
-                        idx += runlen;
-                        p += 2;
-                    } else {
-                        runlen = hll.sparseValLen(hll.buffer[p]);
-                        int regVal = hll.sparseValValue(hll.buffer[p]);
-                        while (runlen-- > 0) {
-                            if (regVal > (max[idx] & 0xff)) {
-                                max[idx] = (byte)regVal;
-                            }
-                            idx++;
-                        }
-                        p++;
+                idx += sparseValLen(b);
+                p++;
+            }
+            if (idx > HLL_REGISTERS) {
+                return false;
+            }
+        }
+        return idx == HLL_REGISTERS;
+    }
+
+    /**
+     * @return true if any register is updated
+     */
+    private boolean denseMergeSparse(ByteBuffer sparse) {
+        boolean updated = false;
+        int p = HEADER_LEN;
+        int idx = 0;
+        while (p < sparse.limit()) {
+            if (sparseIsZero(sparse.get(p))) {
+                idx += sparseZeroLen(sparse.get(p));
+                p++;
+            } else if (sparseIsXZero(sparse.get(p))) {
+                idx += sparseXZeroLen(sparse.get(p), sparse.get(p + 1));
+                p += 2;
+            } else {
+                int runlen = sparseValLen(sparse.get(p));
+                int regVal = sparseValValue(sparse.get(p));
+                while (runlen-- > 0) {
+                    if (denseMaxRegister(idx, regVal) > 0) {
+                        updated = true;
                     }
+                    idx++;
                 }
-                if (idx != HLL_REGISTERS) {
-                    throw new RuntimeException("failed to merge");
+                p++;
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Unpack all registers into an array, one register per byte.
+     *
+     * @return the array which has {@link #registerSize()} registers
+     * @throws RuntimeException if the representation is corrupted
+     */
+    public byte[] unpackRegisters() {
+        byte[] registers = new byte[HLL_REGISTERS];
+        if (!maxRegisters(buffer, registers)) {
+            throw new RuntimeException("failed to unpack registers");
+        }
+        return registers;
+    }
+
+    /**
+     * Set each element of given array to the greater of itself and the corresponding register of this HLL.
+     *
+     * @param max the array which has {@link #registerSize()} registers, one register per byte
+     * @return false if the representation is corrupted
+     */
+    public boolean maxRegisters(byte[] max) {
+        return maxRegisters(buffer, max);
+    }
+
+    /**
+     * Set each element of given array to the greater of itself and the corresponding register of given representation.
+     * <p>
+     * The representation is read in place from index 0 to the limit of the buffer, either dense or sparse,
+     * and validated while reading. This is same as PFMERGE into a raw registers array as in Redis's multi-key PFCOUNT.
+     * The position and byte order of the buffer don't matter.
+     * </p>
+     *
+     * @param repr the buffer which contains HLL representation
+     * @param max the array which has {@link #registerSize()} registers, one register per byte
+     * @return false if the representation is invalid or corrupted. The array may be partially updated
+     */
+    public static boolean maxRegisters(ByteBuffer repr, byte[] max) {
+        // sparse runs are validated while reading
+        if (!isValidHeader(repr)) {
+            return false;
+        }
+        if (repr.order() != ByteOrder.LITTLE_ENDIAN) {
+            repr = repr.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        if (repr.get(magic.length) == HllEncoding.DENSE.value) {
+            int idx = 0;
+            for (int off = HEADER_LEN; off < HLL_DENSE_SIZE; off += SwarDenseMergeKernel.CHUNK_BYTES) {
+                long v = SwarDenseMergeKernel.load48(repr, off);
+                for (int i = 0; i < 8; i++) {
+                    byte reg = (byte)((v >>> (i * HLL_BITS)) & HLL_REGISTER_MAX);
+                    if (reg > max[idx]) {
+                        max[idx] = reg;
+                    }
+                    idx++;
+                }
+            }
+            return true;
+        }
+
+        int p = HEADER_LEN;
+        int idx = 0;
+        int limit = repr.limit();
+        while (p < limit) {
+            byte b = repr.get(p);
+            if (sparseIsZero(b)) {
+                idx += sparseZeroLen(b);
+                p++;
+            } else if (sparseIsXZero(b)) {
+                if (p + 1 >= limit) {
+                    return false;
                 }
+                idx += sparseXZeroLen(b, repr.get(p + 1));
+                p += 2;
+            } else {
+                int runlen = sparseValLen(b);
+                byte regVal = (byte)sparseValValue(b);
+                if (idx + runlen > HLL_REGISTERS) {
+                    return false;
+                }
+                while (runlen-- > 0) {
+                    if (regVal > max[idx]) {
+                        max[idx] = regVal;
+                    }
+                    idx++;
+                }
+                p++;
+            }
+            if (idx > HLL_REGISTERS) {
+                return false;
             }
         }
+        return idx == HLL_REGISTERS;
+    }
+
+    /**
+     * The histogram of dense register values.
+     * <p>
+     * If the histogram is tracked, the tracked one is returned as is so it must not be modified.
+     * Otherwise a new histogram is built by scanning registers.
+     * </p>
+     *
+     * @return histogram which has 64 slots
+     */
+    protected int[] denseRegHisto() {
+        if (regHisto == null) {
+            int[] histo = new int[64];
+            denseRegHisto(histo);
+            return histo;
+        }
+        if (!regHistoValid) {
+            Arrays.fill(regHisto, 0);
+            denseRegHisto(regHisto);
+            regHistoValid = true;
+        }
+        return regHisto;
+    }
+
+    /**
+     * Build the histogram of dense register values, decoding 8 registers per chunk load.
+     *
+     * @param regHisto histogram which has at least 64 slots
+     */
+    protected void denseRegHisto(int[] regHisto) {
+        for (int off = HEADER_LEN; off < HLL_DENSE_SIZE; off += SwarDenseMergeKernel.CHUNK_BYTES) {
+            long v = SwarDenseMergeKernel.load48(buffer, off);
+            regHisto[(int)v & HLL_REGISTER_MAX]++;
+            regHisto[(int)(v >>> 6) & HLL_REGISTER_MAX]++;
+            regHisto[(int)(v >>> 12) & HLL_REGISTER_MAX]++;
+            regHisto[(int)(v >>> 18) & HLL_REGISTER_MAX]++;
+            regHisto[(int)(v >>> 24) & HLL_REGISTER_MAX]++;
+            regHisto[(int)(v >>> 30) & HLL_REGISTER_MAX]++;
+            regHisto[(int)(v >>> 36) & HLL_REGISTER_MAX]++;
+            regHisto[(int)(v >>> 42) & HLL_REGISTER_MAX]++;
+        }
     }
 }
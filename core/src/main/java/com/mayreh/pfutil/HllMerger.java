@@ -0,0 +1,178 @@
+package com.mayreh.pfutil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Merges a large number of HLLs in parallel.
+ * <p>
+ * Sources are split into batches, each of which is merged into its own registers array by a fork-join task,
+ * then the arrays are combined by a tree reduction as the tasks are joined.
+ * Sources are never modified, and raw representations are read in place.
+ * </p>
+ * <pre>
+ * {@code
+ * HllMerger merger = HllMerger.newBuilder().build();
+ *
+ * byte[] merged = merger.merge(hlls);                // HllV4 or HllV5 instances
+ * byte[] merged = merger.mergeReprs(representations); // fetched from Redis
+ * }
+ * </pre>
+ * <p>
+ * The result is same as PFMERGE-ing all sources, except that it is encoded in sparse if it fits in sparse max bytes.
+ * </p>
+ */
+public final class HllMerger {
+    private final ForkJoinPool pool;
+    private final int batchSize;
+    private final int sparseMaxBytes;
+
+    private HllMerger(ForkJoinPool pool, int batchSize, int sparseMaxBytes) {
+        this.pool = pool;
+        this.batchSize = batchSize;
+        this.sparseMaxBytes = sparseMaxBytes;
+    }
+
+    /**
+     * Merge all sources into a Redis compatible representation.
+     *
+     * @param sources the sources to be merged, e.g. {@code HllV5} instances
+     * @return the byte array of the merged HLL representation
+     * @throws IllegalArgumentException if any source is invalid
+     */
+    public byte[] merge(List<? extends HllRegisterSource> sources) {
+        // copied to an array once, since the list may not support fast random access
+        HllRegisterSource[] array = sources.toArray(new HllRegisterSource[0]);
+        byte[] max = pool.invoke(new MergeTask(array, 0, array.length, batchSize));
+        return HllByteBuffer.encodeRegisters(max, sparseMaxBytes);
+    }
+
+    /**
+     * Merge all representations into a Redis compatible representation.
+     * <p>
+     * Null elements are treated as empty HLLs, as same as missing keys in Redis.
+     * </p>
+     *
+     * @param representations Redis HLL representations
+     * @return the byte array of the merged HLL representation
+     * @throws IllegalArgumentException if any representation is invalid
+     */
+    public byte[] mergeReprs(List<byte[]> representations) {
+        List<HllRegisterSource> sources = new ArrayList<>(representations.size());
+        for (byte[] representation : representations) {
+            if (representation != null) {
+                sources.add(HllRegisterSource.of(representation));
+            }
+        }
+        return merge(sources);
+    }
+
+    private static final class MergeTask extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final HllRegisterSource[] sources;
+        private final int from;
+        private final int to;
+        private final int batchSize;
+
+        MergeTask(HllRegisterSource[] sources, int from, int to, int batchSize) {
+            this.sources = sources;
+            this.from = from;
+            this.to = to;
+            this.batchSize = batchSize;
+        }
+
+        @Override
+        protected byte[] compute() {
+            if (to - from <= batchSize) {
+                byte[] max = new byte[HllByteBuffer.registerSize()];
+                for (int i = from; i < to; i++) {
+                    sources[i].maxRegisters(max);
+                }
+                return max;
+            }
+
+            int mid = (from + to) >>> 1;
+            MergeTask left = new MergeTask(sources, from, mid, batchSize);
+            MergeTask right = new MergeTask(sources, mid, to, batchSize);
+            right.fork();
+            byte[] max = left.compute();
+            byte[] other = right.join();
+            for (int i = 0; i < max.length; i++) {
+                if (other[i] > max[i]) {
+                    max[i] = other[i];
+                }
+            }
+            return max;
+        }
+    }
+
+    public static class HllMergerBuilder {
+        private ForkJoinPool pool = ForkJoinPool.commonPool();
+        private int batchSize = 256;
+        private int sparseMaxBytes = HllByteBuffer.DEFAULT_SPARSE_MAX_BYTES;
+
+        private HllMergerBuilder() {
+        }
+
+        /**
+         * Set the pool to run merge tasks. Default is {@link ForkJoinPool#commonPool()}.
+         *
+         * @param pool fork-join pool
+         * @return builder instance
+         */
+        public HllMergerBuilder withPool(ForkJoinPool pool) {
+            if (pool == null) {
+                throw new IllegalArgumentException("pool must not be null");
+            }
+            this.pool = pool;
+            return this;
+        }
+
+        /**
+         * Set the max number of sources which are merged sequentially by a task. Default is 256.
+         * <p>
+         * Each task takes a 16KB registers array, so larger batch takes less memory and less reduction,
+         * while smaller batch is balanced better across threads.
+         * </p>
+         *
+         * @param batchSize the number of sources per task
+         * @return builder instance
+         */
+        public HllMergerBuilder withBatchSize(int batchSize) {
+            if (batchSize <= 0) {
+                throw new IllegalArgumentException("batchSize must be positive");
+            }
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * Set the max length of sparse representation in bytes (including header) of the result.
+         * <p>
+         * Default is {@value HllByteBuffer#DEFAULT_SPARSE_MAX_BYTES}.
+         * Set 0 to always get dense representation, as same as PFMERGE of Redis.
+         * </p>
+         *
+         * @param sparseMaxBytes max bytes of sparse representation
+         * @return builder instance
+         */
+        public HllMergerBuilder withSparseMaxBytes(int sparseMaxBytes) {
+            if (sparseMaxBytes < 0) {
+                throw new IllegalArgumentException("sparseMaxBytes must be non-negative");
+            }
+            this.sparseMaxBytes = sparseMaxBytes;
+            return this;
+        }
+
+        public HllMerger build() {
+            return new HllMerger(pool, batchSize, sparseMaxBytes);
+        }
+    }
+
+    public static HllMergerBuilder newBuilder() {
+        return new HllMergerBuilder();
+    }
+}
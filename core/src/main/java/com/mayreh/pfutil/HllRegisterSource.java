@@ -0,0 +1,51 @@
+package com.mayreh.pfutil;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of HLL registers which can be merged by {@link HllMerger}.
+ * <p>
+ * Implemented by HLL classes of all versions, since Redis v4 and v5 share the same register layout.
+ * Raw representations can be used as sources by {@link #of(byte[])} without copying.
+ * </p>
+ */
+@FunctionalInterface
+public interface HllRegisterSource {
+    /**
+     * Set each element of given array to the greater of itself and the corresponding register of this source.
+     *
+     * @param max the array which has 16384 registers, one register per byte
+     * @throws IllegalArgumentException if the representation is invalid or corrupted
+     */
+    void maxRegisters(byte[] max);
+
+    /**
+     * Use given representation as a source without copying.
+     * <p>
+     * The representation is validated when it is read.
+     * </p>
+     *
+     * @param representation Redis HLL representation
+     * @return register source
+     */
+    static HllRegisterSource of(byte[] representation) {
+        return of(ByteBuffer.wrap(representation));
+    }
+
+    /**
+     * Use the representation in given buffer as a source without copying.
+     * <p>
+     * See {@link HllByteBuffer#maxRegisters(ByteBuffer, byte[])} for the details.
+     * </p>
+     *
+     * @param representation the buffer which contains Redis HLL representation
+     * @return register source
+     */
+    static HllRegisterSource of(ByteBuffer representation) {
+        return max -> {
+            if (!HllByteBuffer.maxRegisters(representation, max)) {
+                throw new IllegalArgumentException("Invalid HLL representation");
+            }
+        };
+    }
+}
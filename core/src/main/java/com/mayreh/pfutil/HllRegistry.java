@@ -0,0 +1,641 @@
+package com.mayreh.pfutil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Named HLLs with bounded memory usage, which is shared by {@code HllRegistryV4} and {@code HllRegistryV5}.
+ * <p>
+ * Each HLL is accounted by its retained bytes, so sparse HLLs take much less of the budget than dense ones.
+ * When the total exceeds the memory budget, least recently used HLLs are evicted to a spill file
+ * in Redis representation, and reloaded transparently on the next access.
+ * </p>
+ * <p>
+ * This class is thread safe. Operations on different keys run concurrently, while operations on the same key
+ * are serialized. The registry lock guards only the maps and the states of entries, and the spill file is
+ * read and written outside of it, so loading or evicting an HLL doesn't block operations on other keys.
+ * An operation on an HLL being loaded or evicted waits for it to complete.
+ * </p>
+ * <p>
+ * The spill file is a scratch file which is created on the first eviction and deleted on {@link #close()}.
+ * The space of an HLL is freed when it is reloaded or removed, and reused by later evictions,
+ * so the file grows only with the total size of HLLs spilled at the same time.
+ * </p>
+ *
+ * @param <H> the type of HLLs
+ */
+public final class HllRegistry<H> implements Closeable {
+    private static final String SPILL_FILE_PREFIX = "pfutil-";
+    private static final String SPILL_FILE_SUFFIX = ".spill";
+
+    /**
+     * Spill slots are allocated in multiples of this, so that freed slots fit more representations.
+     */
+    private static final int SPILL_SLOT_UNIT = 64;
+
+    /**
+     * Creates, restores, dumps and releases HLLs of the registry.
+     *
+     * @param <H> the type of HLLs
+     */
+    public interface HllFactory<H> {
+        /**
+         * Create an empty HLL.
+         *
+         * @return new HLL
+         */
+        H create();
+
+        /**
+         * Restore an HLL from the representation.
+         *
+         * @param representation the representation dumped by {@link #dump(Object)}
+         * @return restored HLL
+         */
+        H restore(byte[] representation);
+
+        /**
+         * Dump the representation of the HLL.
+         *
+         * @param hll the HLL
+         * @return the representation
+         */
+        byte[] dump(H hll);
+
+        /**
+         * Approximate number of bytes retained by the HLL.
+         *
+         * @param hll the HLL
+         * @return retained bytes
+         */
+        int retainedBytes(H hll);
+
+        /**
+         * Release the HLL, which is never used after released.
+         *
+         * @param hll the HLL
+         */
+        void release(H hll);
+    }
+
+    private enum State {
+        RESIDENT,
+        LOADING,
+        EVICTING,
+        SPILLED,
+    }
+
+    private final HllFactory<H> factory;
+    private final long memoryBudget;
+    private final Path spillDirectory;
+
+    /**
+     * Total retained bytes of resident HLLs
+     */
+    private final AtomicLong residentBytes = new AtomicLong();
+
+    /**
+     * The number of operations which pinned entries and are not completed yet
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private volatile boolean closed = false;
+
+    // below fields are guarded by this
+
+    private final Map<String, Entry<H>> entries = new HashMap<>();
+
+    /**
+     * Resident entries in access order, i.e. the eldest is the least recently used
+     */
+    private final LinkedHashMap<String, Entry<H>> resident = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Capacities of freed spill slots by their offset, where adjacent slots are coalesced
+     */
+    private final TreeMap<Long, Integer> freeSlots = new TreeMap<>();
+
+    /**
+     * Offsets of freed spill slots by their capacity
+     */
+    private final TreeMap<Integer, TreeSet<Long>> freeSlotsBySize = new TreeMap<>();
+
+    /**
+     * The number of entries being loaded or evicted, which are doing I/O on the spill file
+     */
+    private int transitions = 0;
+
+    private FileChannel spill = null;
+    private long spillEnd = 0;
+
+    /**
+     * An HLL and its spilled location.
+     * <p>
+     * The state and the spilled location are guarded by the lock of the registry.
+     * The HLL is loaded or evicted only by the thread which changed the state to LOADING or EVICTING,
+     * and is operated under the lock of the entry only while pinned.
+     * </p>
+     */
+    private static class Entry<H> {
+        private final AtomicInteger pins = new AtomicInteger();
+        private State state = State.RESIDENT;
+        private H hll = null;
+        private int retainedBytes = 0;
+        private long spillOffset = -1L;
+        private int spillLength = 0;
+        private int spillCapacity = 0;
+        private boolean removed = false;
+    }
+
+    /**
+     * Instantiate a registry.
+     *
+     * @param factory the factory of HLLs
+     * @param memoryBudget the max total retained bytes of HLLs in memory
+     * @param spillDirectory the directory to create the spill file in
+     */
+    public HllRegistry(HllFactory<H> factory, long memoryBudget, Path spillDirectory) {
+        this.factory = factory;
+        this.memoryBudget = memoryBudget;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Apply given function to the HLL of the key, which is created if absent.
+     * <p>
+     * The function is called exclusively with other operations on the same key.
+     * The HLL must not be retained after the function returns, since it may be evicted.
+     * The function may call other methods of the registry, except {@link #close()} which waits for the function.
+     * </p>
+     *
+     * @param key the key of the HLL
+     * @param function the function to be applied
+     * @param <T> the type of the result
+     * @return the result of the function
+     * @throws IllegalStateException if the registry is closed
+     */
+    public <T> T compute(String key, Function<H, T> function) {
+        return apply(key, true, function);
+    }
+
+    /**
+     * Apply given function to the HLL of the key if present.
+     * <p>
+     * See {@link #compute(String, Function)} for the details.
+     * </p>
+     *
+     * @param key the key of the HLL
+     * @param function the function to be applied
+     * @param <T> the type of the result
+     * @return the result of the function, or null if the key doesn't exist
+     * @throws IllegalStateException if the registry is closed
+     */
+    public <T> T computeIfPresent(String key, Function<H, T> function) {
+        return apply(key, false, function);
+    }
+
+    /**
+     * Remove the HLL of the key.
+     *
+     * @param key the key of the HLL
+     * @return true if the key existed
+     * @throws IllegalStateException if the registry is closed
+     */
+    public boolean remove(String key) {
+        Entry<H> entry;
+        synchronized (this) {
+            while (true) {
+                checkOpen();
+                entry = entries.get(key);
+                if (entry == null) {
+                    return false;
+                }
+                if (entry.state == State.RESIDENT || entry.state == State.SPILLED) {
+                    break;
+                }
+                awaitTransition();
+            }
+            entries.remove(key);
+            resident.remove(key);
+            if (entry.state == State.SPILLED) {
+                freeSpill(entry);
+            }
+        }
+        synchronized (entry) {
+            release(entry);
+        }
+        return true;
+    }
+
+    /**
+     * The number of keys in the registry, including spilled ones.
+     *
+     * @return the number of keys
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * The number of HLLs which are in memory.
+     *
+     * @return the number of resident HLLs
+     */
+    public synchronized int residentSize() {
+        return resident.size();
+    }
+
+    /**
+     * Total retained bytes of HLLs which are in memory.
+     * <p>
+     * This may exceed the memory budget temporarily while evicted HLLs are in use.
+     * HLLs being evicted are not counted.
+     * </p>
+     *
+     * @return resident bytes
+     */
+    public long residentBytes() {
+        return residentBytes.get();
+    }
+
+    /**
+     * The used length of the spill file in bytes, including freed slots in the middle which will be reused.
+     * <p>
+     * The file is not truncated when slots at the end are freed, so its size on disk may be up to the peak of this.
+     * </p>
+     *
+     * @return used length of the spill file
+     */
+    public synchronized long spillBytes() {
+        return spillEnd;
+    }
+
+    /**
+     * Release all HLLs and delete the spill file.
+     * <p>
+     * Operations in progress are completed before their HLLs are released,
+     * and operations after closed fail with {@link IllegalStateException}.
+     * The registry lock is released while waiting, so the operations in progress can still access the registry.
+     * </p>
+     *
+     * @throws IOException if failed to close the spill file
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // no entry is pinned or loaded after closed, so these only decrease
+        while (transitions > 0 || inFlight.get() > 0) {
+            awaitTransition();
+        }
+        for (Entry<H> entry : resident.values()) {
+            synchronized (entry) {
+                release(entry);
+            }
+        }
+        resident.clear();
+        entries.clear();
+        freeSlots.clear();
+        freeSlotsBySize.clear();
+        residentBytes.set(0L);
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    private <T> T apply(String key, boolean create, Function<H, T> function) {
+        while (true) {
+            Entry<H> entry = pin(key, create);
+            if (entry == null) {
+                return null;
+            }
+            try {
+                synchronized (entry) {
+                    // removed or closed after pinned. retry with new entry
+                    if (entry.removed) {
+                        continue;
+                    }
+                    try {
+                        return function.apply(entry.hll);
+                    } finally {
+                        int retainedBytes = factory.retainedBytes(entry.hll);
+                        residentBytes.addAndGet(retainedBytes - entry.retainedBytes);
+                        entry.retainedBytes = retainedBytes;
+                    }
+                }
+            } finally {
+                entry.pins.decrementAndGet();
+                if (inFlight.decrementAndGet() == 0 && closed) {
+                    synchronized (this) {
+                        // wake up close()
+                        notifyAll();
+                    }
+                }
+                if (residentBytes.get() > memoryBudget) {
+                    evict();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the entry of the key and make it resident, then pin it so that it is not evicted.
+     * The spill file is read outside of the registry lock.
+     */
+    private Entry<H> pin(String key, boolean create) {
+        Entry<H> entry;
+        synchronized (this) {
+            while (true) {
+                checkOpen();
+                entry = entries.get(key);
+                if (entry == null) {
+                    if (!create) {
+                        return null;
+                    }
+                    entry = new Entry<>();
+                    entry.hll = factory.create();
+                    entries.put(key, entry);
+                    makeResident(key, entry);
+                    return pinned(entry);
+                }
+                if (entry.state == State.RESIDENT) {
+                    // touch for LRU
+                    resident.get(key);
+                    return pinned(entry);
+                }
+                if (entry.state == State.SPILLED) {
+                    break;
+                }
+                awaitTransition();
+            }
+            entry.state = State.LOADING;
+            transitions++;
+        }
+
+        H hll;
+        try {
+            hll = factory.restore(readSpill(entry));
+        } catch (RuntimeException | Error e) {
+            // keep spilled so that it can be loaded again
+            synchronized (this) {
+                endTransition(entry, State.SPILLED);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            if (closed) {
+                endTransition(entry, State.SPILLED);
+                factory.release(hll);
+                throw new IllegalStateException("registry is closed");
+            }
+            freeSpill(entry);
+            entry.hll = hll;
+            endTransition(entry, State.RESIDENT);
+            makeResident(key, entry);
+            return pinned(entry);
+        }
+    }
+
+    /**
+     * Pin the resident entry. Must be called under the registry lock.
+     */
+    private Entry<H> pinned(Entry<H> entry) {
+        entry.pins.incrementAndGet();
+        inFlight.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Complete loading or evicting the entry, and wake up the threads waiting for it.
+     * Must be called under the registry lock.
+     */
+    private void endTransition(Entry<H> entry, State state) {
+        entry.state = state;
+        transitions--;
+        notifyAll();
+    }
+
+    /**
+     * Evict least recently used HLLs until resident bytes fit in the budget.
+     * Pinned entries are skipped since they are in use. The spill file is written outside of the registry lock.
+     */
+    private void evict() {
+        while (true) {
+            String key = null;
+            Entry<H> entry = null;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                Iterator<Map.Entry<String, Entry<H>>> it = resident.entrySet().iterator();
+                while (residentBytes.get() > memoryBudget && it.hasNext()) {
+                    Map.Entry<String, Entry<H>> e = it.next();
+                    if (e.getValue().pins.get() == 0) {
+                        key = e.getKey();
+                        entry = e.getValue();
+                        it.remove();
+                        break;
+                    }
+                }
+                if (entry == null) {
+                    return;
+                }
+                // not counted from now on, so that concurrent evictions don't pick more victims than needed
+                residentBytes.addAndGet(-entry.retainedBytes);
+                entry.state = State.EVICTING;
+                transitions++;
+            }
+
+            try {
+                byte[] repr = factory.dump(entry.hll);
+                long offset;
+                synchronized (this) {
+                    entry.spillCapacity = slotCapacity(repr.length);
+                    entry.spillLength = repr.length;
+                    offset = allocateSpill(entry.spillCapacity);
+                    entry.spillOffset = offset;
+                }
+                writeSpill(offset, repr);
+            } catch (RuntimeException | Error e) {
+                synchronized (this) {
+                    if (entry.spillOffset >= 0) {
+                        freeSpill(entry);
+                    }
+                    // put back to be released on close if closed meanwhile
+                    residentBytes.addAndGet(entry.retainedBytes);
+                    resident.put(key, entry);
+                    endTransition(entry, State.RESIDENT);
+                }
+                throw e;
+            }
+            synchronized (this) {
+                factory.release(entry.hll);
+                entry.hll = null;
+                entry.retainedBytes = 0;
+                endTransition(entry, State.SPILLED);
+            }
+        }
+    }
+
+    /**
+     * Add the entry to resident entries and account its retained bytes. Must be called under the registry lock.
+     */
+    private void makeResident(String key, Entry<H> entry) {
+        resident.put(key, entry);
+        entry.retainedBytes = factory.retainedBytes(entry.hll);
+        residentBytes.addAndGet(entry.retainedBytes);
+    }
+
+    /**
+     * Release the HLL of the removed entry. Must be called under the lock of the entry.
+     */
+    private void release(Entry<H> entry) {
+        entry.removed = true;
+        if (entry.hll != null) {
+            factory.release(entry.hll);
+            entry.hll = null;
+            residentBytes.addAndGet(-entry.retainedBytes);
+            entry.retainedBytes = 0;
+        }
+    }
+
+    /**
+     * Wait for loading or evicting in progress. Must be called under the registry lock.
+     */
+    private void awaitTransition() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for the spill file", e);
+        }
+    }
+
+    private static int slotCapacity(int length) {
+        return (length + SPILL_SLOT_UNIT - 1) / SPILL_SLOT_UNIT * SPILL_SLOT_UNIT;
+    }
+
+    /**
+     * Allocate a spill slot from the smallest freed slot which fits, or from the end of the file.
+     * Must be called under the registry lock.
+     */
+    private long allocateSpill(int capacity) {
+        Map.Entry<Integer, TreeSet<Long>> free = freeSlotsBySize.ceilingEntry(capacity);
+        if (free == null) {
+            long offset = spillEnd;
+            spillEnd += capacity;
+            return offset;
+        }
+        long offset = free.getValue().first();
+        removeFreeSlot(offset, free.getKey());
+        // the rest of the slot is split off
+        if (free.getKey() > capacity) {
+            addFreeSlot(offset + capacity, free.getKey() - capacity);
+        }
+        return offset;
+    }
+
+    /**
+     * Free the spill slot of the entry, coalescing it with adjacent freed slots.
+     * The used end of the file is lowered if the slot is at the end, while the file itself is not truncated.
+     * Must be called under the registry lock.
+     */
+    private void freeSpill(Entry<H> entry) {
+        long offset = entry.spillOffset;
+        int capacity = entry.spillCapacity;
+        entry.spillOffset = -1L;
+        entry.spillLength = 0;
+        entry.spillCapacity = 0;
+
+        Map.Entry<Long, Integer> prev = freeSlots.floorEntry(offset);
+        if (prev != null && prev.getKey() + prev.getValue() == offset) {
+            removeFreeSlot(prev.getKey(), prev.getValue());
+            offset = prev.getKey();
+            capacity += prev.getValue();
+        }
+        Integer next = freeSlots.get(offset + capacity);
+        if (next != null) {
+            removeFreeSlot(offset + capacity, next);
+            capacity += next;
+        }
+        if (offset + capacity == spillEnd) {
+            spillEnd = offset;
+        } else {
+            addFreeSlot(offset, capacity);
+        }
+    }
+
+    private void addFreeSlot(long offset, int capacity) {
+        freeSlots.put(offset, capacity);
+        freeSlotsBySize.computeIfAbsent(capacity, k -> new TreeSet<>()).add(offset);
+    }
+
+    private void removeFreeSlot(long offset, int capacity) {
+        freeSlots.remove(offset);
+        TreeSet<Long> offsets = freeSlotsBySize.get(capacity);
+        offsets.remove(offset);
+        if (offsets.isEmpty()) {
+            freeSlotsBySize.remove(capacity);
+        }
+    }
+
+    private byte[] readSpill(Entry<H> entry) {
+        byte[] repr = new byte[entry.spillLength];
+        ByteBuffer dst = ByteBuffer.wrap(repr);
+        try {
+            while (dst.hasRemaining()) {
+                if (spill.read(dst, entry.spillOffset + dst.position()) < 0) {
+                    throw new IOException("unexpected end of spill file");
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return repr;
+    }
+
+    private void writeSpill(long offset, byte[] repr) {
+        try {
+            FileChannel channel;
+            synchronized (this) {
+                if (spill == null) {
+                    Path path = Files.createTempFile(spillDirectory, SPILL_FILE_PREFIX, SPILL_FILE_SUFFIX);
+                    spill = FileChannel.open(path,
+                                             StandardOpenOption.READ,
+                                             StandardOpenOption.WRITE,
+                                             StandardOpenOption.DELETE_ON_CLOSE);
+                }
+                channel = spill;
+            }
+            ByteBuffer src = ByteBuffer.wrap(repr);
+            while (src.hasRemaining()) {
+                channel.write(src, offset + src.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("registry is closed");
+        }
+    }
+}
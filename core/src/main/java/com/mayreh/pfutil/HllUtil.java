@@ -1,9 +1,45 @@
 package com.mayreh.pfutil;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
+
 public class HllUtil {
+    /**
+     * The seed which Redis uses to hash HLL elements
+     */
+    public static final int HLL_HASH_SEED = 0xadc83b19;
+
+    private static final long MURMUR_M = 0xc6a4a7935bd1e995L;
+    private static final int MURMUR_R = 47;
+
+    private static final long[] POW10 = new long[19];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    /**
+     * 2^-k for each k, which are exact in double
+     */
+    private static final double[] POW2_NEG = new double[64];
+    static {
+        for (int i = 0; i < POW2_NEG.length; i++) {
+            POW2_NEG[i] = Math.scalb(1.0, -i);
+        }
+    }
+
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
 
     public static double pow2(int p) {
         if (p < 0) {
+            if (p > -POW2_NEG.length) {
+                return POW2_NEG[-p];
+            }
             return 1.0 / (1L << -p);
         }
         if (p > 0) {
@@ -17,15 +53,21 @@ public class HllUtil {
      * 64 bit version of MurmurHash2
      */
     public static long murmurHash64A(byte[] data, int seed) {
-        int len = data.length;
+        return murmurHash64A(data, 0, data.length, seed);
+    }
 
-        long m = 0xc6a4a7935bd1e995L;
-        int r = 47;
+    /*
+     * 64 bit version of MurmurHash2 over data[off, off + len)
+     */
+    public static long murmurHash64A(byte[] data, int off, int len, int seed) {
+        if (off < 0 || len < 0 || off > data.length - len) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", length: " + data.length);
+        }
 
-        long h = (seed & 0xffffffffL) ^ (len * m);
+        long h = (seed & 0xffffffffL) ^ (len * MURMUR_M);
 
-        int p = 0;
-        int end = len - (len & 7);
+        int p = off;
+        int end = off + len - (len & 7);
 
         while (p != end) {
             long k = (long)data[p] & 0xffL;
@@ -37,11 +79,11 @@ public class HllUtil {
             k |= ((long)data[p + 6] & 0xffL) << 48;
             k |= ((long)data[p + 7] & 0xffL) << 56;
 
-            k *= m;
-            k ^= k >>> r;
-            k *= m;
+            k *= MURMUR_M;
+            k ^= k >>> MURMUR_R;
+            k *= MURMUR_M;
             h ^= k;
-            h *= m;
+            h *= MURMUR_M;
 
             p += 8;
         }
@@ -55,13 +97,394 @@ public class HllUtil {
             case 2: h ^= ((long)data[p + 1] & 0xffL) << 8;
             case 1:
                 h ^= (long)data[p] & 0xffL;
-                h *= m;
+                h *= MURMUR_M;
+        }
+
+        h ^= h >>> MURMUR_R;
+        h *= MURMUR_M;
+        h ^= h >>> MURMUR_R;
+
+        return h;
+    }
+
+    /*
+     * 64 bit version of MurmurHash2 over the remaining bytes of the buffer.
+     * Works on both heap and direct buffers without copying, and the position is not changed.
+     */
+    public static long murmurHash64A(ByteBuffer data, int seed) {
+        if (data.hasArray()) {
+            return murmurHash64A(data.array(), data.arrayOffset() + data.position(), data.remaining(), seed);
+        }
+
+        int len = data.remaining();
+        boolean bigEndian = data.order() == ByteOrder.BIG_ENDIAN;
+
+        long h = (seed & 0xffffffffL) ^ (len * MURMUR_M);
+
+        int p = data.position();
+        int end = p + len - (len & 7);
+
+        while (p != end) {
+            long k = data.getLong(p);
+            if (bigEndian) {
+                k = Long.reverseBytes(k);
+            }
+
+            k *= MURMUR_M;
+            k ^= k >>> MURMUR_R;
+            k *= MURMUR_M;
+            h ^= k;
+            h *= MURMUR_M;
+
+            p += 8;
+        }
+
+        switch (len & 7) {
+            case 7: h ^= ((long)data.get(p + 6) & 0xffL) << 48;
+            case 6: h ^= ((long)data.get(p + 5) & 0xffL) << 40;
+            case 5: h ^= ((long)data.get(p + 4) & 0xffL) << 32;
+            case 4: h ^= ((long)data.get(p + 3) & 0xffL) << 24;
+            case 3: h ^= ((long)data.get(p + 2) & 0xffL) << 16;
+            case 2: h ^= ((long)data.get(p + 1) & 0xffL) << 8;
+            case 1:
+                h ^= (long)data.get(p) & 0xffL;
+                h *= MURMUR_M;
+        }
+
+        h ^= h >>> MURMUR_R;
+        h *= MURMUR_M;
+        h ^= h >>> MURMUR_R;
+
+        return h;
+    }
+
+    /*
+     * 64 bit version of MurmurHash2 over UTF-8 encoded bytes of given chars.
+     * Chars are encoded while hashing, so the result is same as murmurHash64A(data.toString().getBytes(UTF_8), seed)
+     * without materializing the byte array. (Malformed surrogates are encoded as '?' like String#getBytes)
+     */
+    public static long murmurHash64A(CharSequence data, int seed) {
+        int charLen = data.length();
+
+        int len = 0;
+        for (int i = 0; i < charLen; ) {
+            long encoded = utf8Encode(data, i);
+            len += utf8EncodedBytes(encoded);
+            i += utf8EncodedChars(encoded);
+        }
+
+        long h = (seed & 0xffffffffL) ^ (len * MURMUR_M);
+
+        long k = 0;
+        int shift = 0;
+        for (int i = 0; i < charLen; ) {
+            long encoded = utf8Encode(data, i);
+            i += utf8EncodedChars(encoded);
+
+            int n = utf8EncodedBytes(encoded);
+            while (n-- > 0) {
+                k |= (encoded & 0xffL) << shift;
+                encoded >>>= 8;
+                shift += 8;
+                if (shift == 64) {
+                    h = murmurMix(h, k);
+                    k = 0;
+                    shift = 0;
+                }
+            }
+        }
+
+        return murmurFinish(h, k, shift);
+    }
+
+    /*
+     * 64 bit version of MurmurHash2 over the decimal representation of given value.
+     * The result is same as murmurHash64A(String.valueOf(value).getBytes(), seed) without materializing the string.
+     */
+    public static long murmurHash64ADecimal(long value, int seed) {
+        // use negative value to handle Long.MIN_VALUE
+        long q = value < 0 ? value : -value;
+
+        int digits = 1;
+        while (digits < POW10.length && q <= -POW10[digits]) {
+            digits++;
+        }
+        int len = value < 0 ? digits + 1 : digits;
+
+        long h = (seed & 0xffffffffL) ^ (len * MURMUR_M);
+
+        long k = 0;
+        int shift = 0;
+        if (value < 0) {
+            k = '-';
+            shift = 8;
+        }
+        for (int i = digits - 1; i >= 0; i--) {
+            long digit = -((q / POW10[i]) % 10);
+            k |= ('0' + digit) << shift;
+            shift += 8;
+            if (shift == 64) {
+                h = murmurMix(h, k);
+                k = 0;
+                shift = 0;
+            }
+        }
+
+        return murmurFinish(h, k, shift);
+    }
+
+    /*
+     * 64 bit version of MurmurHash2 over the string representation of given UUID.
+     * The result is same as murmurHash64A(uuid.toString().getBytes(), seed) without materializing the string.
+     */
+    public static long murmurHash64A(UUID uuid, int seed) {
+        int len = 36;
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        long h = (seed & 0xffffffffL) ^ (len * MURMUR_M);
+
+        long k = 0;
+        int shift = 0;
+        int nibble = 0;
+        for (int i = 0; i < len; i++) {
+            long b;
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                b = '-';
+            } else {
+                long bits = nibble < 16 ? msb : lsb;
+                b = HEX_DIGITS[(int)(bits >>> ((15 - (nibble & 15)) * 4)) & 0xf];
+                nibble++;
+            }
+            k |= b << shift;
+            shift += 8;
+            if (shift == 64) {
+                h = murmurMix(h, k);
+                k = 0;
+                shift = 0;
+            }
+        }
+
+        return murmurFinish(h, k, shift);
+    }
+
+    /**
+     * Encode the code point at given index into UTF-8 in the same manner as String#getBytes.
+     * <p>
+     * Encoded bytes (first byte in lower 8 bits) are packed in lower 32 bits, followed by the number of
+     * encoded bytes in next 8 bits and the number of consumed chars in next 8 bits.
+     * </p>
+     */
+    private static long utf8Encode(CharSequence data, int i) {
+        char c = data.charAt(i);
+
+        int encoded;
+        int n;
+        int chars = 1;
+        if (c < 0x80) {
+            encoded = c;
+            n = 1;
+        } else if (c < 0x800) {
+            encoded = (0xc0 | (c >>> 6)) |
+                    ((0x80 | (c & 0x3f)) << 8);
+            n = 2;
+        } else if (Character.isHighSurrogate(c) &&
+                i + 1 < data.length() && Character.isLowSurrogate(data.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, data.charAt(i + 1));
+            encoded = (0xf0 | (cp >>> 18)) |
+                    ((0x80 | ((cp >>> 12) & 0x3f)) << 8) |
+                    ((0x80 | ((cp >>> 6) & 0x3f)) << 16) |
+                    ((0x80 | (cp & 0x3f)) << 24);
+            n = 4;
+            chars = 2;
+        } else if (Character.isSurrogate(c)) {
+            // malformed surrogate is replaced with '?'
+            encoded = '?';
+            n = 1;
+        } else {
+            encoded = (0xe0 | (c >>> 12)) |
+                    ((0x80 | ((c >>> 6) & 0x3f)) << 8) |
+                    ((0x80 | (c & 0x3f)) << 16);
+            n = 3;
+        }
+
+        return ((long)encoded & 0xffffffffL) | ((long)n << 32) | ((long)chars << 40);
+    }
+
+    private static int utf8EncodedBytes(long encoded) {
+        return (int)(encoded >>> 32) & 0xff;
+    }
+
+    private static int utf8EncodedChars(long encoded) {
+        return (int)(encoded >>> 40) & 0xff;
+    }
+
+    private static long murmurMix(long h, long k) {
+        k *= MURMUR_M;
+        k ^= k >>> MURMUR_R;
+        k *= MURMUR_M;
+        h ^= k;
+        h *= MURMUR_M;
+        return h;
+    }
+
+    /**
+     * Mix remaining tail bytes (less than 8 bytes) then finalize the hash
+     */
+    private static long murmurFinish(long h, long tail, int tailBits) {
+        if (tailBits > 0) {
+            h ^= tail;
+            h *= MURMUR_M;
         }
 
-        h ^= h >>> r;
-        h *= m;
-        h ^= h >>> r;
+        h ^= h >>> MURMUR_R;
+        h *= MURMUR_M;
+        h ^= h >>> MURMUR_R;
 
         return h;
     }
+
+    /**
+     * Create a hasher to compute MurmurHash64A of composite elements.
+     *
+     * @param seed hash seed. Use {@link #HLL_HASH_SEED} to add the result to HLL
+     * @return new hasher
+     */
+    public static Hasher newHasher(int seed) {
+        return new Hasher(seed);
+    }
+
+    /**
+     * Reusable hasher which computes MurmurHash64A of composite elements.
+     * <p>
+     * Parts are put one at a time and the result is same as hashing the concatenation of their bytes.
+     * Since MurmurHash64A depends on the total length from the very beginning, the parts are accumulated
+     * into the internal buffer which is reused after {@link #reset()}, so no allocation happens in steady state.
+     * </p>
+     * <p>
+     * NOTE: This class is NOT thread safe.
+     * </p>
+     */
+    public static final class Hasher {
+        private final int seed;
+        private byte[] buffer = new byte[64];
+        private int length = 0;
+
+        private Hasher(int seed) {
+            this.seed = seed;
+        }
+
+        public int seed() {
+            return seed;
+        }
+
+        /**
+         * Discard the parts put so far.
+         *
+         * @return this hasher
+         */
+        public Hasher reset() {
+            length = 0;
+            return this;
+        }
+
+        public Hasher putBytes(byte[] data) {
+            return putBytes(data, 0, data.length);
+        }
+
+        public Hasher putBytes(byte[] data, int off, int len) {
+            if (off < 0 || len < 0 || off > data.length - len) {
+                throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", length: " + data.length);
+            }
+            ensureCapacity(len);
+            System.arraycopy(data, off, buffer, length, len);
+            length += len;
+            return this;
+        }
+
+        /**
+         * Put the remaining bytes of given buffer. The position of the buffer is not changed.
+         *
+         * @param data the buffer
+         * @return this hasher
+         */
+        public Hasher putBytes(ByteBuffer data) {
+            int len = data.remaining();
+            ensureCapacity(len);
+            if (data.hasArray()) {
+                System.arraycopy(data.array(), data.arrayOffset() + data.position(), buffer, length, len);
+            } else {
+                for (int i = 0; i < len; i++) {
+                    buffer[length + i] = data.get(data.position() + i);
+                }
+            }
+            length += len;
+            return this;
+        }
+
+        /**
+         * Put 4 bytes of given value in little endian.
+         *
+         * @param value the value
+         * @return this hasher
+         */
+        public Hasher putInt(int value) {
+            ensureCapacity(4);
+            for (int i = 0; i < 4; i++) {
+                buffer[length++] = (byte)(value >>> (i * 8));
+            }
+            return this;
+        }
+
+        /**
+         * Put 8 bytes of given value in little endian.
+         *
+         * @param value the value
+         * @return this hasher
+         */
+        public Hasher putLong(long value) {
+            ensureCapacity(8);
+            for (int i = 0; i < 8; i++) {
+                buffer[length++] = (byte)(value >>> (i * 8));
+            }
+            return this;
+        }
+
+        /**
+         * Put UTF-8 encoded bytes of given chars in the same manner as {@code String#getBytes(UTF_8)}.
+         *
+         * @param data the chars
+         * @return this hasher
+         */
+        public Hasher putString(CharSequence data) {
+            int charLen = data.length();
+            for (int i = 0; i < charLen; ) {
+                long encoded = utf8Encode(data, i);
+                i += utf8EncodedChars(encoded);
+
+                int n = utf8EncodedBytes(encoded);
+                ensureCapacity(n);
+                while (n-- > 0) {
+                    buffer[length++] = (byte)encoded;
+                    encoded >>>= 8;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Compute MurmurHash64A of the parts put so far.
+         *
+         * @return the hash
+         */
+        public long hash() {
+            return murmurHash64A(buffer, 0, length, seed);
+        }
+
+        private void ensureCapacity(int len) {
+            if (length + len > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + len));
+            }
+        }
+    }
 }
@@ -0,0 +1,179 @@
+package com.mayreh.pfutil;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * File-backed store of fixed number of dense HLLs.
+ * <p>
+ * The file consists of fixed-size slots, each of which holds a Redis compatible dense representation
+ * (i.e. header + 12288 bytes registers) as is. The file is memory-mapped, so HLLs which are built on top of
+ * {@link #slot(int)} are updated in place, and reopening the store doesn't need to reload anything.
+ * </p>
+ * <pre>
+ * {@code
+ * try (MappedHllStore store = MappedHllStore.open(Paths.get("/path/to/file"), 1000000)) {
+ *     HllV5 hll = HllV5.newBuilder().withBuffer(store.slot(42)).build();
+ *     hll.pfAdd("elementA".getBytes());
+ *     hll.pfCount();
+ * }
+ * }
+ * </pre>
+ * <p>
+ * A slot is initialized to an empty HLL lazily on the first access, so the pages of untouched slots
+ * are never written (and not allocated on file systems which support sparse files).
+ * </p>
+ * <p>
+ * NOTE: Obtaining slots is thread safe, but HLLs on the same slot must not be updated concurrently.
+ * Since Java doesn't provide a way to unmap explicitly, the mappings are released when they are garbage collected
+ * after {@link #close()}.
+ * </p>
+ */
+public final class MappedHllStore implements Closeable {
+    private static final int SLOT_SIZE = HllByteBuffer.denseSize();
+
+    /**
+     * Each mapping must be smaller than 2GB
+     */
+    private static final int SLOTS_PER_MAPPING = Integer.MAX_VALUE / SLOT_SIZE;
+
+    private final FileChannel channel;
+    private final int slots;
+    private final MappedByteBuffer[] mappings;
+
+    private MappedHllStore(FileChannel channel, int slots) throws IOException {
+        this.channel = channel;
+        this.slots = slots;
+
+        int mappingCount = (slots + SLOTS_PER_MAPPING - 1) / SLOTS_PER_MAPPING;
+        this.mappings = new MappedByteBuffer[mappingCount];
+        for (int i = 0; i < mappingCount; i++) {
+            long position = (long)i * SLOTS_PER_MAPPING * SLOT_SIZE;
+            int slotsInMapping = Math.min(SLOTS_PER_MAPPING, slots - i * SLOTS_PER_MAPPING);
+            mappings[i] = channel.map(FileChannel.MapMode.READ_WRITE, position, (long)slotsInMapping * SLOT_SIZE);
+        }
+    }
+
+    /**
+     * Open the store file. The file is created if it doesn't exist.
+     * <p>
+     * The file is extended to hold given number of slots if it is smaller.
+     * Existing slots are kept as is.
+     * </p>
+     *
+     * @param path the path of the store file
+     * @param slots the number of HLLs in the store
+     * @return opened store
+     * @throws IOException if failed to open or map the file
+     */
+    public static MappedHllStore open(Path path, int slots) throws IOException {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("slots must be positive");
+        }
+        FileChannel channel = FileChannel.open(path,
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.READ,
+                                               StandardOpenOption.WRITE);
+        try {
+            return new MappedHllStore(channel, slots);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The size of each slot in bytes, which is the size of dense representation.
+     *
+     * @return slot size
+     */
+    public static int slotSize() {
+        return SLOT_SIZE;
+    }
+
+    /**
+     * The number of slots in the store.
+     *
+     * @return the number of slots
+     */
+    public int slots() {
+        return slots;
+    }
+
+    /**
+     * Get the view of specified slot, which can be passed to HLL builders' withBuffer.
+     * <p>
+     * The slot is initialized to an empty dense HLL if it has never been used.
+     * </p>
+     *
+     * @param index slot index
+     * @return the buffer which remaining bytes are the dense representation of the slot
+     */
+    public ByteBuffer slot(int index) {
+        if (index < 0 || index >= slots) {
+            throw new IndexOutOfBoundsException("slot index out of range: " + index);
+        }
+        ByteBuffer view = mappings[index / SLOTS_PER_MAPPING].duplicate();
+        int offset = (index % SLOTS_PER_MAPPING) * SLOT_SIZE;
+        ((Buffer)view).limit(offset + SLOT_SIZE);
+        ((Buffer)view).position(offset);
+        ByteBuffer slot = view.slice();
+
+        if (!isInitialized(slot)) {
+            initialize(slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Flush the changes of all slots to the storage device.
+     */
+    public void force() {
+        for (MappedByteBuffer mapping : mappings) {
+            mapping.force();
+        }
+    }
+
+    /**
+     * Flush the changes then close the file.
+     * <p>
+     * HLLs which are built on top of the slots must not be used after closed.
+     * </p>
+     *
+     * @throws IOException if failed to close the file
+     */
+    @Override
+    public void close() throws IOException {
+        force();
+        channel.close();
+    }
+
+    private static boolean isInitialized(ByteBuffer slot) {
+        byte[] magic = HllByteBuffer.magic();
+        for (int i = 0; i < magic.length; i++) {
+            if (slot.get(i) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized void initialize(ByteBuffer slot) {
+        // double check since other thread may have initialized the slot
+        if (isInitialized(slot)) {
+            return;
+        }
+        // registers are all zero, so valid cache of 0 is set as well
+        slot.put(HllByteBuffer.magic().length, HllEncoding.DENSE.value);
+        byte[] magic = HllByteBuffer.magic();
+        for (int i = 0; i < magic.length; i++) {
+            slot.put(i, magic[i]);
+        }
+    }
+}
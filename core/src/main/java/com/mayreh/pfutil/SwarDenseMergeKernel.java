@@ -0,0 +1,99 @@
+package com.mayreh.pfutil;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * SWAR (SIMD within a register) kernel for the dense representation.
+ * <p>
+ * 8 registers * 6 bits are packed LSB-first into exactly 6 bytes, so the register payload
+ * is processed as little-endian 48-bit chunks.
+ * Within a chunk, the "even" registers (0, 2, 4, 6) live at bit 0, 12, 24, 36 and
+ * the "odd" registers live 6 bits above them, so masking with LANES gives 4 registers
+ * with a 6-bit gap between each, which is used as the borrow guard when comparing
+ * registers lane-wise.
+ * </p>
+ * <p>
+ * Works on any (heap or direct) little-endian buffers, so this is also used for
+ * HLLs which are not backed by plain heap arrays.
+ * </p>
+ */
+final class SwarDenseMergeKernel implements DenseMergeKernel {
+    static final int CHUNK_BYTES = 6;
+
+    private static final int HLL_BITS = 6;
+    private static final long LANES = 0x03F03F03F03FL;
+    private static final long GUARDS = 0x040040040040L;
+
+    /**
+     * Number of payload bytes to be merged from all sources at once.
+     * Small enough to keep the target block in L1 while streaming sources.
+     */
+    private static final int BLOCK_BYTES = 1536;
+
+    @Override
+    public boolean isSupported() {
+        return true;
+    }
+
+    @Override
+    public void merge(byte[] target, byte[][] sources, int count, int off, int len) {
+        ByteBuffer[] sourceBuffers = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            sourceBuffers[i] = ByteBuffer.wrap(sources[i]).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        merge(ByteBuffer.wrap(target).order(ByteOrder.LITTLE_ENDIAN), sourceBuffers, count, off, len);
+    }
+
+    /**
+     * Merge registers of sources into target. All buffers must be in little-endian order.
+     */
+    static void merge(ByteBuffer target, ByteBuffer[] sources, int count, int off, int len) {
+        int end = off + len;
+        for (int blockStart = off; blockStart < end; blockStart += BLOCK_BYTES) {
+            int blockEnd = Math.min(blockStart + BLOCK_BYTES, end);
+            for (int i = 0; i < count; i++) {
+                mergeBlock(target, sources[i], blockStart, blockEnd);
+            }
+        }
+    }
+
+    private static void mergeBlock(ByteBuffer target, ByteBuffer source, int from, int to) {
+        for (int p = from; p < to; p += CHUNK_BYTES) {
+            long a = load48(target, p);
+            long max = packedMax(a, load48(source, p));
+            if (max != a) {
+                store48(target, p, max);
+            }
+        }
+    }
+
+    static long load48(ByteBuffer b, int off) {
+        return ((long)b.getInt(off) & 0xffffffffL) | ((long)b.getShort(off + 4) & 0xffffL) << 32;
+    }
+
+    static void store48(ByteBuffer b, int off, long v) {
+        b.putInt(off, (int)v);
+        b.putShort(off + 4, (short)(v >>> 32));
+    }
+
+    /**
+     * Lane-wise unsigned max of 4 6-bit registers laid out as LANES.
+     */
+    private static long laneMax(long a, long b) {
+        // guard bit of each lane survives iff a >= b in that lane
+        long ge = ((a | GUARDS) - b) & GUARDS;
+        // expand surviving guard bits to 6-bit lane masks
+        long mask = ge - (ge >>> HLL_BITS);
+        return (a & mask) | (b & ~mask);
+    }
+
+    /**
+     * Compute register-wise max of 8 packed registers.
+     */
+    static long packedMax(long a, long b) {
+        long even = laneMax(a & LANES, b & LANES);
+        long odd = laneMax((a >>> HLL_BITS) & LANES, (b >>> HLL_BITS) & LANES);
+        return even | (odd << HLL_BITS);
+    }
+}
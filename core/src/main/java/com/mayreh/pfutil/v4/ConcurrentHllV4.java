@@ -0,0 +1,176 @@
+package com.mayreh.pfutil.v4;
+
+import com.mayreh.pfutil.AtomicHllRegisters;
+import com.mayreh.pfutil.HllBufferAllocator;
+import com.mayreh.pfutil.HllByteBuffer;
+import com.mayreh.pfutil.HllRegisterSource;
+import com.mayreh.pfutil.HllUtil;
+
+/**
+ * Provides Redis v4 compatible HLL features which can be used from multiple threads without locks.
+ * <p>
+ * Registers are kept unpacked in {@link AtomicHllRegisters}, so PFADDs from many threads never block each other.
+ * {@link #pfCount()} and {@link #dumpRepr()} can be called concurrently with PFADDs,
+ * and reflect at least all PFADDs which completed before the call.
+ * </p>
+ * <p>
+ * The count and the registers are same as of {@link HllV4} which all the elements are added to.
+ * The representation is also same except that its cardinality cache is always populated,
+ * while {@link HllV4#dumpRepr()} after PFADD has the cache invalidated until {@link HllV4#pfCount()} is called.
+ * Unlike {@link HllV4}, registers always take 16KB regardless of the cardinality.
+ * </p>
+ */
+public class ConcurrentHllV4 {
+    private static final int HASH_SEED = HllUtil.HLL_HASH_SEED;
+
+    private final AtomicHllRegisters registers = new AtomicHllRegisters();
+    private final int sparseMaxBytes;
+
+    ConcurrentHllV4(int sparseMaxBytes) {
+        this.sparseMaxBytes = sparseMaxBytes;
+    }
+
+    /**
+     * Do PFCOUNT using same algorithm as of Redis v4.
+     *
+     * @return approximate distinct count
+     */
+    public long pfCount() {
+        return registers.count(HllhdrV4::hllCount);
+    }
+
+    /**
+     * Do PFADD using same algorithm as of Redis v4.
+     *
+     * @param element the element to be added to HLL
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(byte[] element) {
+        return pfAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    /**
+     * Do PFADD with the slice of given byte array as an element.
+     * <p>
+     * See {@link HllV4#pfAdd(byte[], int, int)} for the details.
+     * </p>
+     *
+     * @param element the byte array which contains the element
+     * @param off the offset of the element
+     * @param len the length of the element
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(byte[] element, int off, int len) {
+        return pfAddHash(HllUtil.murmurHash64A(element, off, len, HASH_SEED));
+    }
+
+    /**
+     * Do PFADD with UTF-8 encoded bytes of given chars as an element.
+     * <p>
+     * See {@link HllV4#pfAdd(CharSequence)} for the details.
+     * </p>
+     *
+     * @param element the element to be added to HLL
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(CharSequence element) {
+        return pfAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    /**
+     * Do PFADD with the decimal representation of given value as an element.
+     * <p>
+     * See {@link HllV4#pfAdd(long)} for the details.
+     * </p>
+     *
+     * @param element the element to be added to HLL
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(long element) {
+        return pfAddHash(HllUtil.murmurHash64ADecimal(element, HASH_SEED));
+    }
+
+    /**
+     * Do PFADD with pre-computed hash of an element.
+     * <p>
+     * See {@link HllV4#pfAddHash(long)} for the details.
+     * </p>
+     *
+     * @param hash the hash of the element
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAddHash(long hash) {
+        return registers.set(HllhdrV4.hllPatLen(hash));
+    }
+
+    /**
+     * Dump HLL representation as byte array.
+     * <p>
+     * The representation is built from the snapshot of registers, with the cardinality cache of the snapshot
+     * which is always valid. It is sparse if it fits in sparse max bytes, same as {@link HllV4#dumpRepr()}.
+     * </p>
+     *
+     * @return the byte array of the HLL representation
+     */
+    public byte[] dumpRepr() {
+        byte[] snapshot = registers.snapshot();
+        long count = HllhdrV4.hllCount(snapshot);
+
+        HllhdrV4 hllhdr = new HllhdrV4(HllBufferAllocator.heap());
+        hllhdr.setSparseMaxBytes(sparseMaxBytes);
+        hllhdr.hllSetAll(snapshot);
+        hllhdr.setCache(count);
+        return hllhdr.dump();
+    }
+
+    public static class ConcurrentHllV4Builder {
+        private byte[] representation = null;
+        private int sparseMaxBytes = HllByteBuffer.DEFAULT_SPARSE_MAX_BYTES;
+
+        private ConcurrentHllV4Builder() {
+        }
+
+        /**
+         * Restore HLL registers from representation byte array
+         *
+         * @param representation Redis v4 HLL representation
+         * @return builder instance
+         */
+        public ConcurrentHllV4Builder withRepr(byte[] representation) {
+            this.representation = representation;
+            return this;
+        }
+
+        /**
+         * Set the max length of sparse representation in bytes (including header), which is used on {@link #dumpRepr()}.
+         * <p>
+         * Same as hll-sparse-max-bytes config of Redis. Default is {@value HllByteBuffer#DEFAULT_SPARSE_MAX_BYTES}.
+         * </p>
+         *
+         * @param sparseMaxBytes max bytes of sparse representation
+         * @return builder instance
+         */
+        public ConcurrentHllV4Builder withSparseMaxBytes(int sparseMaxBytes) {
+            if (sparseMaxBytes < 0) {
+                throw new IllegalArgumentException("sparseMaxBytes must be non-negative");
+            }
+            this.sparseMaxBytes = sparseMaxBytes;
+            return this;
+        }
+
+        public ConcurrentHllV4 build() {
+            ConcurrentHllV4 hll = new ConcurrentHllV4(sparseMaxBytes);
+            if (representation != null) {
+                // validated and decoded in a single pass without copying the representation
+                byte[] registers = hll.registers.snapshot();
+                HllRegisterSource.of(representation).maxRegisters(registers);
+                hll.registers.setAll(registers);
+            }
+            return hll;
+        }
+    }
+
+    public static ConcurrentHllV4Builder newBuilder() {
+        return new ConcurrentHllV4Builder();
+    }
+}
@@ -1,13 +1,26 @@
 package com.mayreh.pfutil.v4;
 
+import com.mayreh.pfutil.HllBufferAllocator;
 import com.mayreh.pfutil.HllByteBuffer;
 import com.mayreh.pfutil.HllEncoding;
 import com.mayreh.pfutil.HllUtil;
 
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.UUID;
+
 /**
  * A HLL representation compatible with Redis 4 (LogLog-Beta)
  */
 class HllhdrV4 extends HllByteBuffer {
+    private static final int HASH_SEED = HllUtil.HLL_HASH_SEED;
+
+    /**
+     * Max register value which the sum of 2^-register can be computed exactly in double
+     */
+    private static final int EXACT_SUM_MAX_REGISTER = 38;
 
     HllhdrV4() {
         super();
@@ -17,14 +30,20 @@ class HllhdrV4 extends HllByteBuffer {
         super(repr);
     }
 
-    private static class PatLenResult {
-        private final int len; // the length of the pattern 000..1 in the element hash
-        private final int reg; // the register index the element hashes to
+    HllhdrV4(HllBufferAllocator allocator) {
+        super(allocator);
+    }
 
-        private PatLenResult(int len, int reg) {
-            this.len = len;
-            this.reg = reg;
-        }
+    HllhdrV4(byte[] repr, HllBufferAllocator allocator) {
+        super(repr, allocator);
+    }
+
+    HllhdrV4(ByteBuffer buffer, HllBufferAllocator allocator) {
+        super(buffer, allocator);
+    }
+
+    HllhdrV4(ByteBuffer buffer, HllBufferAllocator allocator, boolean copyOnWrite) {
+        super(buffer, allocator, copyOnWrite);
     }
 
     static class CountResult {
@@ -49,8 +68,11 @@ class HllhdrV4 extends HllByteBuffer {
         }
     }
 
-    private PatLenResult hllPatLen(byte[] element) {
-        long hash = HllUtil.murmurHash64A(element, 0xadc83b19);
+    /**
+     * Returns the register index the element hashes to and the length of the pattern 000..1
+     * in the element hash, packed by {@link #patLen(int, int)}.
+     */
+    static int hllPatLen(long hash) {
         long index = hash & registerBitsMask();
         hash |= (1L << 63);
 
@@ -61,9 +83,12 @@ class HllhdrV4 extends HllByteBuffer {
             count++;
             bit <<= 1;
         }
-        return new PatLenResult(count, (int)index);
+        return patLen((int)index, count);
     }
 
+    /**
+     * Sum by scanning registers one by one, which is needed only if {@link #histoSum(int[])} can't be used.
+     */
     private SumResult denseSum() {
         int ez = 0;
         double E = 0;
@@ -79,26 +104,50 @@ class HllhdrV4 extends HllByteBuffer {
         return new SumResult(ez, E, true);
     }
 
+    /**
+     * Sum from the histogram of register values.
+     * <p>
+     * Each partial sum is a multiple of 2^-38 and at most 2^14 if all registers are less than 39,
+     * so it fits in the mantissa and the sum is exact, i.e. same as {@link #denseSum()} regardless of the order.
+     * </p>
+     *
+     * @return the sum, or null if the exactness is not guaranteed
+     */
+    private static SumResult histoSum(int[] regHisto) {
+        for (int i = EXACT_SUM_MAX_REGISTER + 1; i < regHisto.length; i++) {
+            if (regHisto[i] != 0) {
+                return null;
+            }
+        }
+        int ez = regHisto[0];
+        double E = 0;
+        for (int i = 1; i <= EXACT_SUM_MAX_REGISTER; i++) {
+            E += regHisto[i] * HllUtil.pow2(-i);
+        }
+        E += ez;
+        return new SumResult(ez, E, true);
+    }
+
     private SumResult sparseSum() {
         double E = 0.0;
         int ez = 0;
         int idx = 0;
 
         int p = headerLen();
-        while (p < buffer.length) {
-            if (sparseIsZero(buffer[p])) {
-                int runlen = sparseZeroLen(buffer[p]);
+        while (p < buffer.limit()) {
+            if (sparseIsZero(buffer.get(p))) {
+                int runlen = sparseZeroLen(buffer.get(p));
                 idx += runlen;
                 ez += runlen;
                 p++;
-            } else if (sparseIsXZero(buffer[p])) {
-                int runlen = sparseXZeroLen(buffer[p], buffer[p + 1]);
+            } else if (sparseIsXZero(buffer.get(p))) {
+                int runlen = sparseXZeroLen(buffer.get(p), buffer.get(p + 1));
                 idx += runlen;
                 ez += runlen;
                 p += 2;
             } else {
-                int runlen = sparseValLen(buffer[p]);
-                int regVal = sparseValValue(buffer[p]);
+                int runlen = sparseValLen(buffer.get(p));
+                int regVal = sparseValValue(buffer.get(p));
                 idx += runlen;
                 E += HllUtil.pow2(-regVal) * runlen;
                 p++;
@@ -113,9 +162,33 @@ class HllhdrV4 extends HllByteBuffer {
     }
 
     boolean hllAdd(byte[] element) {
-        PatLenResult patLen = hllPatLen(element);
+        return hllAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    boolean hllAdd(byte[] element, int off, int len) {
+        return hllAddHash(HllUtil.murmurHash64A(element, off, len, HASH_SEED));
+    }
 
-        int retVal = hllSet(patLen.reg, patLen.len);
+    boolean hllAdd(ByteBuffer element) {
+        return hllAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    boolean hllAdd(CharSequence element) {
+        return hllAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    boolean hllAddDecimal(long element) {
+        return hllAddHash(HllUtil.murmurHash64ADecimal(element, HASH_SEED));
+    }
+
+    boolean hllAdd(UUID element) {
+        return hllAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    boolean hllAddHash(long hash) {
+        int patLen = hllPatLen(hash);
+
+        int retVal = hllSet(patLenRegNum(patLen), patLenLen(patLen));
         if (retVal > 0) {
             invalidateCache();
             return true;
@@ -124,14 +197,99 @@ class HllhdrV4 extends HllByteBuffer {
         }
     }
 
+    boolean hllAddHashes(long[] hashes, int off, int len) {
+        return hllAddAllHashes(hashes, off, len) > 0;
+    }
+
+    boolean hllAddHashes(LongBuffer hashes) {
+        int len = hashes.remaining();
+        if (isLargeBatch(len)) {
+            byte[] max = newBatchMax();
+            for (int i = 0; i < len; i++) {
+                accumulatePatLen(max, hllPatLen(hashes.get(hashes.position() + i)));
+            }
+            return invalidateIfChanged(hllSetAll(max)) > 0;
+        }
+
+        int[] patLens = new int[len];
+        for (int i = 0; i < len; i++) {
+            patLens[i] = hllPatLen(hashes.get(hashes.position() + i));
+        }
+        return invalidateIfChanged(hllSetAll(patLens, len)) > 0;
+    }
+
+    int hllAddAllHashes(long[] hashes, int off, int len) {
+        if (off < 0 || len < 0 || off > hashes.length - len) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", length: " + hashes.length);
+        }
+
+        if (isLargeBatch(len)) {
+            byte[] max = newBatchMax();
+            for (int i = 0; i < len; i++) {
+                accumulatePatLen(max, hllPatLen(hashes[off + i]));
+            }
+            return invalidateIfChanged(hllSetAll(max));
+        }
+
+        int[] patLens = new int[len];
+        for (int i = 0; i < len; i++) {
+            patLens[i] = hllPatLen(hashes[off + i]);
+        }
+        return invalidateIfChanged(hllSetAll(patLens, len));
+    }
+
+    int hllAddAll(byte[][] elements) {
+        if (isLargeBatch(elements.length)) {
+            byte[] max = newBatchMax();
+            for (byte[] element : elements) {
+                accumulatePatLen(max, hllPatLen(HllUtil.murmurHash64A(element, HASH_SEED)));
+            }
+            return invalidateIfChanged(hllSetAll(max));
+        }
+
+        int[] patLens = new int[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            patLens[i] = hllPatLen(HllUtil.murmurHash64A(elements[i], HASH_SEED));
+        }
+        return invalidateIfChanged(hllSetAll(patLens, patLens.length));
+    }
+
+    int hllAddAll(Iterable<byte[]> elements) {
+        if (elements instanceof Collection && isLargeBatch(((Collection<?>)elements).size())) {
+            byte[] max = newBatchMax();
+            for (byte[] element : elements) {
+                accumulatePatLen(max, hllPatLen(HllUtil.murmurHash64A(element, HASH_SEED)));
+            }
+            return invalidateIfChanged(hllSetAll(max));
+        }
+
+        int[] patLens = new int[16];
+        int len = 0;
+        for (byte[] element : elements) {
+            if (len == patLens.length) {
+                patLens = Arrays.copyOf(patLens, patLens.length * 2);
+            }
+            patLens[len++] = hllPatLen(HllUtil.murmurHash64A(element, HASH_SEED));
+        }
+        return invalidateIfChanged(hllSetAll(patLens, len));
+    }
+
+    private int invalidateIfChanged(int changed) {
+        if (changed > 0) {
+            invalidateCache();
+        }
+        return changed;
+    }
+
     CountResult hllCount() {
-        double m = registerSize();
-        double alpha = 0.7213 / (1 + 1.079 / m);
         SumResult sum;
 
-        byte encoding = buffer[magic().length];
+        byte encoding = buffer.get(magic().length);
         if (encoding == HllEncoding.DENSE.value) {
-            sum = denseSum();
+            sum = histoSum(denseRegHisto());
+            if (sum == null) {
+                sum = denseSum();
+            }
         } else if (encoding == HllEncoding.SPARSE.value) {
             sum = sparseSum();
             if (!sum.valid) {
@@ -141,7 +299,62 @@ class HllhdrV4 extends HllByteBuffer {
             throw new IllegalStateException("invalid encoding : " + encoding);
         }
 
-        double ez = sum.ez;
+        return new CountResult(hllCount(sum.ez, sum.E), true);
+    }
+
+    /**
+     * Allocate an array of zero registers, one register per byte.
+     *
+     * @return registers array
+     */
+    static byte[] newRegisters() {
+        return new byte[registerSize()];
+    }
+
+    /**
+     * Estimate the cardinality from registers, one register per byte.
+     * <p>
+     * The result is same as of the dense representation which has same registers.
+     * </p>
+     *
+     * @param registers registers array
+     * @return approximate distinct count
+     */
+    static long hllCount(byte[] registers) {
+        int[] regHisto = new int[64];
+        for (byte register : registers) {
+            regHisto[register]++;
+        }
+        SumResult sum = histoSum(regHisto);
+        if (sum == null) {
+            // sum in register order as same as dense representation
+            int ez = 0;
+            double E = 0;
+            for (byte register : registers) {
+                if (register == 0) {
+                    ez++;
+                } else {
+                    E += HllUtil.pow2(-register);
+                }
+            }
+            E += ez;
+            sum = new SumResult(ez, E, true);
+        }
+        return hllCount(sum.ez, sum.E);
+    }
+
+    /**
+     * Estimate the cardinality from the number of zero registers and the sum of 2^-register.
+     *
+     * @param zeroRegisters the number of registers which are zero
+     * @param E the sum of 2^-register over all registers
+     * @return approximate distinct count
+     */
+    static long hllCount(int zeroRegisters, double E) {
+        double m = registerSize();
+        double alpha = 0.7213 / (1 + 1.079 / m);
+
+        double ez = zeroRegisters;
         double zl = Math.log(ez + 1);
         double beta = -0.370393911 * ez +
                 0.070471823 * zl +
@@ -152,7 +365,7 @@ class HllhdrV4 extends HllByteBuffer {
                 -0.005384159 * Math.pow(zl, 6) +
                 0.00042419 * Math.pow(zl, 7);
 
-        double result = Math.round(alpha * m * (m - ez) * (1 / (sum.E + beta)));
-        return new CountResult((long)result, true);
+        double result = Math.round(alpha * m * (m - ez) * (1 / (E + beta)));
+        return (long)result;
     }
 }
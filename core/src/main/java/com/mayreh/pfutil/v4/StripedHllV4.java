@@ -0,0 +1,255 @@
+package com.mayreh.pfutil.v4;
+
+import com.mayreh.pfutil.HllBufferAllocator;
+import com.mayreh.pfutil.HllByteBuffer;
+import com.mayreh.pfutil.HllUtil;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Provides Redis v4 compatible HLL features for write-mostly use from multiple threads.
+ * <p>
+ * Like {@link java.util.concurrent.atomic.LongAdder}, PFADDs are spread over stripes, each of which is
+ * an ordinary HLL guarded by its own lock, so threads rarely contend with each other.
+ * It starts with a single stripe, and the number of stripes is doubled only when contention is observed,
+ * up to the max stripes (the number of available processors by default).
+ * Each stripe starts in sparse representation, so unused stripes take little memory.
+ * </p>
+ * <p>
+ * {@link #pfCount()} and {@link #dumpRepr()} fold all stripes by PFMERGE, so they are much more expensive than PFADD.
+ * The result is same as PFMERGE-ing the HLLs which the elements are added to,
+ * and reflects at least all PFADDs which completed before the call.
+ * </p>
+ */
+public class StripedHllV4 {
+    private static final int HASH_SEED = HllUtil.HLL_HASH_SEED;
+
+    /**
+     * Per-thread hash to choose a stripe, which is changed on contention
+     */
+    private static final ThreadLocal<int[]> PROBE =
+            ThreadLocal.withInitial(() -> new int[] { ThreadLocalRandom.current().nextInt() | 1 });
+
+    private static class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final HllhdrV4 hllhdr;
+
+        Stripe(int sparseMaxBytes) {
+            hllhdr = new HllhdrV4(HllBufferAllocator.heap());
+            hllhdr.setSparseMaxBytes(sparseMaxBytes);
+        }
+    }
+
+    private final int sparseMaxBytes;
+    private final int maxStripes;
+    private volatile Stripe[] stripes;
+
+    StripedHllV4(int sparseMaxBytes, int maxStripes) {
+        this.sparseMaxBytes = sparseMaxBytes;
+        this.maxStripes = maxStripes;
+        this.stripes = new Stripe[] { new Stripe(sparseMaxBytes) };
+    }
+
+    /**
+     * Do PFCOUNT of the union of all stripes using same algorithm as of Redis v4.
+     *
+     * @return approximate distinct count
+     */
+    public long pfCount() {
+        return fold().hllCount().count;
+    }
+
+    /**
+     * Do PFADD using same algorithm as of Redis v4.
+     *
+     * @param element the element to be added to HLL
+     * @return whether the register of the stripe was updated or not
+     */
+    public boolean pfAdd(byte[] element) {
+        return pfAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    /**
+     * Do PFADD with the slice of given byte array as an element.
+     * <p>
+     * See {@link HllV4#pfAdd(byte[], int, int)} for the details.
+     * </p>
+     *
+     * @param element the byte array which contains the element
+     * @param off the offset of the element
+     * @param len the length of the element
+     * @return whether the register of the stripe was updated or not
+     */
+    public boolean pfAdd(byte[] element, int off, int len) {
+        return pfAddHash(HllUtil.murmurHash64A(element, off, len, HASH_SEED));
+    }
+
+    /**
+     * Do PFADD with UTF-8 encoded bytes of given chars as an element.
+     * <p>
+     * See {@link HllV4#pfAdd(CharSequence)} for the details.
+     * </p>
+     *
+     * @param element the element to be added to HLL
+     * @return whether the register of the stripe was updated or not
+     */
+    public boolean pfAdd(CharSequence element) {
+        return pfAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    /**
+     * Do PFADD with the decimal representation of given value as an element.
+     * <p>
+     * See {@link HllV4#pfAdd(long)} for the details.
+     * </p>
+     *
+     * @param element the element to be added to HLL
+     * @return whether the register of the stripe was updated or not
+     */
+    public boolean pfAdd(long element) {
+        return pfAddHash(HllUtil.murmurHash64ADecimal(element, HASH_SEED));
+    }
+
+    /**
+     * Do PFADD with pre-computed hash of an element.
+     * <p>
+     * See {@link HllV4#pfAddHash(long)} for the details.
+     * </p>
+     *
+     * @param hash the hash of the element
+     * @return whether the register of the stripe was updated or not
+     */
+    public boolean pfAddHash(long hash) {
+        int[] probe = PROBE.get();
+        Stripe[] current = stripes;
+        Stripe stripe = current[probe[0] & (current.length - 1)];
+
+        if (!stripe.lock.tryLock()) {
+            // contended. move to another stripe, adding stripes if possible
+            probe[0] = advanceProbe(probe[0]);
+            current = grow(current);
+            stripe = current[probe[0] & (current.length - 1)];
+            stripe.lock.lock();
+        }
+        try {
+            return stripe.hllhdr.hllAddHash(hash);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Dump the representation of the union of all stripes as byte array.
+     * <p>
+     * The byte array is same as one that can be retrieved by GET after PFMERGE-ing the stripes in Redis,
+     * with the cardinality cache.
+     * </p>
+     *
+     * @return the byte array of the HLL representation
+     */
+    public byte[] dumpRepr() {
+        HllhdrV4 union = fold();
+        union.setCache(union.hllCount().count);
+        return union.dump();
+    }
+
+    /**
+     * The number of stripes at the moment, for monitoring contention.
+     *
+     * @return the number of stripes
+     */
+    public int stripes() {
+        return stripes.length;
+    }
+
+    private HllhdrV4 fold() {
+        HllhdrV4 union = new HllhdrV4(HllBufferAllocator.heap());
+        union.setSparseMaxBytes(sparseMaxBytes);
+        for (Stripe stripe : stripes) {
+            stripe.lock.lock();
+            try {
+                union.hllMerge(stripe.hllhdr);
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+        return union;
+    }
+
+    private Stripe[] grow(Stripe[] current) {
+        if (current.length >= maxStripes) {
+            return current;
+        }
+        synchronized (this) {
+            // double check since other thread may have grown the stripes
+            if (stripes == current) {
+                Stripe[] grown = new Stripe[current.length << 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                for (int i = current.length; i < grown.length; i++) {
+                    grown[i] = new Stripe(sparseMaxBytes);
+                }
+                stripes = grown;
+            }
+            return stripes;
+        }
+    }
+
+    private static int advanceProbe(int probe) {
+        // xorshift
+        probe ^= probe << 13;
+        probe ^= probe >>> 17;
+        probe ^= probe << 5;
+        return probe;
+    }
+
+    public static class StripedHllV4Builder {
+        private int sparseMaxBytes = HllByteBuffer.DEFAULT_SPARSE_MAX_BYTES;
+        private int maxStripes = Runtime.getRuntime().availableProcessors();
+
+        private StripedHllV4Builder() {
+        }
+
+        /**
+         * Set the max length of sparse representation in bytes (including header) of each stripe.
+         * <p>
+         * Same as hll-sparse-max-bytes config of Redis. Default is {@value HllByteBuffer#DEFAULT_SPARSE_MAX_BYTES}.
+         * </p>
+         *
+         * @param sparseMaxBytes max bytes of sparse representation
+         * @return builder instance
+         */
+        public StripedHllV4Builder withSparseMaxBytes(int sparseMaxBytes) {
+            if (sparseMaxBytes < 0) {
+                throw new IllegalArgumentException("sparseMaxBytes must be non-negative");
+            }
+            this.sparseMaxBytes = sparseMaxBytes;
+            return this;
+        }
+
+        /**
+         * Set the max number of stripes, which bounds the memory to about 12KB per stripe.
+         * <p>
+         * The number is rounded up to a power of two. Default is the number of available processors.
+         * </p>
+         *
+         * @param maxStripes max number of stripes
+         * @return builder instance
+         */
+        public StripedHllV4Builder withMaxStripes(int maxStripes) {
+            if (maxStripes <= 0) {
+                throw new IllegalArgumentException("maxStripes must be positive");
+            }
+            this.maxStripes = maxStripes;
+            return this;
+        }
+
+        public StripedHllV4 build() {
+            return new StripedHllV4(sparseMaxBytes, maxStripes);
+        }
+    }
+
+    public static StripedHllV4Builder newBuilder() {
+        return new StripedHllV4Builder();
+    }
+}
@@ -0,0 +1,273 @@
+package com.mayreh.pfutil.v5;
+
+import com.mayreh.pfutil.HllBufferAllocator;
+import com.mayreh.pfutil.HllByteBuffer;
+import com.mayreh.pfutil.HllRegistry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.function.Function;
+
+/**
+ * Named Redis v5 compatible HLLs with bounded memory usage.
+ * <p>
+ * Each HLL is accounted by its retained bytes, so sparse HLLs take much less of the budget than dense ones.
+ * When the total exceeds the memory budget, least recently used HLLs are evicted to a spill file
+ * in Redis representation, and reloaded transparently on the next access.
+ * </p>
+ * <pre>
+ * {@code
+ * try (HllRegistryV5 registry = HllRegistryV5.newBuilder()
+ *         .withMemoryBudget(256L * 1024 * 1024)
+ *         .withSpillDirectory(Paths.get("/path/to/dir"))
+ *         .build()) {
+ *     registry.pfAdd("key", "elementA".getBytes());
+ *     registry.pfCount("key");
+ * }
+ * }
+ * </pre>
+ * <p>
+ * This class is thread safe. Operations on different keys run concurrently, while operations on the same key
+ * are serialized. See {@link HllRegistry} for the details.
+ * </p>
+ * <p>
+ * NOTE: Keys and the locations of spilled HLLs are always kept in memory, and not counted in the budget.
+ * </p>
+ */
+public final class HllRegistryV5 implements Closeable {
+    private final HllRegistry<HllV5> registry;
+
+    private HllRegistryV5(long memoryBudget, int sparseMaxBytes, Path spillDirectory) {
+        registry = new HllRegistry<>(new HllRegistry.HllFactory<HllV5>() {
+            @Override
+            public HllV5 create() {
+                return new HllV5(sparseMaxBytes, HllBufferAllocator.heap());
+            }
+
+            @Override
+            public HllV5 restore(byte[] representation) {
+                return new HllV5(representation, sparseMaxBytes, HllBufferAllocator.heap());
+            }
+
+            @Override
+            public byte[] dump(HllV5 hll) {
+                return hll.dumpRepr();
+            }
+
+            @Override
+            public int retainedBytes(HllV5 hll) {
+                return hll.retainedBytes();
+            }
+
+            @Override
+            public void release(HllV5 hll) {
+                hll.close();
+            }
+        }, memoryBudget, spillDirectory);
+    }
+
+    /**
+     * Do PFADD to the HLL of the key, which is created if absent.
+     *
+     * @param key the key of the HLL
+     * @param element the element to be added to HLL
+     * @return true if the HLL is updated
+     */
+    public boolean pfAdd(String key, byte[] element) {
+        return compute(key, hll -> hll.pfAdd(element));
+    }
+
+    /**
+     * Do PFADD with multiple elements in batch to the HLL of the key, which is created if absent.
+     * <p>
+     * See {@link HllV5#pfAddAll(byte[][])} for the details.
+     * </p>
+     *
+     * @param key the key of the HLL
+     * @param elements the elements to be added to HLL
+     * @return the number of registers updated
+     */
+    public int pfAddAll(String key, byte[][] elements) {
+        return compute(key, hll -> hll.pfAddAll(elements));
+    }
+
+    /**
+     * Do PFADD with multiple elements in batch to the HLL of the key, which is created if absent.
+     * <p>
+     * See {@link HllV5#pfAddAll(byte[][])} for the details.
+     * </p>
+     *
+     * @param key the key of the HLL
+     * @param elements the elements to be added to HLL
+     * @return the number of registers updated
+     */
+    public int pfAddAll(String key, Iterable<byte[]> elements) {
+        return compute(key, hll -> hll.pfAddAll(elements));
+    }
+
+    /**
+     * Do PFCOUNT of the HLL of the key.
+     *
+     * @param key the key of the HLL
+     * @return approximate distinct count, or 0 if the key doesn't exist as same as Redis
+     */
+    public long pfCount(String key) {
+        Long count = registry.computeIfPresent(key, HllV5::pfCount);
+        return count == null ? 0L : count;
+    }
+
+    /**
+     * Dump the representation of the HLL of the key.
+     *
+     * @param key the key of the HLL
+     * @return the byte array of the HLL representation, or null if the key doesn't exist
+     */
+    public byte[] dumpRepr(String key) {
+        return registry.computeIfPresent(key, HllV5::dumpRepr);
+    }
+
+    /**
+     * Apply given function to the HLL of the key, which is created if absent.
+     * <p>
+     * See {@link HllRegistry#compute(String, Function)} for the details.
+     * </p>
+     *
+     * @param key the key of the HLL
+     * @param function the function to be applied
+     * @param <T> the type of the result
+     * @return the result of the function
+     */
+    public <T> T compute(String key, Function<HllV5, T> function) {
+        return registry.compute(key, function);
+    }
+
+    /**
+     * Remove the HLL of the key.
+     *
+     * @param key the key of the HLL
+     * @return true if the key existed
+     */
+    public boolean remove(String key) {
+        return registry.remove(key);
+    }
+
+    /**
+     * The number of keys in the registry, including spilled ones.
+     *
+     * @return the number of keys
+     */
+    public int size() {
+        return registry.size();
+    }
+
+    /**
+     * The number of HLLs which are in memory.
+     *
+     * @return the number of resident HLLs
+     */
+    public int residentSize() {
+        return registry.residentSize();
+    }
+
+    /**
+     * Total retained bytes of HLLs which are in memory.
+     * <p>
+     * This may exceed the memory budget temporarily while evicted HLLs are in use.
+     * </p>
+     *
+     * @return resident bytes
+     */
+    public long residentBytes() {
+        return registry.residentBytes();
+    }
+
+    /**
+     * The used length of the spill file in bytes, including freed slots in the middle which will be reused.
+     * <p>
+     * See {@link HllRegistry#spillBytes()} for the details.
+     * </p>
+     *
+     * @return used length of the spill file
+     */
+    public long spillBytes() {
+        return registry.spillBytes();
+    }
+
+    /**
+     * Release all HLLs and delete the spill file.
+     * <p>
+     * Operations in progress are completed before their HLLs are released.
+     * The registry must not be used after closed.
+     * </p>
+     *
+     * @throws IOException if failed to close the spill file
+     */
+    @Override
+    public void close() throws IOException {
+        registry.close();
+    }
+
+    public static class HllRegistryV5Builder {
+        private long memoryBudget = 64L * 1024 * 1024;
+        private int sparseMaxBytes = HllByteBuffer.DEFAULT_SPARSE_MAX_BYTES;
+        private Path spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+
+        private HllRegistryV5Builder() {
+        }
+
+        /**
+         * Set the max total retained bytes of HLLs in memory. Default is 64MB.
+         *
+         * @param memoryBudget memory budget in bytes
+         * @return builder instance
+         */
+        public HllRegistryV5Builder withMemoryBudget(long memoryBudget) {
+            if (memoryBudget < 0) {
+                throw new IllegalArgumentException("memoryBudget must be non-negative");
+            }
+            this.memoryBudget = memoryBudget;
+            return this;
+        }
+
+        /**
+         * Set the max length of sparse representation in bytes (including header) of each HLL.
+         * <p>
+         * Same as hll-sparse-max-bytes config of Redis. Default is {@value HllByteBuffer#DEFAULT_SPARSE_MAX_BYTES}.
+         * </p>
+         *
+         * @param sparseMaxBytes max bytes of sparse representation
+         * @return builder instance
+         */
+        public HllRegistryV5Builder withSparseMaxBytes(int sparseMaxBytes) {
+            if (sparseMaxBytes < 0) {
+                throw new IllegalArgumentException("sparseMaxBytes must be non-negative");
+            }
+            this.sparseMaxBytes = sparseMaxBytes;
+            return this;
+        }
+
+        /**
+         * Set the directory to create the spill file in. Default is java.io.tmpdir.
+         *
+         * @param spillDirectory the directory of the spill file
+         * @return builder instance
+         */
+        public HllRegistryV5Builder withSpillDirectory(Path spillDirectory) {
+            if (spillDirectory == null) {
+                throw new IllegalArgumentException("spillDirectory must not be null");
+            }
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        public HllRegistryV5 build() {
+            return new HllRegistryV5(memoryBudget, sparseMaxBytes, spillDirectory);
+        }
+    }
+
+    public static HllRegistryV5Builder newBuilder() {
+        return new HllRegistryV5Builder();
+    }
+}
@@ -1,26 +1,57 @@
 package com.mayreh.pfutil.v5;
 
+import com.mayreh.pfutil.HllBufferAllocator;
 import com.mayreh.pfutil.HllByteBuffer;
+import com.mayreh.pfutil.HllRegisterSource;
+import com.mayreh.pfutil.HllUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.UUID;
 
 /**
  * Provides Redis v5 compatible HLL features.
  * <p>
  * NOTE: This class is NOT thread safe. Concurrent accesses may cause inconsistent result.
  * </p>
+ * <p>
+ * The representation is stored in heap by default. If it is allocated by other
+ * {@link HllBufferAllocator} (e.g. off-heap), {@link #close()} the HLL to release the memory.
+ * </p>
  */
-public class HllV5 {
+public class HllV5 implements AutoCloseable, HllRegisterSource {
     private final HllhdrV5 hllhdr;
 
-    HllV5(byte[] representation) {
-        hllhdr = new HllhdrV5(representation);
+    /**
+     * True if {@link #dumpRepr()} re-encodes dense representation into sparse if possible.
+     */
+    private boolean sparseDump = false;
+
+    HllV5(byte[] representation, int sparseMaxBytes, HllBufferAllocator allocator) {
+        hllhdr = new HllhdrV5(representation, allocator);
 
         if (!hllhdr.isValidHll()) {
+            hllhdr.release();
             throw new IllegalArgumentException("Invalid HLL representation");
         }
+        hllhdr.setSparseMaxBytes(sparseMaxBytes);
     }
 
-    HllV5() {
-        hllhdr = new HllhdrV5();
+    HllV5(ByteBuffer buffer, int sparseMaxBytes, HllBufferAllocator allocator, boolean copyOnWrite) {
+        hllhdr = new HllhdrV5(buffer, allocator, copyOnWrite);
+
+        if (!hllhdr.isValidHll()) {
+            throw new IllegalArgumentException("Invalid HLL representation");
+        }
+        hllhdr.setSparseMaxBytes(sparseMaxBytes);
+    }
+
+    HllV5(int sparseMaxBytes, HllBufferAllocator allocator) {
+        hllhdr = new HllhdrV5(allocator);
+        hllhdr.setSparseMaxBytes(sparseMaxBytes);
     }
 
     /**
@@ -43,9 +74,10 @@ public class HllV5 {
     }
 
     /**
-     * Do PFADD using mostly same algorithm as of Redis v5.
+     * Do PFADD using same algorithm as of Redis v5.
      * <p>
-     * See {@link HllByteBuffer#hllSet(int, int)} for the differences.
+     * Sparse representation will be promoted to dense only when it's necessary.
+     * See {@link HllByteBuffer#hllSet(int, int)} for the details.
      * </p>
      *
      * @param element the element to be added to HLL
@@ -55,6 +87,192 @@ public class HllV5 {
         return hllhdr.hllAdd(element);
     }
 
+    /**
+     * Do PFADD with the slice of given byte array as an element.
+     * <p>
+     * The result is same as adding {@code Arrays.copyOfRange(element, off, off + len)}, without copying.
+     * </p>
+     *
+     * @param element the byte array which contains the element
+     * @param off the offset of the element
+     * @param len the length of the element
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(byte[] element, int off, int len) {
+        return hllhdr.hllAdd(element, off, len);
+    }
+
+    /**
+     * Do PFADD with the remaining bytes of given buffer as an element.
+     * <p>
+     * Both heap and direct buffers are hashed without copying. The position of the buffer is not changed.
+     * </p>
+     *
+     * @param element the buffer which contains the element
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(ByteBuffer element) {
+        return hllhdr.hllAdd(element);
+    }
+
+    /**
+     * Do PFADD with UTF-8 encoded bytes of given chars as an element.
+     * <p>
+     * The result is same as adding {@code element.toString().getBytes(StandardCharsets.UTF_8)}.
+     * Chars are encoded while hashing so no byte array is allocated.
+     * </p>
+     *
+     * @param element the element to be added to HLL
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(CharSequence element) {
+        return hllhdr.hllAdd(element);
+    }
+
+    /**
+     * Do PFADD with the decimal representation of given value as an element.
+     * <p>
+     * The result is same as adding {@code String.valueOf(element).getBytes()},
+     * which is what Redis receives from {@code PFADD key 12345}.
+     * </p>
+     *
+     * @param element the element to be added to HLL
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(long element) {
+        return hllhdr.hllAddDecimal(element);
+    }
+
+    /**
+     * Do PFADD with the decimal representation of given value as an element.
+     * <p>
+     * See {@link #pfAdd(long)} for the details.
+     * </p>
+     *
+     * @param element the element to be added to HLL
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(int element) {
+        return hllhdr.hllAddDecimal(element);
+    }
+
+    /**
+     * Do PFADD with the string representation of given UUID as an element.
+     * <p>
+     * The result is same as adding {@code element.toString().getBytes()}.
+     * </p>
+     *
+     * @param element the element to be added to HLL
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(UUID element) {
+        return hllhdr.hllAdd(element);
+    }
+
+    /**
+     * Do PFADD with the concatenation of the parts put to given hasher as an element.
+     * <p>
+     * The result is same as adding the concatenated bytes, without allocating the concatenation buffer.
+     * The hasher is not reset by this method.
+     * </p>
+     *
+     * @param hasher the hasher created with {@link HllUtil#HLL_HASH_SEED}
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAdd(HllUtil.Hasher hasher) {
+        if (hasher.seed() != HllUtil.HLL_HASH_SEED) {
+            throw new IllegalArgumentException("hasher must be created with HLL_HASH_SEED");
+        }
+        return hllhdr.hllAddHash(hasher.hash());
+    }
+
+    /**
+     * Do PFADD with pre-computed hash of an element.
+     * <p>
+     * The hash must be MurmurHash64A of the element with {@link HllUtil#HLL_HASH_SEED}
+     * to be compatible with Redis, e.g. {@code HllUtil.murmurHash64A(element, HllUtil.HLL_HASH_SEED)}.
+     * This is useful to hash an element once and add it to many HLLs.
+     * </p>
+     *
+     * @param hash the hash of the element
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAddHash(long hash) {
+        return hllhdr.hllAddHash(hash);
+    }
+
+    /**
+     * Do PFADD with pre-computed hashes of elements.
+     * <p>
+     * See {@link #pfAddHash(long)} for the details.
+     * </p>
+     *
+     * @param hashes the array which contains the hashes of elements
+     * @param off the offset of the hashes
+     * @param len the number of the hashes
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAddHashes(long[] hashes, int off, int len) {
+        return hllhdr.hllAddHashes(hashes, off, len);
+    }
+
+    /**
+     * Do PFADD with the remaining pre-computed hashes of elements in given buffer.
+     * <p>
+     * The position of the buffer is not changed.
+     * See {@link #pfAddHash(long)} for the details.
+     * </p>
+     *
+     * @param hashes the buffer which contains the hashes of elements
+     * @return whether HLL internal register was updated or not
+     */
+    public boolean pfAddHashes(LongBuffer hashes) {
+        return hllhdr.hllAddHashes(hashes);
+    }
+
+    /**
+     * Do PFADD with multiple elements in batch.
+     * <p>
+     * The result is same as adding elements one by one, but updates are grouped by register
+     * and applied in register order, and the cardinality cache is invalidated only once.
+     * This is faster than adding one by one for large batches.
+     * </p>
+     *
+     * @param elements the elements to be added to HLL
+     * @return the number of registers updated
+     */
+    public int pfAddAll(byte[][] elements) {
+        return hllhdr.hllAddAll(elements);
+    }
+
+    /**
+     * Do PFADD with multiple elements in batch.
+     * <p>
+     * See {@link #pfAddAll(byte[][])} for the details.
+     * </p>
+     *
+     * @param elements the elements to be added to HLL
+     * @return the number of registers updated
+     */
+    public int pfAddAll(Iterable<byte[]> elements) {
+        return hllhdr.hllAddAll(elements);
+    }
+
+    /**
+     * Do PFADD with pre-computed hashes of elements in batch.
+     * <p>
+     * See {@link #pfAddHash(long)} and {@link #pfAddAll(byte[][])} for the details.
+     * </p>
+     *
+     * @param hashes the array which contains the hashes of elements
+     * @param off the offset of the hashes
+     * @param len the number of the hashes
+     * @return the number of registers updated
+     */
+    public int pfAddAllHashes(long[] hashes, int off, int len) {
+        return hllhdr.hllAddAllHashes(hashes, off, len);
+    }
+
     /**
      * Do PFMERGE using mostly same algorithm as of Redis v5.
      * <p>
@@ -74,11 +292,83 @@ public class HllV5 {
         }
 
         hllhdr.hllMerge(otherHlls);
-        hllhdr.invalidateCache();
 
         return this;
     }
 
+    /**
+     * Do PFCOUNT of the union of given HLLs without modifying them, as same as {@code PFCOUNT key1 key2 ...}.
+     * <p>
+     * Registers of each HLL are max-ed into a single registers array in place,
+     * so no merged HLL is materialized.
+     * </p>
+     *
+     * @param hlls HLLs to be counted
+     * @return approximate distinct count of the union
+     * @throws IllegalArgumentException if the representation of any HLL is corrupted
+     */
+    public static long pfCountUnion(HllV5... hlls) {
+        byte[] max = HllhdrV5.newRegisters();
+        for (HllV5 hll : hlls) {
+            if (!hll.hllhdr.maxRegisters(max)) {
+                throw new IllegalArgumentException("Invalid HLL representation");
+            }
+        }
+        return HllhdrV5.hllCount(max);
+    }
+
+    /**
+     * Do PFCOUNT of the union of given HLL representations, as same as {@code PFCOUNT key1 key2 ...}.
+     * <p>
+     * Each representation (e.g. fetched from Redis by MGET) is read in place without copying or
+     * building an HLL object, and its registers are max-ed into a single registers array.
+     * Null elements are treated as empty HLLs, as same as missing keys in Redis.
+     * </p>
+     *
+     * @param representations Redis v5 HLL representations
+     * @return approximate distinct count of the union
+     * @throws IllegalArgumentException if any representation is invalid
+     */
+    public static long pfCountUnion(byte[]... representations) {
+        return pfCountUnion(Arrays.asList(representations));
+    }
+
+    /**
+     * Do PFCOUNT of the union of given HLL representations.
+     * <p>
+     * See {@link #pfCountUnion(byte[]...)} for the details.
+     * </p>
+     *
+     * @param representations Redis v5 HLL representations
+     * @return approximate distinct count of the union
+     * @throws IllegalArgumentException if any representation is invalid
+     */
+    public static long pfCountUnion(Iterable<byte[]> representations) {
+        byte[] max = HllhdrV5.newRegisters();
+        for (byte[] representation : representations) {
+            if (representation != null && !HllByteBuffer.maxRegisters(ByteBuffer.wrap(representation), max)) {
+                throw new IllegalArgumentException("Invalid HLL representation");
+            }
+        }
+        return HllhdrV5.hllCount(max);
+    }
+
+    /**
+     * Set each element of given array to the greater of itself and the corresponding register of this HLL.
+     * <p>
+     * This is used to merge HLLs by {@link com.mayreh.pfutil.HllMerger}.
+     * </p>
+     *
+     * @param max the array which has 16384 registers, one register per byte
+     * @throws IllegalArgumentException if the representation is corrupted
+     */
+    @Override
+    public void maxRegisters(byte[] max) {
+        if (!hllhdr.maxRegisters(max)) {
+            throw new IllegalArgumentException("Invalid HLL representation");
+        }
+    }
+
     /**
      * Dump HLL representation as byte array.
      * <p>
@@ -94,11 +384,166 @@ public class HllV5 {
      * @return the byte array of the HLL representation
      */
     public byte[] dumpRepr() {
+        if (sparseDump) {
+            return hllhdr.dumpCompact(hllhdr.getSparseMaxBytes());
+        }
         return hllhdr.dump();
     }
 
+    /**
+     * Dump HLL representation in the smallest encoding which Redis accepts.
+     * <p>
+     * Dense representation is re-encoded into sparse if it is smaller, regardless of sparse max bytes.
+     * This is useful to save network bandwidth and memory of Redis for dense HLLs which have few non-zero registers,
+     * e.g. the results of {@link #pfMerge}. Redis promotes it to dense on the next PFADD which grows it
+     * beyond hll-sparse-max-bytes.
+     * </p>
+     *
+     * @return the byte array of the HLL representation
+     */
+    public byte[] dumpCompact() {
+        return hllhdr.dumpCompact();
+    }
+
+    /**
+     * Export registers changed since the last export, which is useful to sync HLLs incrementally,
+     * e.g. from edge nodes to an aggregator. The first delta contains all registers changed since the HLL is built.
+     * <p>
+     * The delta has 3 bytes per changed register, so it is much smaller than the representation
+     * when only a few registers are changed. See {@link HllByteBuffer#exportDelta()} for the format.
+     * </p>
+     *
+     * @return the delta, which is empty if no register is changed
+     * @throws IllegalStateException if {@link HllV5Builder#withDeltaTracking(boolean)} is not enabled
+     */
+    public byte[] exportDelta() {
+        return hllhdr.exportDelta();
+    }
+
+    /**
+     * Apply the delta exported by {@link #exportDelta()} of another HLL, with same semantics as PFMERGE.
+     * <p>
+     * Applying all deltas of an HLL results in the same registers as merging the HLL,
+     * regardless of the order or duplicates of deltas.
+     * </p>
+     *
+     * @param delta the delta exported by {@link #exportDelta()}
+     * @return whether HLL internal register was updated or not
+     * @throws IllegalArgumentException if the delta is invalid
+     */
+    public boolean applyDelta(byte[] delta) {
+        if (hllhdr.applyDelta(delta) > 0) {
+            hllhdr.invalidateCache();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Length of HLL representation in bytes, which is needed to {@link #dumpInto(byte[], int)}.
+     * <p>
+     * This is the length of the representation as is, which differs from the length of {@link #dumpRepr()}
+     * if it's re-encoded by {@link HllV5Builder#withSparseDump(boolean)}.
+     * </p>
+     *
+     * @return the length of the representation
+     */
+    public int dumpLength() {
+        return hllhdr.dumpLength();
+    }
+
+    /**
+     * Release the unpacked copy of registers kept by {@link HllV5Builder#withHotRegisters(boolean)},
+     * e.g. when the HLL becomes idle or memory pressure is observed.
+     * <p>
+     * The copy is built again on the next PFADD to dense representation.
+     * </p>
+     */
+    public void releaseHotRegisters() {
+        hllhdr.releaseHotRegisters();
+    }
+
+    /**
+     * Approximate number of bytes retained by this HLL, which is useful to account memory usage of many HLLs.
+     * <p>
+     * Sparse HLLs retain much less than dense ones. See {@link HllByteBuffer#retainedBytes()} for the details.
+     * </p>
+     *
+     * @return retained bytes
+     */
+    public int retainedBytes() {
+        return hllhdr.retainedBytes();
+    }
+
+    /**
+     * Copy HLL representation into given array.
+     * <p>
+     * The copied bytes are same as {@link #dumpRepr()} unless {@link HllV5Builder#withSparseDump(boolean)} is enabled,
+     * which is not applied here so the representation is copied as is.
+     * </p>
+     *
+     * @param dst the array to copy into
+     * @param off the offset in the array
+     * @return the number of bytes copied
+     * @throws IndexOutOfBoundsException if the array doesn't have {@link #dumpLength()} bytes of room
+     */
+    public int dumpInto(byte[] dst, int off) {
+        return hllhdr.dumpInto(dst, off);
+    }
+
+    /**
+     * Copy HLL representation into given buffer at given absolute index.
+     * <p>
+     * The copied bytes are same as {@link #dumpRepr()} unless {@link HllV5Builder#withSparseDump(boolean)} is enabled,
+     * which is not applied here so the representation is copied as is.
+     * The position and limit of the buffer are not changed.
+     * </p>
+     *
+     * @param dst the buffer to copy into
+     * @param off the index in the buffer
+     * @return the number of bytes copied
+     * @throws IndexOutOfBoundsException if the buffer doesn't have {@link #dumpLength()} bytes of room
+     */
+    public int dumpInto(ByteBuffer dst, int off) {
+        return hllhdr.dumpInto(dst, off);
+    }
+
+    /**
+     * Write HLL representation to given channel without copying it to a byte array.
+     * <p>
+     * The written bytes are same as {@link #dumpRepr()} unless {@link HllV5Builder#withSparseDump(boolean)} is enabled,
+     * which is not applied here so the representation is written as is.
+     * </p>
+     *
+     * @param channel the channel to write to
+     * @return the number of bytes written
+     * @throws IOException if failed to write
+     */
+    public int dumpRepr(WritableByteChannel channel) throws IOException {
+        return hllhdr.dumpTo(channel);
+    }
+
+    /**
+     * Release the memory of HLL representation through the allocator.
+     * <p>
+     * The HLL must not be used after closed.
+     * </p>
+     */
+    @Override
+    public void close() {
+        hllhdr.release();
+    }
+
     public static class HllV5Builder {
         private byte[] representation = null;
+        private ByteBuffer buffer = null;
+        private int sparseMaxBytes = HllByteBuffer.DEFAULT_SPARSE_MAX_BYTES;
+        private HllBufferAllocator allocator = HllBufferAllocator.heap();
+        private boolean registerHistogram = false;
+        private boolean hotRegisters = false;
+        private boolean sparseMerge = false;
+        private boolean sparseDump = false;
+        private boolean deltaTracking = false;
 
         private HllV5Builder() {
         }
@@ -114,15 +559,180 @@ public class HllV5 {
             return this;
         }
 
+        /**
+         * Use the remaining bytes of given buffer as HLL representation in place, without copying.
+         * <p>
+         * All updates are written through to the buffer, including the cardinality cache in the header.
+         * This is useful to operate on HLLs in memory-mapped files (See {@link com.mayreh.pfutil.MappedHllStore}).
+         * The buffer is never released by the HLL.
+         * If sparse representation grows beyond the remaining bytes, it is moved to a newly allocated buffer
+         * so the updates are no longer written through.
+         * </p>
+         *
+         * @param buffer the buffer which contains Redis v5 HLL representation
+         * @return builder instance
+         */
+        public HllV5Builder withBuffer(ByteBuffer buffer) {
+            this.buffer = buffer;
+            return this;
+        }
+
+        /**
+         * Set the max length of sparse representation in bytes (including header).
+         * <p>
+         * Same as hll-sparse-max-bytes config of Redis. Default is {@value HllByteBuffer#DEFAULT_SPARSE_MAX_BYTES}.
+         * </p>
+         *
+         * @param sparseMaxBytes max bytes of sparse representation
+         * @return builder instance
+         */
+        public HllV5Builder withSparseMaxBytes(int sparseMaxBytes) {
+            if (sparseMaxBytes < 0) {
+                throw new IllegalArgumentException("sparseMaxBytes must be non-negative");
+            }
+            this.sparseMaxBytes = sparseMaxBytes;
+            return this;
+        }
+
+        /**
+         * Set the allocator of the buffer which stores HLL representation.
+         * <p>
+         * Default is {@link HllBufferAllocator#heap()}.
+         * </p>
+         *
+         * @param allocator allocator of the underlying buffer
+         * @return builder instance
+         */
+        public HllV5Builder withAllocator(HllBufferAllocator allocator) {
+            if (allocator == null) {
+                throw new IllegalArgumentException("allocator must not be null");
+            }
+            this.allocator = allocator;
+            return this;
+        }
+
+        /**
+         * Keep the histogram of register values up to date on every register change.
+         * <p>
+         * Then {@link #pfCount()} of dense representation is computed from the histogram without scanning registers,
+         * which is useful when PFADD and PFCOUNT are called interleaved. The count is same as the one by scanning.
+         * This costs a 256 bytes histogram per HLL and slightly slower PFADD. Default is false.
+         * </p>
+         *
+         * @param registerHistogram whether to keep the histogram or not
+         * @return builder instance
+         */
+        public HllV5Builder withRegisterHistogram(boolean registerHistogram) {
+            this.registerHistogram = registerHistogram;
+            return this;
+        }
+
+        /**
+         * Keep dense registers unpacked to one byte per register in addition to the representation,
+         * which makes PFADD to dense HLLs faster at the cost of 16KB memory per HLL.
+         * <p>
+         * The representation is always kept up to date, so dumps and counts are same in either case.
+         * The unpacked copy can be released by {@link #releaseHotRegisters()} when the HLL becomes idle.
+         * Default is false.
+         * </p>
+         *
+         * @param hotRegisters whether to keep unpacked registers or not
+         * @return builder instance
+         */
+        public HllV5Builder withHotRegisters(boolean hotRegisters) {
+            this.hotRegisters = hotRegisters;
+            return this;
+        }
+
+        /**
+         * Keep the result of {@link #pfMerge(HllV5...)} sparse if this HLL and all merged HLLs are sparse
+         * and the union fits in sparse max bytes, which keeps unions of small HLLs small.
+         * <p>
+         * NOTE: PFMERGE of Redis v5 always results in dense representation, so the dump differs from Redis
+         * in that case, while the count is same. Default is false.
+         * </p>
+         *
+         * @param sparseMerge whether to keep the result of merge sparse or not
+         * @return builder instance
+         */
+        public HllV5Builder withSparseMerge(boolean sparseMerge) {
+            this.sparseMerge = sparseMerge;
+            return this;
+        }
+
+        /**
+         * Re-encode dense representation into sparse on {@link #dumpRepr()} if it fits in sparse max bytes,
+         * which is useful for dense HLLs which have few non-zero registers, e.g. the results of {@link #pfMerge}.
+         * <p>
+         * Other dump methods like {@link #dumpInto(byte[], int)} write the representation as is. Default is false.
+         * </p>
+         *
+         * @param sparseDump whether to re-encode dumps into sparse or not
+         * @return builder instance
+         */
+        public HllV5Builder withSparseDump(boolean sparseDump) {
+            this.sparseDump = sparseDump;
+            return this;
+        }
+
+        /**
+         * Track registers changed by PFADD or PFMERGE, so that only the changes can be exported
+         * by {@link #exportDelta()}. This costs a 2KB bitmap per HLL. Default is false.
+         *
+         * @param deltaTracking whether to track changed registers or not
+         * @return builder instance
+         */
+        public HllV5Builder withDeltaTracking(boolean deltaTracking) {
+            this.deltaTracking = deltaTracking;
+            return this;
+        }
+
         public HllV5 build() {
-            if (representation == null) {
-                return new HllV5();
+            if (representation != null && buffer != null) {
+                throw new IllegalStateException("Only one of representation or buffer can be specified");
+            }
+            HllV5 hll;
+            if (buffer != null) {
+                hll = new HllV5(buffer, sparseMaxBytes, allocator, false);
+            } else if (representation == null) {
+                hll = new HllV5(sparseMaxBytes, allocator);
             } else {
-                return new HllV5(representation);
+                hll = new HllV5(representation, sparseMaxBytes, allocator);
+            }
+            if (registerHistogram) {
+                hll.hllhdr.trackRegisterHistogram();
             }
+            if (hotRegisters) {
+                hll.hllhdr.useHotRegisters();
+            }
+            hll.hllhdr.setSparseMerge(sparseMerge);
+            if (deltaTracking) {
+                hll.hllhdr.trackDirtyRegisters();
+            }
+            hll.sparseDump = sparseDump;
+            return hll;
         }
     }
 
+    /**
+     * Restore HLL data structure from representation byte array without copying it.
+     * <p>
+     * The array is never modified. It is copied lazily on the first modification, so read-only operations
+     * like {@link #pfCount()} or merging into another HLL don't allocate a copy.
+     * Until it is copied, the cardinality computed by {@link #pfCount()} is not cached.
+     * The array must not be modified by the caller while the HLL is in use.
+     * </p>
+     *
+     * @param representation Redis v5 HLL representation
+     * @return HLL which borrows the array
+     */
+    public static HllV5 wrap(byte[] representation) {
+        return new HllV5(ByteBuffer.wrap(representation),
+                          HllByteBuffer.DEFAULT_SPARSE_MAX_BYTES,
+                          HllBufferAllocator.heap(),
+                          true);
+    }
+
     public static HllV5Builder newBuilder() {
         return new HllV5Builder();
     }
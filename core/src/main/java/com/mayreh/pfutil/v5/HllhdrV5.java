@@ -1,13 +1,22 @@
 package com.mayreh.pfutil.v5;
 
+import com.mayreh.pfutil.HllBufferAllocator;
 import com.mayreh.pfutil.HllByteBuffer;
 import com.mayreh.pfutil.HllEncoding;
 import com.mayreh.pfutil.HllUtil;
 
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.UUID;
+
 /**
  * A HLL representation compatible with Redis 5 based on arXiv:1702.01284
  */
 class HllhdrV5 extends HllByteBuffer {
+    private static final int HASH_SEED = HllUtil.HLL_HASH_SEED;
+
     private static final int HLL_Q;
     static {
         HLL_Q = 64 - registerBits();
@@ -24,14 +33,20 @@ class HllhdrV5 extends HllByteBuffer {
         super(repr);
     }
 
-    private static class PatLenResult {
-        private final int len; // the length of the pattern 000..1 in the element hash
-        private final int reg; // the register index the element hashes to
+    HllhdrV5(HllBufferAllocator allocator) {
+        super(allocator);
+    }
 
-        private PatLenResult(int len, int reg) {
-            this.len = len;
-            this.reg = reg;
-        }
+    HllhdrV5(byte[] repr, HllBufferAllocator allocator) {
+        super(repr, allocator);
+    }
+
+    HllhdrV5(ByteBuffer buffer, HllBufferAllocator allocator) {
+        super(buffer, allocator);
+    }
+
+    HllhdrV5(ByteBuffer buffer, HllBufferAllocator allocator, boolean copyOnWrite) {
+        super(buffer, allocator, copyOnWrite);
     }
 
     static class CountResult {
@@ -44,8 +59,11 @@ class HllhdrV5 extends HllByteBuffer {
         }
     }
 
-    private PatLenResult hllPatLen(byte[] element) {
-        long hash = HllUtil.murmurHash64A(element, 0xadc83b19);
+    /**
+     * Returns the register index the element hashes to and the length of the pattern 000..1
+     * in the element hash, packed by {@link #patLen(int, int)}.
+     */
+    static int hllPatLen(long hash) {
         long index = hash & registerBitsMask();
         hash >>>= registerBits();
         hash |= (1L << HLL_Q);
@@ -56,10 +74,10 @@ class HllhdrV5 extends HllByteBuffer {
             count++;
             bit <<= 1;
         }
-        return new PatLenResult(count, (int)index);
+        return patLen((int)index, count);
     }
 
-    private double tau(double x) {
+    private static double tau(double x) {
         if (x == 0.0 ||  x == 1.0) {
             return 0.0;
         }
@@ -77,7 +95,7 @@ class HllhdrV5 extends HllByteBuffer {
         return z / 3;
     }
 
-    private double sigma(double x) {
+    private static double sigma(double x) {
         if (x == 1.0) {
             return Double.POSITIVE_INFINITY;
         }
@@ -95,30 +113,24 @@ class HllhdrV5 extends HllByteBuffer {
         return z;
     }
 
-    private void denseRegHisto(int[] regHisto) {
-        for (int i = 0; i < registerSize(); i++) {
-            regHisto[(int)denseGetRegister(i)]++;
-        }
-    }
-
     private boolean sparseRegHisto(int[] regHisto) {
         int p = headerLen();
 
         int idx = 0;
-        while (p < buffer.length) {
-            if (sparseIsZero(buffer[p])) {
-                int runlen = sparseZeroLen(buffer[p]);
+        while (p < buffer.limit()) {
+            if (sparseIsZero(buffer.get(p))) {
+                int runlen = sparseZeroLen(buffer.get(p));
                 idx += runlen;
                 regHisto[0] += runlen;
                 p++;
-            } else if (sparseIsXZero(buffer[p])) {
-                int runlen = sparseXZeroLen(buffer[p], buffer[p + 1]);
+            } else if (sparseIsXZero(buffer.get(p))) {
+                int runlen = sparseXZeroLen(buffer.get(p), buffer.get(p + 1));
                 idx += runlen;
                 regHisto[0] += runlen;
                 p += 2;
             } else {
-                int runlen = sparseValLen(buffer[p]);
-                int regVal = sparseValValue(buffer[p]);
+                int runlen = sparseValLen(buffer.get(p));
+                int regVal = sparseValValue(buffer.get(p));
                 idx += runlen;
                 regHisto[regVal] += runlen;
                 p++;
@@ -129,14 +141,13 @@ class HllhdrV5 extends HllByteBuffer {
     }
 
     CountResult hllCount() {
-        double m = registerSize();
-
-        int[] regHisto = new int[64];
+        int[] regHisto;
 
-        byte encoding = buffer[magic().length];
+        byte encoding = buffer.get(magic().length);
         if (encoding == HllEncoding.DENSE.value) {
-            denseRegHisto(regHisto);
+            regHisto = denseRegHisto();
         } else if (encoding == HllEncoding.SPARSE.value) {
+            regHisto = new int[64];
             if (!sparseRegHisto(regHisto)) {
                 return new CountResult(0, false);
             }
@@ -144,6 +155,41 @@ class HllhdrV5 extends HllByteBuffer {
             throw new IllegalStateException("invalid encoding : " + encoding);
         }
 
+        return new CountResult(hllCount(regHisto), true);
+    }
+
+    /**
+     * Allocate an array of zero registers, one register per byte.
+     *
+     * @return registers array
+     */
+    static byte[] newRegisters() {
+        return new byte[registerSize()];
+    }
+
+    /**
+     * Estimate the cardinality from registers, one register per byte.
+     *
+     * @param registers registers array
+     * @return approximate distinct count
+     */
+    static long hllCount(byte[] registers) {
+        int[] regHisto = new int[64];
+        for (byte register : registers) {
+            regHisto[register]++;
+        }
+        return hllCount(regHisto);
+    }
+
+    /**
+     * Estimate the cardinality from the histogram of register values.
+     *
+     * @param regHisto the number of registers for each value
+     * @return approximate distinct count
+     */
+    static long hllCount(int[] regHisto) {
+        double m = registerSize();
+
         double z = m * tau((m - regHisto[HLL_Q + 1]) / m);
         for (int i = HLL_Q; i >= 1; --i) {
             z += regHisto[i];
@@ -153,13 +199,37 @@ class HllhdrV5 extends HllByteBuffer {
         z += m * sigma(regHisto[0] / m);
 
         double E = Math.round(HLL_ALPHA_INF * m * m / z);
-        return new CountResult((long)E, true);
+        return (long)E;
     }
 
     boolean hllAdd(byte[] element) {
-        PatLenResult patLen = hllPatLen(element);
+        return hllAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    boolean hllAdd(byte[] element, int off, int len) {
+        return hllAddHash(HllUtil.murmurHash64A(element, off, len, HASH_SEED));
+    }
+
+    boolean hllAdd(ByteBuffer element) {
+        return hllAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    boolean hllAdd(CharSequence element) {
+        return hllAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
+
+    boolean hllAddDecimal(long element) {
+        return hllAddHash(HllUtil.murmurHash64ADecimal(element, HASH_SEED));
+    }
+
+    boolean hllAdd(UUID element) {
+        return hllAddHash(HllUtil.murmurHash64A(element, HASH_SEED));
+    }
 
-        int retVal = hllSet(patLen.reg, patLen.len);
+    boolean hllAddHash(long hash) {
+        int patLen = hllPatLen(hash);
+
+        int retVal = hllSet(patLenRegNum(patLen), patLenLen(patLen));
         if (retVal > 0) {
             invalidateCache();
             return true;
@@ -167,4 +237,88 @@ class HllhdrV5 extends HllByteBuffer {
             return false;
         }
     }
+
+    boolean hllAddHashes(long[] hashes, int off, int len) {
+        return hllAddAllHashes(hashes, off, len) > 0;
+    }
+
+    boolean hllAddHashes(LongBuffer hashes) {
+        int len = hashes.remaining();
+        if (isLargeBatch(len)) {
+            byte[] max = newBatchMax();
+            for (int i = 0; i < len; i++) {
+                accumulatePatLen(max, hllPatLen(hashes.get(hashes.position() + i)));
+            }
+            return invalidateIfChanged(hllSetAll(max)) > 0;
+        }
+
+        int[] patLens = new int[len];
+        for (int i = 0; i < len; i++) {
+            patLens[i] = hllPatLen(hashes.get(hashes.position() + i));
+        }
+        return invalidateIfChanged(hllSetAll(patLens, len)) > 0;
+    }
+
+    int hllAddAllHashes(long[] hashes, int off, int len) {
+        if (off < 0 || len < 0 || off > hashes.length - len) {
+            throw new IndexOutOfBoundsException("off: " + off + ", len: " + len + ", length: " + hashes.length);
+        }
+
+        if (isLargeBatch(len)) {
+            byte[] max = newBatchMax();
+            for (int i = 0; i < len; i++) {
+                accumulatePatLen(max, hllPatLen(hashes[off + i]));
+            }
+            return invalidateIfChanged(hllSetAll(max));
+        }
+
+        int[] patLens = new int[len];
+        for (int i = 0; i < len; i++) {
+            patLens[i] = hllPatLen(hashes[off + i]);
+        }
+        return invalidateIfChanged(hllSetAll(patLens, len));
+    }
+
+    int hllAddAll(byte[][] elements) {
+        if (isLargeBatch(elements.length)) {
+            byte[] max = newBatchMax();
+            for (byte[] element : elements) {
+                accumulatePatLen(max, hllPatLen(HllUtil.murmurHash64A(element, HASH_SEED)));
+            }
+            return invalidateIfChanged(hllSetAll(max));
+        }
+
+        int[] patLens = new int[elements.length];
+        for (int i = 0; i < elements.length; i++) {
+            patLens[i] = hllPatLen(HllUtil.murmurHash64A(elements[i], HASH_SEED));
+        }
+        return invalidateIfChanged(hllSetAll(patLens, patLens.length));
+    }
+
+    int hllAddAll(Iterable<byte[]> elements) {
+        if (elements instanceof Collection && isLargeBatch(((Collection<?>)elements).size())) {
+            byte[] max = newBatchMax();
+            for (byte[] element : elements) {
+                accumulatePatLen(max, hllPatLen(HllUtil.murmurHash64A(element, HASH_SEED)));
+            }
+            return invalidateIfChanged(hllSetAll(max));
+        }
+
+        int[] patLens = new int[16];
+        int len = 0;
+        for (byte[] element : elements) {
+            if (len == patLens.length) {
+                patLens = Arrays.copyOf(patLens, patLens.length * 2);
+            }
+            patLens[len++] = hllPatLen(HllUtil.murmurHash64A(element, HASH_SEED));
+        }
+        return invalidateIfChanged(hllSetAll(patLens, len));
+    }
+
+    private int invalidateIfChanged(int changed) {
+        if (changed > 0) {
+            invalidateCache();
+        }
+        return changed;
+    }
 }
@@ -0,0 +1,109 @@
+package com.mayreh.pfutil;
+
+import com.mayreh.pfutil.v4.HllV4;
+import com.mayreh.pfutil.v5.HllV5;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class HllArchiveTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        String[] resources = {
+                "v4/dense_cached_55531.dat",
+                "v4/dense_nocache_55531.dat",
+                "v4/sparse_cached_AtoZ.dat",
+                "v5/dense_cached_99571.dat",
+                "v5/sparse_nocache_1001.dat",
+        };
+        for (String resource : resources) {
+            byte[] repr = TestUtil.getResourceAsBytes(resource);
+            assertThat(HllArchive.decode(HllArchive.encode(repr))).isEqualTo(repr);
+        }
+
+        for (int n : new int[] { 0, 1, 100, 10000, 1000000 }) {
+            HllV5 hll = HllV5.newBuilder().withSparseMaxBytes(0).build();
+            for (int i = 0; i < n; i++) {
+                hll.pfAdd(i);
+            }
+            hll.pfCount();
+            byte[] repr = hll.dumpRepr();
+            byte[] archive = HllArchive.encode(repr);
+
+            if (repr[4] == HllEncoding.DENSE.value) {
+                assertThat(archive.length).isLessThan(repr.length);
+            }
+            assertThat(HllArchive.decodedLength(archive)).isEqualTo(repr.length);
+            assertThat(HllArchive.decode(archive)).isEqualTo(repr);
+        }
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        HllV4 hll = HllV4.newBuilder().build();
+        for (int i = 0; i < 10000000; i++) {
+            hll.pfAdd(i);
+        }
+        byte[] repr = hll.dumpRepr();
+        byte[] archive = HllArchive.encode(repr);
+
+        assertThat(archive.length).isLessThan(repr.length * 2 / 3);
+        assertThat(HllArchive.decode(archive)).isEqualTo(repr);
+    }
+
+    @Test
+    public void testDecodeInto() throws Exception {
+        byte[] repr = TestUtil.getResourceAsBytes("v5/dense_cached_99571.dat");
+        byte[] archive = HllArchive.encode(repr);
+
+        try (MappedHllStore store = MappedHllStore.open(folder.getRoot().toPath().resolve("store"), 2)) {
+            ByteBuffer slot = store.slot(1);
+            assertThat(HllArchive.decodeInto(archive, slot, 0)).isEqualTo(repr.length);
+            assertThat(HllV5.newBuilder().withBuffer(slot).build().dumpRepr()).isEqualTo(repr);
+        }
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(repr.length + 10);
+        HllArchive.decodeInto(archive, direct, 10);
+        byte[] decoded = new byte[repr.length];
+        ((Buffer)direct).position(10);
+        direct.get(decoded);
+        assertThat(decoded).isEqualTo(repr);
+    }
+
+    @Test
+    public void testInvalid() throws Exception {
+        byte[] repr = TestUtil.getResourceAsBytes("v5/dense_cached_99571.dat");
+        byte[] archive = HllArchive.encode(repr);
+
+        byte[][] invalids = {
+                new byte[0],
+                Arrays.copyOf(archive, archive.length - 1),
+                Arrays.copyOf(repr, repr.length),
+        };
+        for (byte[] invalid : invalids) {
+            try {
+                HllArchive.decode(invalid);
+                fail("invalid archive must be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+
+        try {
+            HllArchive.encode(Arrays.copyOf(repr, repr.length - 1));
+            fail("invalid representation must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
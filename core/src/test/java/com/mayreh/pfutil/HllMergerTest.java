@@ -0,0 +1,95 @@
+package com.mayreh.pfutil;
+
+import com.mayreh.pfutil.v4.HllV4;
+import com.mayreh.pfutil.v5.HllV5;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class HllMergerTest {
+    @Test
+    public void testMerge() throws Exception {
+        List<HllV5> hlls = new ArrayList<>();
+        HllV5 expected = HllV5.newBuilder().build();
+        for (int i = 0; i < 100; i++) {
+            HllV5 hll = HllV5.newBuilder().withSparseMaxBytes(i % 2 == 0 ? 0 : 3000).build();
+            for (int j = 0; j < 1000; j++) {
+                hll.pfAdd(i * 500 + j);
+            }
+            hlls.add(hll);
+        }
+        hlls.add(HllV5.newBuilder().withRepr(TestUtil.getResourceAsBytes("v5/dense_cached_99571.dat")).build());
+        expected.pfMerge(hlls.toArray(new HllV5[0]));
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            HllMerger merger = HllMerger.newBuilder()
+                    .withPool(pool)
+                    .withBatchSize(7)
+                    .withSparseMaxBytes(0)
+                    .build();
+
+            // same as PFMERGE
+            assertThat(merger.merge(hlls)).isEqualTo(expected.dumpRepr());
+            assertThat(merger.merge(new LinkedList<>(hlls))).isEqualTo(expected.dumpRepr());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testMergeReprs() throws Exception {
+        List<byte[]> reprs = new ArrayList<>();
+        HllV4 expected = HllV4.newBuilder().build();
+        for (int i = 0; i < 10; i++) {
+            HllV4 hll = HllV4.newBuilder().build();
+            for (int j = 0; j < 50; j++) {
+                hll.pfAdd(i * 20 + j);
+            }
+            reprs.add(hll.dumpRepr());
+            expected.pfMerge(hll);
+        }
+        reprs.add(null);
+        reprs.add(TestUtil.getResourceAsBytes("v4/sparse_cached_AtoZ.dat"));
+        expected.pfMerge(HllV4.newBuilder().withRepr(TestUtil.getResourceAsBytes("v4/sparse_cached_AtoZ.dat")).build());
+
+        byte[] dense = HllMerger.newBuilder().withBatchSize(3).withSparseMaxBytes(0).build().mergeReprs(reprs);
+        byte[] sparse = HllMerger.newBuilder().withBatchSize(3).build().mergeReprs(reprs);
+
+        assertThat(dense).isEqualTo(expected.dumpRepr());
+
+        // small union fits in sparse
+        assertThat(sparse[4]).isEqualTo((byte) 1);
+        HllV4 restored = HllV4.newBuilder().build().pfMerge(HllV4.newBuilder().withRepr(sparse).build());
+        assertThat(restored.dumpRepr()).isEqualTo(dense);
+        assertThat(HllV4.newBuilder().withRepr(sparse).build().pfCount()).isEqualTo(expected.pfCount());
+    }
+
+    @Test
+    public void testMergeEmpty() {
+        byte[] merged = HllMerger.newBuilder().build().merge(Collections.<HllRegisterSource>emptyList());
+
+        assertThat(HllV5.newBuilder().withRepr(merged).build().pfCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void testMergeCorrupted() throws Exception {
+        byte[] repr = TestUtil.getResourceAsBytes("v5/sparse_nocache_1001.dat");
+        byte[] truncated = Arrays.copyOf(repr, repr.length - 1);
+
+        try {
+            HllMerger.newBuilder().build().mergeReprs(Arrays.asList(repr, truncated));
+            fail("corrupted representation must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.mayreh.pfutil;
+
+import com.mayreh.pfutil.v5.HllRegistryV5;
+import com.mayreh.pfutil.v5.HllV5;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
+
+public class HllRegistryTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testRemove() throws Exception {
+        try (HllRegistryV5 registry = HllRegistryV5.newBuilder().withMemoryBudget(0).build()) {
+            registry.pfAdd("foo", "a".getBytes(StandardCharsets.UTF_8));
+            registry.pfAdd("bar", "a".getBytes(StandardCharsets.UTF_8));
+
+            assertThat(registry.remove("foo")).isTrue();
+            assertThat(registry.remove("foo")).isFalse();
+            assertThat(registry.pfCount("foo")).isEqualTo(0L);
+            assertThat(registry.pfCount("bar")).isEqualTo(1L);
+            assertThat(registry.size()).isEqualTo(1);
+            assertThat(registry.residentBytes()).isEqualTo(0L);
+        }
+    }
+
+    @Test
+    public void testConcurrentPfAdd() throws Exception {
+        int threads = 8;
+        int keys = 16;
+        int elementsPerThread = 20000;
+
+        HllV5[] expected = new HllV5[keys];
+        for (int k = 0; k < keys; k++) {
+            expected[k] = HllV5.newBuilder().build();
+        }
+        for (int i = 0; i < threads * elementsPerThread; i++) {
+            expected[i % keys].pfAdd(i);
+        }
+
+        try (HllRegistryV5 registry = HllRegistryV5.newBuilder()
+                .withMemoryBudget(4 * 12304)
+                .withSpillDirectory(folder.getRoot().toPath())
+                .build()) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            try {
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<?>> futures = new ArrayList<>();
+                for (int t = 0; t < threads; t++) {
+                    int from = t * elementsPerThread;
+                    futures.add(executor.submit(() -> {
+                        start.await();
+                        for (int i = from; i < from + elementsPerThread; i++) {
+                            int element = i;
+                            registry.compute("key" + (i % keys), hll -> hll.pfAdd(element));
+                            if (i % 1000 == 0) {
+                                registry.pfCount("key" + (i % keys));
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                start.countDown();
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } finally {
+                executor.shutdown();
+            }
+
+            assertThat(registry.size()).isEqualTo(keys);
+            assertThat(registry.residentBytes()).isLessThanOrEqualTo(4 * 12304);
+            for (int k = 0; k < keys; k++) {
+                assertThat(registry.pfCount("key" + k)).isEqualTo(expected[k].pfCount());
+            }
+        }
+    }
+
+    @Test
+    public void testSpillSpaceReused() throws Exception {
+        int keys = 8;
+        // dense representation in a 64 bytes aligned slot
+        long slotBytes = 12352;
+        try (HllRegistryV5 registry = HllRegistryV5.newBuilder()
+                .withMemoryBudget(0)
+                .withSpillDirectory(folder.getRoot().toPath())
+                .build()) {
+            for (int k = 0; k < keys; k++) {
+                registry.compute("key" + k, hll -> {
+                    for (int i = 0; i < 10000; i++) {
+                        hll.pfAdd(i);
+                    }
+                    return null;
+                });
+            }
+            // every access reloads the dense HLL and spills it again
+            for (int round = 0; round < 50; round++) {
+                for (int k = 0; k < keys; k++) {
+                    int from = round * 100;
+                    registry.compute("key" + k, hll -> {
+                        for (int i = from; i < from + 100; i++) {
+                            hll.pfAdd(i);
+                        }
+                        return null;
+                    });
+                    assertThat(registry.spillBytes()).isLessThanOrEqualTo(keys * slotBytes);
+                }
+            }
+            assertThat(registry.residentSize()).isEqualTo(0);
+
+            // freed slots are coalesced, so the file shrinks to empty
+            for (int k = 0; k < keys; k += 2) {
+                registry.remove("key" + k);
+            }
+            for (int k = 1; k < keys; k += 2) {
+                registry.remove("key" + k);
+            }
+            assertThat(registry.spillBytes()).isEqualTo(0L);
+        }
+    }
+
+    @Test
+    public void testCloseWhileInFlight() throws Exception {
+        HllRegistryV5 registry = HllRegistryV5.newBuilder().build();
+        registry.pfAdd("foo", "a".getBytes(StandardCharsets.UTF_8));
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            CountDownLatch entered = new CountDownLatch(1);
+            CountDownLatch proceed = new CountDownLatch(1);
+            Future<Boolean> pfAdd = executor.submit(() -> registry.compute("foo", hll -> {
+                entered.countDown();
+                try {
+                    proceed.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                // the registry is still accessible while close() waits
+                assertThat(registry.size()).isEqualTo(1);
+                try {
+                    registry.compute("bar", other -> other.pfAdd("b".getBytes(StandardCharsets.UTF_8)));
+                    fail();
+                } catch (IllegalStateException e) {
+                    // expected
+                }
+                return hll.pfAdd("b".getBytes(StandardCharsets.UTF_8));
+            }));
+            entered.await();
+
+            Future<?> close = executor.submit(() -> {
+                registry.close();
+                return null;
+            });
+            // close waits for the pfAdd in progress
+            Thread.sleep(100L);
+            assertThat(close.isDone()).isFalse();
+
+            proceed.countDown();
+            assertThat(pfAdd.get(10L, TimeUnit.SECONDS)).isTrue();
+            close.get(10L, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+
+        try {
+            registry.pfAdd("foo", "c".getBytes(StandardCharsets.UTF_8));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testClosed() throws Exception {
+        HllRegistryV5 registry = HllRegistryV5.newBuilder().build();
+        registry.close();
+        registry.pfCount("foo");
+    }
+}
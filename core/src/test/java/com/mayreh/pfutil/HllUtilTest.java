@@ -2,7 +2,11 @@ package com.mayreh.pfutil;
 
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -23,4 +27,154 @@ public class HllUtilTest {
         long result = HllUtil.murmurHash64A(data, 0xe17a1465);
         assertThat(result).isEqualTo(0x0920e0c1b7eeb261L);
     }
+
+    @Test
+    public void testMurmurHash64AWithOffset() {
+        byte[] data = "Lorem ipsum dolor sit amet, consectetur adipisicing elit"
+                .getBytes(StandardCharsets.UTF_8);
+
+        for (int off = 0; off < 10; off++) {
+            for (int len = 0; off + len <= data.length; len++) {
+                long expected = HllUtil.murmurHash64A(Arrays.copyOfRange(data, off, off + len), 0xadc83b19);
+                assertThat(HllUtil.murmurHash64A(data, off, len, 0xadc83b19)).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void testMurmurHash64AByteBuffer() {
+        byte[] data = "Lorem ipsum dolor sit amet, consectetur adipisicing elit"
+                .getBytes(StandardCharsets.UTF_8);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+
+        for (int off = 0; off < 10; off++) {
+            for (int len = 0; off + len <= data.length; len++) {
+                long expected = HllUtil.murmurHash64A(Arrays.copyOfRange(data, off, off + len), 0xadc83b19);
+
+                ByteBuffer heap = ByteBuffer.wrap(data, off, len);
+                assertThat(HllUtil.murmurHash64A(heap, 0xadc83b19)).isEqualTo(expected);
+                assertThat(HllUtil.murmurHash64A(heap.slice(), 0xadc83b19)).isEqualTo(expected);
+
+                direct.limit(off + len).position(off);
+                assertThat(HllUtil.murmurHash64A(direct.order(ByteOrder.BIG_ENDIAN), 0xadc83b19))
+                        .isEqualTo(expected);
+                assertThat(HllUtil.murmurHash64A(direct.order(ByteOrder.LITTLE_ENDIAN), 0xadc83b19))
+                        .isEqualTo(expected);
+                // position should not be changed
+                assertThat(direct.position()).isEqualTo(off);
+                direct.clear();
+            }
+        }
+    }
+
+    @Test
+    public void testMurmurHash64ACharSequence() {
+        String[] strings = new String[]{
+                "",
+                "a",
+                "Lorem ipsum dolor sit amet, consectetur adipisicing elit",
+                "\u00e9l\u00e8ve",
+                "\u3042\u3044\u3046\u3048\u304a",
+                "emoji \ud83d\ude00 and more \ud83c\udf63",
+                // unpaired surrogates
+                "\ud83d",
+                "a\ude00b",
+                "\ud83d\ud83dxyz",
+        };
+
+        for (String string : strings) {
+            long expected = HllUtil.murmurHash64A(string.getBytes(StandardCharsets.UTF_8), 0xadc83b19);
+
+            assertThat(HllUtil.murmurHash64A(string, 0xadc83b19)).as(string).isEqualTo(expected);
+            assertThat(HllUtil.murmurHash64A(new StringBuilder(string), 0xadc83b19)).as(string).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testMurmurHash64ADecimal() {
+        long[] values = new long[]{
+                0, 1, -1, 9, 10, 99, 100, 12345678, -12345678, 123456789, 1234567890123456789L,
+                Integer.MAX_VALUE, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE, Long.MAX_VALUE - 1, Long.MIN_VALUE + 1
+        };
+        for (long value : values) {
+            long expected = HllUtil.murmurHash64A(String.valueOf(value).getBytes(), 0xadc83b19);
+            assertThat(HllUtil.murmurHash64ADecimal(value, 0xadc83b19)).as(String.valueOf(value)).isEqualTo(expected);
+        }
+
+        for (long value = 1; value > 0; value *= 10) {
+            for (long v : new long[]{value - 1, value, value + 1, -value}) {
+                long expected = HllUtil.murmurHash64A(String.valueOf(v).getBytes(), 0xadc83b19);
+                assertThat(HllUtil.murmurHash64ADecimal(v, 0xadc83b19)).as(String.valueOf(v)).isEqualTo(expected);
+            }
+        }
+    }
+
+    @Test
+    public void testMurmurHash64AUUID() {
+        for (int i = 0; i < 100; i++) {
+            UUID uuid = UUID.randomUUID();
+            long expected = HllUtil.murmurHash64A(uuid.toString().getBytes(), 0xadc83b19);
+
+            assertThat(HllUtil.murmurHash64A(uuid, 0xadc83b19)).as(uuid.toString()).isEqualTo(expected);
+        }
+        UUID uuid = new UUID(0, 0);
+        assertThat(HllUtil.murmurHash64A(uuid, 0xadc83b19))
+                .isEqualTo(HllUtil.murmurHash64A(uuid.toString().getBytes(), 0xadc83b19));
+    }
+
+    @Test
+    public void testHasher() {
+        HllUtil.Hasher hasher = HllUtil.newHasher(HllUtil.HLL_HASH_SEED);
+
+        for (int i = 0; i < 100; i++) {
+            long userId = i * 1000000007L;
+            String domain = "domain\u3042" + i + ".com";
+            int day = 20190609 + i;
+            byte[] frame = ("frame:" + i).getBytes(StandardCharsets.UTF_8);
+
+            ByteBuffer concat = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+            concat.putLong(userId);
+            concat.put(domain.getBytes(StandardCharsets.UTF_8));
+            concat.putInt(day);
+            concat.put(frame, 6, frame.length - 6);
+            concat.put(frame);
+            concat.put(frame, 0, 5);
+            concat.flip();
+
+            byte[] expectedBytes = new byte[concat.remaining()];
+            concat.get(expectedBytes);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(frame.length);
+            direct.put(frame).flip();
+
+            long hash = hasher.reset()
+                    .putLong(userId)
+                    .putString(domain)
+                    .putInt(day)
+                    .putBytes(frame, 6, frame.length - 6)
+                    .putBytes(frame)
+                    .putBytes(ByteBuffer.wrap(frame, 0, 5))
+                    .hash();
+            assertThat(hash).isEqualTo(HllUtil.murmurHash64A(expectedBytes, HllUtil.HLL_HASH_SEED));
+
+            // direct buffer
+            long hashWithDirect = hasher.reset()
+                    .putBytes(direct)
+                    .hash();
+            assertThat(hashWithDirect).isEqualTo(HllUtil.murmurHash64A(frame, HllUtil.HLL_HASH_SEED));
+            assertThat(direct.position()).isEqualTo(0);
+        }
+
+        // grow internal buffer
+        byte[] large = new byte[1000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte)i;
+        }
+        hasher.reset();
+        for (int i = 0; i < large.length; i += 10) {
+            hasher.putBytes(large, i, 10);
+        }
+        assertThat(hasher.hash()).isEqualTo(HllUtil.murmurHash64A(large, HllUtil.HLL_HASH_SEED));
+    }
 }
@@ -0,0 +1,88 @@
+package com.mayreh.pfutil;
+
+import com.mayreh.pfutil.v4.HllV4;
+import com.mayreh.pfutil.v5.HllV5;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class MappedHllStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPfAddInPlace() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("store");
+        HllV5 expected = HllV5.newBuilder().withSparseMaxBytes(0).build();
+
+        try (MappedHllStore store = MappedHllStore.open(path, 3)) {
+            HllV5 hll = HllV5.newBuilder().withBuffer(store.slot(1)).build();
+            assertThat(hll.pfCount()).isEqualTo(0L);
+
+            for (int i = 0; i < 10000; i++) {
+                hll.pfAdd(i);
+                expected.pfAdd(i);
+            }
+            assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        }
+        assertThat(Files.size(path)).isEqualTo(3L * MappedHllStore.slotSize());
+
+        try (MappedHllStore store = MappedHllStore.open(path, 3)) {
+            HllV5 hll = HllV5.newBuilder().withBuffer(store.slot(1)).build();
+
+            // includes the cardinality cache written by pfCount
+            assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+
+            HllV5 untouched = HllV5.newBuilder().withBuffer(store.slot(0)).build();
+            assertThat(untouched.pfCount()).isEqualTo(0L);
+        }
+    }
+
+    @Test
+    public void testPfMergeBetweenSlots() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("store");
+
+        try (MappedHllStore store = MappedHllStore.open(path, 2)) {
+            HllV4 hll0 = HllV4.newBuilder().withBuffer(store.slot(0)).build();
+            HllV4 hll1 = HllV4.newBuilder().withBuffer(store.slot(1)).build();
+            HllV4 expected = HllV4.newBuilder().build();
+
+            for (int i = 0; i < 1000; i++) {
+                hll0.pfAdd(i);
+                hll1.pfAdd(i + 500);
+                expected.pfAdd(i);
+                expected.pfAdd(i + 500);
+            }
+            hll0.pfMerge(hll1);
+
+            HllV4 reopened = HllV4.newBuilder().withBuffer(store.slot(0)).build();
+            assertThat(reopened.pfCount()).isEqualTo(expected.pfCount());
+        }
+    }
+
+    @Test
+    public void testGrow() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("store");
+
+        try (MappedHllStore store = MappedHllStore.open(path, 1)) {
+            HllV5.newBuilder().withBuffer(store.slot(0)).build().pfAdd("a");
+        }
+        try (MappedHllStore store = MappedHllStore.open(path, 5)) {
+            assertThat(store.slots()).isEqualTo(5);
+            assertThat(HllV5.newBuilder().withBuffer(store.slot(0)).build().pfCount()).isEqualTo(1L);
+            assertThat(HllV5.newBuilder().withBuffer(store.slot(4)).build().pfCount()).isEqualTo(0L);
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testSlotOutOfRange() throws Exception {
+        try (MappedHllStore store = MappedHllStore.open(folder.getRoot().toPath().resolve("store"), 1)) {
+            store.slot(1);
+        }
+    }
+}
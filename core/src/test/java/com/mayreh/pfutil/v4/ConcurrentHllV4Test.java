@@ -0,0 +1,162 @@
+package com.mayreh.pfutil.v4;
+
+import com.mayreh.pfutil.TestUtil;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentHllV4Test {
+    @Test
+    public void testInstantiate() {
+        ConcurrentHllV4 hll = ConcurrentHllV4.newBuilder().build();
+
+        assertThat(hll.pfCount()).isEqualTo(0L);
+        assertThat(hll.dumpRepr()).isEqualTo(HllV4.newBuilder().build().dumpRepr());
+    }
+
+    @Test
+    public void testPfAdd() {
+        ConcurrentHllV4 hll = ConcurrentHllV4.newBuilder().build();
+
+        for (int i = 1; i <= 1000; i++) {
+            hll.pfAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+        }
+        // same as HllV4
+        assertThat(hll.pfCount()).isEqualTo(1001L);
+
+        assertThat(hll.pfAdd("1000")).isFalse();
+        assertThat(hll.pfAdd(1001L)).isTrue();
+        assertThat(hll.pfCount()).isEqualTo(1002L);
+    }
+
+    @Test
+    public void testSameAsHllV4() {
+        ConcurrentHllV4 hll = ConcurrentHllV4.newBuilder().build();
+        HllV4 expected = HllV4.newBuilder().build();
+
+        for (int i = 0; i < 200000; i++) {
+            assertThat(hll.pfAdd(i)).isEqualTo(expected.pfAdd(i));
+
+            if (i % 10000 == 0) {
+                assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+                assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+            }
+        }
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test
+    public void testDumpHasValidCache() {
+        ConcurrentHllV4 hll = ConcurrentHllV4.newBuilder().build();
+        HllV4 expected = HllV4.newBuilder().build();
+        for (int i = 0; i < 10000; i++) {
+            hll.pfAdd(i);
+            expected.pfAdd(i);
+        }
+
+        // HllV4 leaves the cache invalidated after PFADD, while ConcurrentHllV4 always populates it
+        byte[] repr = hll.dumpRepr();
+        byte[] expectedRepr = expected.dumpRepr();
+        assertThat(expectedRepr[15] & 0x80).isNotEqualTo(0);
+        assertThat(repr[15] & 0x80).isEqualTo(0);
+        assertThat(Arrays.copyOfRange(repr, 16, repr.length))
+                .isEqualTo(Arrays.copyOfRange(expectedRepr, 16, expectedRepr.length));
+        assertThat(HllV4.newBuilder().withRepr(repr).build().pfCount()).isEqualTo(expected.pfCount());
+    }
+
+    @Test
+    public void testWithRepr() throws Exception {
+        ConcurrentHllV4 dense = ConcurrentHllV4.newBuilder()
+                .withRepr(TestUtil.getResourceAsBytes("v4/dense_cached_55531.dat"))
+                .build();
+        assertThat(dense.pfCount()).isEqualTo(55531L);
+
+        byte[] sparseRepr = TestUtil.getResourceAsBytes("v4/sparse_nocache_1002.dat");
+        ConcurrentHllV4 sparse = ConcurrentHllV4.newBuilder().withRepr(sparseRepr).build();
+        assertThat(sparse.pfCount()).isEqualTo(1002L);
+
+        byte[] dumped = sparse.dumpRepr();
+        assertThat(HllV4.newBuilder().withRepr(dumped).build().pfCount()).isEqualTo(1002L);
+        assertThat(ConcurrentHllV4.newBuilder().withRepr(dumped).build().dumpRepr()).isEqualTo(dumped);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWithCorruptedRepr() throws Exception {
+        byte[] repr = TestUtil.getResourceAsBytes("v4/sparse_nocache_1002.dat");
+        // drop the last opcode so that registers don't sum up to 16384
+        byte[] truncated = new byte[repr.length - 1];
+        System.arraycopy(repr, 0, truncated, 0, truncated.length);
+
+        ConcurrentHllV4.newBuilder().withRepr(truncated).build();
+    }
+
+    @Test
+    public void testSparseMaxBytes() {
+        ConcurrentHllV4 hll = ConcurrentHllV4.newBuilder().withSparseMaxBytes(0).build();
+        HllV4 expected = HllV4.newBuilder().withSparseMaxBytes(0).build();
+
+        hll.pfAdd("a");
+        expected.pfAdd("a");
+        // dumped representation has the cardinality cache
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test
+    public void testConcurrentPfAdd() throws Exception {
+        int threads = 8;
+        int elementsPerThread = 50000;
+
+        ConcurrentHllV4 hll = ConcurrentHllV4.newBuilder().build();
+        HllV4 expected = HllV4.newBuilder().build();
+        for (int i = 0; i < threads * elementsPerThread; i++) {
+            expected.pfAdd(i);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int from = t * elementsPerThread;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = from; i < from + elementsPerThread; i++) {
+                        hll.pfAdd(i);
+                    }
+                    return null;
+                }));
+            }
+            // count and dump concurrently with adds
+            Future<?> reader = executor.submit(() -> {
+                start.await();
+                while (futures.stream().anyMatch(f -> !f.isDone())) {
+                    hll.pfCount();
+                    HllV4.newBuilder().withRepr(hll.dumpRepr()).build();
+                }
+                return null;
+            });
+
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            reader.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+}
@@ -0,0 +1,85 @@
+package com.mayreh.pfutil.v4;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class HllRegistryV4Test {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testPfAdd() throws Exception {
+        try (HllRegistryV4 registry = HllRegistryV4.newBuilder().build()) {
+            for (int i = 1; i <= 1000; i++) {
+                registry.pfAdd("foo", String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            }
+            // same as HllV4Test.testPfAdd
+            assertThat(registry.pfCount("foo")).isEqualTo(1001L);
+            assertThat(registry.pfCount("bar")).isEqualTo(0L);
+            assertThat(registry.dumpRepr("bar")).isNull();
+            assertThat(registry.size()).isEqualTo(1);
+        }
+    }
+
+    @Test
+    public void testPfAddAll() throws Exception {
+        try (HllRegistryV4 registry = HllRegistryV4.newBuilder().build()) {
+            HllV4 expected = HllV4.newBuilder().build();
+            List<byte[]> elements = new ArrayList<>();
+            for (int i = 0; i < 10000; i++) {
+                elements.add(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            }
+            expected.pfAddAll(elements);
+
+            assertThat(registry.pfAddAll("foo", elements)).isGreaterThan(0);
+            assertThat(registry.pfCount("foo")).isEqualTo(expected.pfCount());
+            assertThat(registry.dumpRepr("foo")).isEqualTo(expected.dumpRepr());
+        }
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        int keys = 20;
+        HllV4[] expected = new HllV4[keys];
+        try (HllRegistryV4 registry = HllRegistryV4.newBuilder()
+                .withMemoryBudget(5 * 12304)
+                .withSpillDirectory(folder.getRoot().toPath())
+                .build()) {
+            // dense and sparse HLLs
+            for (int k = 0; k < keys; k++) {
+                expected[k] = HllV4.newBuilder().build();
+                for (int i = 0; i < (k % 2 == 0 ? 10000 : 10); i++) {
+                    registry.pfAdd("key" + k, String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+                    expected[k].pfAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+                }
+                assertThat(registry.residentBytes()).isLessThanOrEqualTo(5 * 12304);
+            }
+            assertThat(registry.size()).isEqualTo(keys);
+            assertThat(registry.residentSize()).isLessThan(keys);
+
+            // reloaded from the spill file, and updated again
+            for (int k = 0; k < keys; k++) {
+                registry.pfAdd("key" + k, "updated".getBytes(StandardCharsets.UTF_8));
+                expected[k].pfAdd("updated".getBytes(StandardCharsets.UTF_8));
+            }
+            for (int k = 0; k < keys; k++) {
+                assertThat(registry.pfCount("key" + k)).isEqualTo(expected[k].pfCount());
+                assertThat(registry.dumpRepr("key" + k)).isEqualTo(expected[k].dumpRepr());
+            }
+        }
+        // spill file is deleted on close
+        try (Stream<?> files = Files.list(folder.getRoot().toPath())) {
+            assertThat(files.count()).isEqualTo(0L);
+        }
+    }
+
+}
@@ -1,5 +1,6 @@
 package com.mayreh.pfutil.v4;
 
+import com.mayreh.pfutil.HllEncoding;
 import com.mayreh.pfutil.TestUtil;
 import org.junit.Test;
 
@@ -35,6 +36,46 @@ public class HllhdrV4Test {
         assertThat(result.count).isEqualTo(55527L);
     }
 
+    @Test
+    public void testDenseHllCountSameAsRegisterOrderSum() {
+        for (int cardinality : new int[] { 100, 10000, 1000000 }) {
+            HllhdrV4 hllhdr = new HllhdrV4();
+            hllhdr.setSparseMaxBytes(0);
+            for (int i = 0; i < cardinality; i++) {
+                hllhdr.hllAddDecimal(i);
+            }
+
+            int ez = 0;
+            double E = 0;
+            for (byte register : hllhdr.unpackRegisters()) {
+                if (register == 0) {
+                    ez++;
+                } else {
+                    E += 1.0 / (1L << register);
+                }
+            }
+            E += ez;
+
+            assertThat(hllhdr.hllCount().count).isEqualTo(HllhdrV4.hllCount(ez, E));
+        }
+    }
+
+    @Test
+    public void testHllCountWithRegisterHistogram() throws Exception {
+        HllhdrV4 tracked = new HllhdrV4(TestUtil.getResourceAsBytes("v4/dense_cached_55527.dat"));
+        tracked.trackRegisterHistogram();
+        HllhdrV4 scanned = new HllhdrV4(TestUtil.getResourceAsBytes("v4/dense_cached_55527.dat"));
+
+        assertThat(tracked.hllCount().count).isEqualTo(scanned.hllCount().count);
+
+        // registers beyond the exact range of the histogram sum
+        for (int i = 0; i < 100; i++) {
+            tracked.hllSet(i * 7, 39 + i % 12);
+            scanned.hllSet(i * 7, 39 + i % 12);
+            assertThat(tracked.hllCount().count).isEqualTo(scanned.hllCount().count);
+        }
+    }
+
     @Test
     public void testSparseHllCount() throws Exception {
         HllhdrV4 hllhdr = new HllhdrV4(TestUtil.getResourceAsBytes("v4/sparse_cached_1002.dat"));
@@ -146,4 +187,40 @@ public class HllhdrV4Test {
             assertThat(newRepr[i]).isEqualTo(mergedBytesFromRedis[i]);
         }
     }
+
+    @Test
+    public void testSparseHllAddAtoZ() throws Exception {
+        HllhdrV4 hllhdr = new HllhdrV4();
+
+        for (char c = 'A'; c <= 'Z'; c++) {
+            hllhdr.hllAdd(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] newRepr = hllhdr.dump();
+        byte[] reprFromRedis = TestUtil.getResourceAsBytes("v4/sparse_cached_AtoZ.dat");
+
+        // header cache will be updated in outer layer
+        // so skip equality check of header section here
+        assertThat(newRepr.length).isEqualTo(reprFromRedis.length);
+        for (int i = 16; i < newRepr.length; i++) {
+            assertThat(newRepr[i]).isEqualTo(reprFromRedis[i]);
+        }
+    }
+
+    @Test
+    public void testPromoteToDenseBySparseMaxBytes() {
+        HllhdrV4 sparse = new HllhdrV4();
+        HllhdrV4 promoted = new HllhdrV4();
+        promoted.setSparseMaxBytes(100);
+
+        for (int i = 1; i <= 1000; i++) {
+            sparse.hllAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            promoted.hllAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertThat(sparse.dump()[4]).isEqualTo(HllEncoding.SPARSE.value);
+        assertThat(promoted.dump()[4]).isEqualTo(HllEncoding.DENSE.value);
+        assertThat(promoted.dump().length).isEqualTo(12304);
+        assertThat(promoted.hllCount().count).isEqualTo(sparse.hllCount().count);
+    }
 }
@@ -0,0 +1,162 @@
+package com.mayreh.pfutil.v5;
+
+import com.mayreh.pfutil.TestUtil;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ConcurrentHllV5Test {
+    @Test
+    public void testInstantiate() {
+        ConcurrentHllV5 hll = ConcurrentHllV5.newBuilder().build();
+
+        assertThat(hll.pfCount()).isEqualTo(0L);
+        assertThat(hll.dumpRepr()).isEqualTo(HllV5.newBuilder().build().dumpRepr());
+    }
+
+    @Test
+    public void testPfAdd() {
+        ConcurrentHllV5 hll = ConcurrentHllV5.newBuilder().build();
+
+        for (int i = 1; i <= 1000; i++) {
+            hll.pfAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+        }
+        // same as HllV5
+        assertThat(hll.pfCount()).isEqualTo(1001L);
+
+        assertThat(hll.pfAdd("1000")).isFalse();
+        assertThat(hll.pfAdd(1001L)).isTrue();
+        assertThat(hll.pfCount()).isEqualTo(1002L);
+    }
+
+    @Test
+    public void testSameAsHllV5() {
+        ConcurrentHllV5 hll = ConcurrentHllV5.newBuilder().build();
+        HllV5 expected = HllV5.newBuilder().build();
+
+        for (int i = 0; i < 200000; i++) {
+            assertThat(hll.pfAdd(i)).isEqualTo(expected.pfAdd(i));
+
+            if (i % 10000 == 0) {
+                assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+                assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+            }
+        }
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test
+    public void testDumpHasValidCache() {
+        ConcurrentHllV5 hll = ConcurrentHllV5.newBuilder().build();
+        HllV5 expected = HllV5.newBuilder().build();
+        for (int i = 0; i < 10000; i++) {
+            hll.pfAdd(i);
+            expected.pfAdd(i);
+        }
+
+        // HllV5 leaves the cache invalidated after PFADD, while ConcurrentHllV5 always populates it
+        byte[] repr = hll.dumpRepr();
+        byte[] expectedRepr = expected.dumpRepr();
+        assertThat(expectedRepr[15] & 0x80).isNotEqualTo(0);
+        assertThat(repr[15] & 0x80).isEqualTo(0);
+        assertThat(Arrays.copyOfRange(repr, 16, repr.length))
+                .isEqualTo(Arrays.copyOfRange(expectedRepr, 16, expectedRepr.length));
+        assertThat(HllV5.newBuilder().withRepr(repr).build().pfCount()).isEqualTo(expected.pfCount());
+    }
+
+    @Test
+    public void testWithRepr() throws Exception {
+        ConcurrentHllV5 dense = ConcurrentHllV5.newBuilder()
+                .withRepr(TestUtil.getResourceAsBytes("v5/dense_cached_99571.dat"))
+                .build();
+        assertThat(dense.pfCount()).isEqualTo(99571L);
+
+        byte[] sparseRepr = TestUtil.getResourceAsBytes("v5/sparse_nocache_1001.dat");
+        ConcurrentHllV5 sparse = ConcurrentHllV5.newBuilder().withRepr(sparseRepr).build();
+        assertThat(sparse.pfCount()).isEqualTo(1001L);
+
+        byte[] dumped = sparse.dumpRepr();
+        assertThat(HllV5.newBuilder().withRepr(dumped).build().pfCount()).isEqualTo(1001L);
+        assertThat(ConcurrentHllV5.newBuilder().withRepr(dumped).build().dumpRepr()).isEqualTo(dumped);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWithCorruptedRepr() throws Exception {
+        byte[] repr = TestUtil.getResourceAsBytes("v5/sparse_nocache_1001.dat");
+        // drop the last opcode so that registers don't sum up to 16384
+        byte[] truncated = new byte[repr.length - 1];
+        System.arraycopy(repr, 0, truncated, 0, truncated.length);
+
+        ConcurrentHllV5.newBuilder().withRepr(truncated).build();
+    }
+
+    @Test
+    public void testSparseMaxBytes() {
+        ConcurrentHllV5 hll = ConcurrentHllV5.newBuilder().withSparseMaxBytes(0).build();
+        HllV5 expected = HllV5.newBuilder().withSparseMaxBytes(0).build();
+
+        hll.pfAdd("a");
+        expected.pfAdd("a");
+        // dumped representation has the cardinality cache
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test
+    public void testConcurrentPfAdd() throws Exception {
+        int threads = 8;
+        int elementsPerThread = 50000;
+
+        ConcurrentHllV5 hll = ConcurrentHllV5.newBuilder().build();
+        HllV5 expected = HllV5.newBuilder().build();
+        for (int i = 0; i < threads * elementsPerThread; i++) {
+            expected.pfAdd(i);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int from = t * elementsPerThread;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = from; i < from + elementsPerThread; i++) {
+                        hll.pfAdd(i);
+                    }
+                    return null;
+                }));
+            }
+            // count and dump concurrently with adds
+            Future<?> reader = executor.submit(() -> {
+                start.await();
+                while (futures.stream().anyMatch(f -> !f.isDone())) {
+                    hll.pfCount();
+                    HllV5.newBuilder().withRepr(hll.dumpRepr()).build();
+                }
+                return null;
+            });
+
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            reader.get();
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+}
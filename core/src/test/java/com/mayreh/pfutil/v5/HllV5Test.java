@@ -1,12 +1,29 @@
 package com.mayreh.pfutil.v5;
 
+import com.mayreh.pfutil.HllBufferAllocator;
+import com.mayreh.pfutil.HllByteBuffer;
+import com.mayreh.pfutil.HllEncoding;
+import com.mayreh.pfutil.HllMerger;
+import com.mayreh.pfutil.HllRegisterSource;
+import com.mayreh.pfutil.HllUtil;
 import com.mayreh.pfutil.TestUtil;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.Assert.fail;
 
 public class HllV5Test {
     @Test
@@ -42,6 +59,528 @@ public class HllV5Test {
         assertThat(hll.pfMerge(other).pfCount()).isEqualTo(99571L);
     }
 
+    @Test
+    public void testPfMergeDenseAndSparse() {
+        HllV5 dense = HllV5.newBuilder().withSparseMaxBytes(0).build();
+        HllV5 sparse = HllV5.newBuilder().build();
+        HllV5 expected = HllV5.newBuilder().withSparseMaxBytes(0).build();
+
+        for (int i = 0; i < 20000; i++) {
+            dense.pfAdd(i);
+            expected.pfAdd(i);
+        }
+        for (int i = 15000; i < 15300; i++) {
+            sparse.pfAdd(i);
+            expected.pfAdd(i);
+        }
+        for (int i = 0; i < 100; i++) {
+            sparse.pfAdd("s" + i);
+            expected.pfAdd("s" + i);
+        }
+
+        HllV5 merged = HllV5.newBuilder().build().pfMerge(dense, sparse);
+
+        assertThat(merged.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(merged.dumpRepr()).isEqualTo(expected.dumpRepr());
+
+        // merging is commutative
+        HllV5 reversed = HllV5.newBuilder().build().pfMerge(sparse, dense);
+        assertThat(reversed.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(reversed.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test
+    public void testSparseMerge() {
+        HllV5 hll = HllV5.newBuilder().withSparseMerge(true).build();
+        HllV5 expected = HllV5.newBuilder().build();
+        List<HllV5> others = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            HllV5 other = HllV5.newBuilder().build();
+            for (int j = 0; j < 10; j++) {
+                other.pfAdd(i * 7 + j);
+            }
+            others.add(other);
+        }
+        hll.pfAdd("a");
+        expected.pfAdd("a");
+
+        hll.pfMerge(others.toArray(new HllV5[0]));
+        expected.pfMerge(others.toArray(new HllV5[0]));
+
+        // union of small HLLs stays sparse, and is encoded same as HllMerger
+        byte[] repr = hll.dumpRepr();
+        assertThat(repr[4]).isEqualTo(HllEncoding.SPARSE.value);
+        List<HllRegisterSource> sources = new ArrayList<>(others);
+        sources.add(HllRegisterSource.of(HllV5.newBuilder().build().dumpRepr()));
+        sources.add(HllV5.wrap(repr));
+        assertThat(HllMerger.newBuilder().build().merge(sources)).isEqualTo(repr);
+
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(HllV5.newBuilder().build().pfMerge(hll).dumpRepr())
+                .isEqualTo(HllV5.newBuilder().build().pfMerge(expected).dumpRepr());
+
+        // promoted to dense if the union doesn't fit in sparse
+        HllV5 large = HllV5.newBuilder().build();
+        for (int i = 0; i < 500; i++) {
+            large.pfAdd(i);
+        }
+        assertThat(large.dumpRepr()[4]).isEqualTo(HllEncoding.SPARSE.value);
+        HllV5 small = HllV5.newBuilder().withSparseMerge(true).withSparseMaxBytes(300).build();
+        small.pfAdd("a");
+        small.pfMerge(large);
+        assertThat(small.dumpRepr()[4]).isEqualTo(HllEncoding.DENSE.value);
+        HllV5 smallExpected = HllV5.newBuilder().build();
+        smallExpected.pfAdd("a");
+        assertThat(small.pfCount()).isEqualTo(smallExpected.pfMerge(large).pfCount());
+    }
+
+    @Test
+    public void testSparseMergeHugeSparseMaxBytes() {
+        // always stay sparse
+        HllV5 hll = HllV5.newBuilder().withSparseMerge(true).withSparseMaxBytes(Integer.MAX_VALUE).build();
+        HllV5 other = HllV5.newBuilder().withSparseMaxBytes(Integer.MAX_VALUE).build();
+        HllV5 expected = HllV5.newBuilder().build();
+        for (int i = 0; i < 20000; i++) {
+            (i % 2 == 0 ? hll : other).pfAdd(i);
+            expected.pfAdd(i);
+        }
+
+        hll.pfMerge(other);
+        assertThat(hll.dumpRepr()[4]).isEqualTo(HllEncoding.SPARSE.value);
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(HllV5.newBuilder().build().pfMerge(hll).dumpRepr())
+                .isEqualTo(HllV5.newBuilder().build().pfMerge(expected).dumpRepr());
+    }
+
+    @Test
+    public void testSparseDump() {
+        HllV5 sparse = HllV5.newBuilder().build();
+        for (int i = 0; i < 50; i++) {
+            sparse.pfAdd(i);
+        }
+        HllV5 merged = HllV5.newBuilder().withSparseDump(true).build().pfMerge(sparse);
+        HllV5 expected = HllV5.newBuilder().build().pfMerge(sparse);
+        assertThat(merged.pfCount()).isEqualTo(expected.pfCount());
+
+        byte[] repr = merged.dumpRepr();
+        assertThat(repr[4]).isEqualTo(HllEncoding.SPARSE.value);
+        assertThat(repr.length).isLessThanOrEqualTo(HllByteBuffer.DEFAULT_SPARSE_MAX_BYTES);
+        assertThat(merged.dumpLength()).isEqualTo(expected.dumpRepr().length);
+
+        // the cache is kept and the registers are same
+        HllV5 restored = HllV5.newBuilder().withRepr(repr).build();
+        assertThat(restored.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(HllV5.newBuilder().build().pfMerge(restored).dumpRepr())
+                .isEqualTo(HllV5.newBuilder().build().pfMerge(expected).dumpRepr());
+        assertThat(expected.dumpCompact()).isEqualTo(repr);
+
+        // doesn't fit in sparse max bytes
+        HllV5 medium = HllV5.newBuilder().withSparseDump(true).withSparseMaxBytes(0).build();
+        for (int i = 0; i < 3000; i++) {
+            medium.pfAdd(i);
+        }
+        assertThat(medium.dumpRepr()[4]).isEqualTo(HllEncoding.DENSE.value);
+        byte[] compact = medium.dumpCompact();
+        assertThat(compact[4]).isEqualTo(HllEncoding.SPARSE.value);
+        assertThat(compact.length).isBetween(HllByteBuffer.DEFAULT_SPARSE_MAX_BYTES, medium.dumpRepr().length);
+        assertThat(HllV5.newBuilder().withRepr(compact).build().pfCount()).isEqualTo(medium.pfCount());
+
+        // sparse is not smaller than dense
+        HllV5 large = HllV5.newBuilder().build();
+        for (int i = 0; i < 100000; i++) {
+            large.pfAdd(i);
+        }
+        assertThat(large.dumpCompact()).isEqualTo(large.dumpRepr());
+    }
+
+    @Test
+    public void testDeltaSync() {
+        HllV5 edge = HllV5.newBuilder().withDeltaTracking(true).build();
+        HllV5 aggregator = HllV5.newBuilder().build();
+
+        // sparse, promoted to dense, then a few updates
+        int[][] rounds = { {0, 100}, {100, 100000}, {100000, 100005} };
+        for (int[] round : rounds) {
+            for (int i = round[0]; i < round[1]; i++) {
+                edge.pfAdd(i);
+            }
+            byte[] delta = edge.exportDelta();
+            assertThat(delta.length % 3).isEqualTo(0);
+            assertThat(delta.length).isLessThanOrEqualTo((round[1] - round[0]) * 3);
+            aggregator.applyDelta(delta);
+            assertThat(aggregator.pfCount()).isEqualTo(edge.pfCount());
+        }
+
+        // merge is tracked as well
+        HllV5 other = HllV5.newBuilder().build();
+        for (int i = 200000; i < 201000; i++) {
+            other.pfAdd(i);
+        }
+        edge.pfMerge(other);
+        assertThat(aggregator.applyDelta(edge.exportDelta())).isTrue();
+        assertThat(HllV5.newBuilder().build().pfMerge(aggregator).dumpRepr())
+                .isEqualTo(HllV5.newBuilder().build().pfMerge(edge).dumpRepr());
+
+        // nothing changed since the last export
+        assertThat(edge.exportDelta()).isEmpty();
+
+        // applying again changes nothing
+        int element = 300000;
+        while (!edge.pfAdd(element)) {
+            element++;
+        }
+        byte[] delta = edge.exportDelta();
+        assertThat(aggregator.applyDelta(delta)).isTrue();
+        assertThat(aggregator.applyDelta(delta)).isFalse();
+
+        try {
+            aggregator.applyDelta(Arrays.copyOf(delta, delta.length - 1));
+            fail("invalid delta must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            aggregator.exportDelta();
+            fail("delta must not be exported without tracking");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testDeltaSyncMerge() {
+        HllV5 aggregator = HllV5.newBuilder().build();
+        for (boolean sparseMerge : new boolean[] { true, false }) {
+            HllV5 edge = HllV5.newBuilder().withDeltaTracking(true).withSparseMerge(sparseMerge).build();
+            for (int i = 0; i < 50; i++) {
+                edge.pfAdd(i);
+            }
+            aggregator.applyDelta(edge.exportDelta());
+
+            // sparse source is merged into sparse, dense source is merged by the kernel
+            HllV5 other = HllV5.newBuilder().withSparseMaxBytes(sparseMerge ? 3000 : 0).build();
+            for (int i = 25; i < 100; i++) {
+                other.pfAdd(i);
+            }
+            byte[] before = new byte[16384];
+            edge.maxRegisters(before);
+            edge.pfMerge(other);
+            byte[] after = new byte[16384];
+            edge.maxRegisters(after);
+            assertThat(edge.dumpRepr()[4])
+                    .isEqualTo(sparseMerge ? HllEncoding.SPARSE.value : HllEncoding.DENSE.value);
+
+            // only the registers changed by the merge are exported
+            int changed = 0;
+            for (int i = 0; i < 16384; i++) {
+                if (before[i] != after[i]) {
+                    changed++;
+                }
+            }
+            byte[] delta = edge.exportDelta();
+            assertThat(delta.length).isEqualTo(changed * 3);
+            aggregator.applyDelta(delta);
+        }
+        HllV5 expected = HllV5.newBuilder().build();
+        for (int i = 0; i < 100; i++) {
+            expected.pfAdd(i);
+        }
+        assertThat(HllV5.newBuilder().build().pfMerge(aggregator).dumpRepr())
+                .isEqualTo(HllV5.newBuilder().build().pfMerge(expected).dumpRepr());
+    }
+
+    @Test
+    public void testPfMergeCorruptedSparse() {
+        HllV5 hll = HllV5.newBuilder().withSparseMaxBytes(0).build();
+        for (int i = 0; i < 1000; i++) {
+            hll.pfAdd(i);
+        }
+        byte[] before = hll.dumpRepr();
+
+        HllV5 sparse = HllV5.newBuilder().build();
+        sparse.pfAdd("a");
+        byte[] corrupted = Arrays.copyOf(sparse.dumpRepr(), sparse.dumpRepr().length - 1);
+
+        try {
+            hll.pfMerge(HllV5.newBuilder().withRepr(corrupted).build());
+            fail("merging corrupted HLL should fail");
+        } catch (RuntimeException e) {
+            // expected
+        }
+        assertThat(hll.dumpRepr()).isEqualTo(before);
+    }
+
+    @Test
+    public void testWithCorruptedSparseRepr() {
+        byte[] empty = HllV5.newBuilder().build().dumpRepr();
+        HllV5 sparse = HllV5.newBuilder().build();
+        sparse.pfAdd("a");
+        byte[] repr = sparse.dumpRepr();
+
+        byte[][] corrupted = {
+                // truncated XZERO
+                Arrays.copyOf(empty, empty.length - 1),
+                // trailing ZERO opcode
+                Arrays.copyOf(empty, empty.length + 1),
+                // runs don't sum up to 16384
+                Arrays.copyOf(repr, repr.length - 1),
+        };
+        for (byte[] c : corrupted) {
+            try {
+                HllV5.newBuilder().withRepr(c).build();
+                fail("corrupted representation must be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+            try {
+                HllV5.wrap(c);
+                fail("corrupted representation must be rejected");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testDirectAllocator() {
+        HllV5 heap = HllV5.newBuilder().build();
+        HllV5 direct = HllV5.newBuilder().withAllocator(HllBufferAllocator.direct()).build();
+
+        for (int i = 0; i < 5000; i++) {
+            heap.pfAdd(i);
+            direct.pfAdd(i);
+            if (i == 100) {
+                // still sparse
+                assertThat(direct.dumpRepr()).isEqualTo(heap.dumpRepr());
+            }
+        }
+        assertThat(direct.pfCount()).isEqualTo(heap.pfCount());
+        assertThat(direct.dumpRepr()).isEqualTo(heap.dumpRepr());
+
+        HllV5 other = HllV5.newBuilder().withAllocator(HllBufferAllocator.direct()).build();
+        for (int i = 3000; i < 10000; i++) {
+            other.pfAdd(i);
+        }
+        heap.pfMerge(other);
+        direct.pfMerge(other);
+        assertThat(direct.pfCount()).isEqualTo(heap.pfCount());
+        assertThat(direct.dumpRepr()).isEqualTo(heap.dumpRepr());
+
+        HllV5 restored = HllV5.newBuilder()
+                .withAllocator(HllBufferAllocator.direct())
+                .withRepr(heap.dumpRepr())
+                .build();
+        assertThat(restored.dumpRepr()).isEqualTo(heap.dumpRepr());
+    }
+
+    @Test
+    public void testAllocatorRelease() {
+        Set<ByteBuffer> live = Collections.newSetFromMap(new IdentityHashMap<>());
+        HllBufferAllocator allocator = new HllBufferAllocator() {
+            @Override
+            public ByteBuffer allocate(int capacity) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(capacity);
+                live.add(buffer);
+                return buffer;
+            }
+
+            @Override
+            public void release(ByteBuffer buffer) {
+                assertThat(live.remove(buffer)).isTrue();
+            }
+        };
+
+        HllV5 hll = HllV5.newBuilder().withAllocator(allocator).build();
+        for (int i = 0; i < 5000; i++) {
+            hll.pfAdd(i);
+        }
+        assertThat(live).hasSize(1);
+
+        hll.close();
+        assertThat(live).isEmpty();
+    }
+
+    @Test
+    public void testDumpReprToChannel() throws Exception {
+        HllV5 hll = HllV5.newBuilder().withAllocator(HllBufferAllocator.direct()).build();
+        for (int i = 0; i < 100; i++) {
+            hll.pfAdd(i);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int written = hll.dumpRepr(Channels.newChannel(out));
+
+        assertThat(written).isEqualTo(out.size());
+        assertThat(out.toByteArray()).isEqualTo(hll.dumpRepr());
+    }
+
+    @Test
+    public void testWithBuffer() {
+        HllV5 dense = HllV5.newBuilder().withSparseMaxBytes(0).build();
+        dense.pfAdd("a");
+        byte[] repr = dense.dumpRepr();
+
+        // the representation is placed after 10 bytes of garbage
+        ByteBuffer buffer = ByteBuffer.allocate(10 + repr.length);
+        buffer.position(10);
+        buffer.put(repr);
+        buffer.position(10);
+
+        HllV5 hll = HllV5.newBuilder().withBuffer(buffer).build();
+        hll.pfAdd("b");
+        dense.pfAdd("b");
+        assertThat(hll.pfCount()).isEqualTo(2L);
+        dense.pfCount();
+
+        // written through without changing the position
+        assertThat(buffer.position()).isEqualTo(10);
+        assertThat(Arrays.copyOfRange(buffer.array(), 10, buffer.capacity())).isEqualTo(dense.dumpRepr());
+    }
+
+    @Test
+    public void testWrap() throws Exception {
+        byte[] repr = TestUtil.getResourceAsBytes("v5/sparse_nocache_1001.dat");
+        byte[] original = Arrays.copyOf(repr, repr.length);
+
+        HllV5 hll = HllV5.wrap(repr);
+        assertThat(hll.pfCount()).isEqualTo(1001L);
+        // cache is not written to the borrowed array
+        assertThat(repr).isEqualTo(original);
+
+        HllV5 merged = HllV5.newBuilder().build().pfMerge(hll);
+        assertThat(merged.pfCount()).isEqualTo(1001L);
+        assertThat(repr).isEqualTo(original);
+
+        // copied on the first modification
+        assertThat(hll.pfAdd("new element")).isTrue();
+        assertThat(repr).isEqualTo(original);
+        HllV5 copied = HllV5.newBuilder().withRepr(original).build();
+        copied.pfAdd("new element");
+        assertThat(hll.dumpRepr()).isEqualTo(copied.dumpRepr());
+
+        // merging into wrapped dense HLL
+        byte[] denseRepr = TestUtil.getResourceAsBytes("v5/dense_cached_99571.dat");
+        byte[] denseOriginal = Arrays.copyOf(denseRepr, denseRepr.length);
+        HllV5 denseHll = HllV5.wrap(denseRepr).pfMerge(copied);
+        assertThat(denseRepr).isEqualTo(denseOriginal);
+        assertThat(denseHll.dumpRepr()).isEqualTo(
+                HllV5.newBuilder().withRepr(denseOriginal).build().pfMerge(copied).dumpRepr());
+    }
+
+    @Test
+    public void testWrapMergeUnchanged() {
+        HllV5 source = HllV5.newBuilder().build();
+        for (int i = 0; i < 100000; i++) {
+            source.pfAdd(i);
+        }
+        source.pfCount();
+        byte[] repr = source.dumpRepr();
+        byte[] original = Arrays.copyOf(repr, repr.length);
+
+        HllV5 subset = HllV5.newBuilder().build();
+        for (int i = 0; i < 1000; i++) {
+            subset.pfAdd(i);
+        }
+        // registers are not changed, so neither copied nor the cache invalidated
+        HllV5 hll = HllV5.wrap(repr).pfMerge(HllV5.newBuilder().build(), subset, source);
+        assertThat(hll.dumpRepr()).isEqualTo(original);
+        assertThat(hll.pfCount()).isEqualTo(source.pfCount());
+
+        subset.pfAdd("new element");
+        hll.pfMerge(subset);
+        assertThat(repr).isEqualTo(original);
+        assertThat(hll.dumpRepr()[15] & 0x80).isNotEqualTo(0);
+        assertThat(hll.dumpRepr()).isEqualTo(
+                HllV5.newBuilder().withRepr(original).build().pfMerge(subset).dumpRepr());
+    }
+
+    @Test
+    public void testDumpInto() {
+        HllV5 hll = HllV5.newBuilder().build();
+        hll.pfAdd("a");
+        byte[] expected = hll.dumpRepr();
+        assertThat(hll.dumpLength()).isEqualTo(expected.length);
+
+        byte[] array = new byte[expected.length + 3];
+        assertThat(hll.dumpInto(array, 3)).isEqualTo(expected.length);
+        assertThat(Arrays.copyOfRange(array, 3, array.length)).isEqualTo(expected);
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length + 3);
+        assertThat(hll.dumpInto(buffer, 3)).isEqualTo(expected.length);
+        assertThat(buffer.position()).isEqualTo(0);
+        byte[] fromBuffer = new byte[expected.length];
+        buffer.position(3);
+        buffer.get(fromBuffer);
+        assertThat(fromBuffer).isEqualTo(expected);
+
+        try {
+            hll.dumpInto(new byte[expected.length], 1);
+            fail("dumping into insufficient array should fail");
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPfCountUnion() throws Exception {
+        byte[] denseBytes = TestUtil.getResourceAsBytes("v5/dense_cached_99571.dat");
+        byte[] sparseBytes = TestUtil.getResourceAsBytes("v5/sparse_cached_AtoZ.dat");
+        HllV5 hll = HllV5.newBuilder().build();
+        for (int i = 0; i < 5000; i++) {
+            hll.pfAdd(i);
+        }
+
+        HllV5 merged = HllV5.newBuilder().build().pfMerge(
+                HllV5.newBuilder().withRepr(denseBytes).build(),
+                HllV5.newBuilder().withRepr(sparseBytes).build(),
+                hll);
+        byte[] hllBytes = hll.dumpRepr();
+
+        assertThat(HllV5.pfCountUnion(denseBytes, sparseBytes, hllBytes)).isEqualTo(merged.pfCount());
+        assertThat(HllV5.pfCountUnion(Arrays.asList(denseBytes, null, sparseBytes, hllBytes)))
+                .isEqualTo(merged.pfCount());
+        assertThat(HllV5.pfCountUnion(HllV5.wrap(denseBytes), HllV5.wrap(sparseBytes), hll))
+                .isEqualTo(merged.pfCount());
+
+        // inputs are not modified
+        assertThat(denseBytes).isEqualTo(TestUtil.getResourceAsBytes("v5/dense_cached_99571.dat"));
+        assertThat(hll.dumpRepr()).isEqualTo(hllBytes);
+
+        assertThat(HllV5.pfCountUnion(sparseBytes)).isEqualTo(HllV5.newBuilder().withRepr(sparseBytes).build().pfCount());
+        assertThat(HllV5.pfCountUnion(Collections.emptyList())).isEqualTo(0L);
+    }
+
+    @Test
+    public void testPfCountUnionCorrupted() throws Exception {
+        byte[] repr = TestUtil.getResourceAsBytes("v5/sparse_nocache_1001.dat");
+        byte[] truncated = Arrays.copyOf(repr, repr.length - 1);
+        try {
+            HllV5.pfCountUnion(repr, truncated);
+            fail("corrupted representation must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            HllV5.pfCountUnion(repr, new byte[] { 'H', 'Y', 'L', 'L' });
+            fail("invalid representation must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        // corrupted after built on a borrowed buffer
+        byte[] borrowed = Arrays.copyOf(repr, repr.length);
+        HllV5 hll = HllV5.newBuilder().withBuffer(ByteBuffer.wrap(borrowed)).build();
+        // XZERO of 16384 registers in addition to the existing runs
+        borrowed[16] = 0x7f;
+        borrowed[17] = (byte)0xff;
+        try {
+            HllV5.pfCountUnion(HllV5.newBuilder().build(), hll);
+            fail("corrupted HLL must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
     @Test
     public void testDump() throws Exception {
         HllV5 hll = HllV5.newBuilder().build();
@@ -65,4 +604,279 @@ public class HllV5Test {
         assertThat(hll.pfCount()).isEqualTo(4L);
         assertThat(hll.pfCount()).isEqualTo(4L);
     }
+
+    @Test
+    public void testSparseMaxBytes() {
+        HllV5 sparse = HllV5.newBuilder().build();
+        HllV5 dense = HllV5.newBuilder().withSparseMaxBytes(0).build();
+
+        for (int i = 1; i <= 100; i++) {
+            sparse.pfAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            dense.pfAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertThat(sparse.dumpRepr().length).isLessThan(dense.dumpRepr().length);
+        assertThat(dense.dumpRepr().length).isEqualTo(12304);
+        assertThat(sparse.pfCount()).isEqualTo(dense.pfCount());
+    }
+
+    @Test
+    public void testRegisterHistogram() throws Exception {
+        HllV5 tracked = HllV5.newBuilder().withRegisterHistogram(true).build();
+        HllV5 expected = HllV5.newBuilder().build();
+
+        // interleaved adds and counts, through sparse to dense promotion
+        for (int i = 0; i < 50000; i++) {
+            tracked.pfAdd(i);
+            expected.pfAdd(i);
+            if (i % 97 == 0) {
+                assertThat(tracked.pfCount()).isEqualTo(expected.pfCount());
+            }
+        }
+
+        // registers changed in bulk
+        byte[] otherBytes = TestUtil.getResourceAsBytes("v5/dense_cached_99571.dat");
+        tracked.pfMerge(HllV5.newBuilder().withRepr(otherBytes).build());
+        expected.pfMerge(HllV5.newBuilder().withRepr(otherBytes).build());
+        assertThat(tracked.pfCount()).isEqualTo(expected.pfCount());
+
+        byte[][] elements = new byte[10000][];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8);
+        }
+        tracked.pfAddAll(elements);
+        expected.pfAddAll(elements);
+        assertThat(tracked.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(tracked.dumpRepr()).isEqualTo(expected.dumpRepr());
+
+        HllV5 restored = HllV5.newBuilder().withRepr(otherBytes).withRegisterHistogram(true).build();
+        restored.pfAdd("a");
+        HllV5 restoredExpected = HllV5.newBuilder().withRepr(otherBytes).build();
+        restoredExpected.pfAdd("a");
+        assertThat(restored.pfCount()).isEqualTo(restoredExpected.pfCount());
+    }
+
+    @Test
+    public void testHotRegisters() throws Exception {
+        HllV5 hot = HllV5.newBuilder().withHotRegisters(true).build();
+        HllV5 expected = HllV5.newBuilder().build();
+
+        // promoted to dense on the way
+        for (int i = 0; i < 50000; i++) {
+            hot.pfAdd(i);
+            expected.pfAdd(i);
+            if (i % 97 == 0) {
+                assertThat(hot.pfCount()).isEqualTo(expected.pfCount());
+            }
+        }
+        assertThat(hot.dumpRepr()).isEqualTo(expected.dumpRepr());
+        assertThat(hot.retainedBytes()).isEqualTo(expected.retainedBytes() + 16384);
+
+        // registers changed in bulk
+        byte[] otherBytes = TestUtil.getResourceAsBytes("v5/dense_cached_99571.dat");
+        HllV5 sparse = HllV5.newBuilder().build();
+        sparse.pfAdd("a");
+        hot.pfMerge(HllV5.newBuilder().withRepr(otherBytes).build(), sparse);
+        expected.pfMerge(HllV5.newBuilder().withRepr(otherBytes).build(), sparse);
+        for (int i = 50000; i < 60000; i++) {
+            hot.pfAdd(i);
+            expected.pfAdd(i);
+        }
+        assertThat(hot.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hot.dumpRepr()).isEqualTo(expected.dumpRepr());
+
+        // sparse sources are merged through into the unpacked copy
+        HllV5 other = HllV5.newBuilder().build();
+        for (char c = 'a'; c <= 'z'; c++) {
+            other.pfAdd(String.valueOf(c));
+        }
+        hot.pfMerge(other);
+        expected.pfMerge(other);
+        assertThat(hot.retainedBytes()).isEqualTo(expected.retainedBytes() + 16384);
+        assertThat(hot.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hot.dumpRepr()).isEqualTo(expected.dumpRepr());
+
+        hot.releaseHotRegisters();
+        assertThat(hot.retainedBytes()).isEqualTo(expected.retainedBytes());
+
+        // merges don't build the unpacked copy
+        other.pfAdd("new element");
+        hot.pfMerge(other);
+        expected.pfMerge(other);
+        assertThat(hot.retainedBytes()).isEqualTo(expected.retainedBytes());
+        for (int i = 60000; i < 70000; i++) {
+            hot.pfAdd(i);
+            expected.pfAdd(i);
+        }
+        assertThat(hot.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hot.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test
+    public void testPfAddSlice() {
+        HllV5 expected = HllV5.newBuilder().build();
+        HllV5 slice = HllV5.newBuilder().build();
+        HllV5 heapBuffer = HllV5.newBuilder().build();
+        HllV5 directBuffer = HllV5.newBuilder().build();
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(64);
+        for (int i = 1; i <= 1000; i++) {
+            byte[] element = String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+            byte[] frame = ("frame:" + i + ":end").getBytes(StandardCharsets.UTF_8);
+
+            expected.pfAdd(element);
+            slice.pfAdd(frame, 6, element.length);
+            heapBuffer.pfAdd(ByteBuffer.wrap(frame, 6, element.length));
+
+            direct.clear();
+            direct.put(frame).flip().position(6);
+            direct.limit(6 + element.length);
+            directBuffer.pfAdd(direct);
+        }
+
+        assertThat(slice.dumpRepr()).isEqualTo(expected.dumpRepr());
+        assertThat(heapBuffer.dumpRepr()).isEqualTo(expected.dumpRepr());
+        assertThat(directBuffer.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test
+    public void testPfAddWithoutBytes() {
+        HllV5 expected = HllV5.newBuilder().build();
+        HllV5 hll = HllV5.newBuilder().build();
+
+        for (int i = 0; i < 1000; i++) {
+            UUID uuid = UUID.randomUUID();
+            String s = "\u8981\u7d20" + i;
+
+            expected.pfAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            expected.pfAdd(String.valueOf(i * 1000000007L).getBytes(StandardCharsets.UTF_8));
+            expected.pfAdd(uuid.toString().getBytes(StandardCharsets.UTF_8));
+            expected.pfAdd(s.getBytes(StandardCharsets.UTF_8));
+
+            hll.pfAdd(i);
+            hll.pfAdd(i * 1000000007L);
+            hll.pfAdd(uuid);
+            hll.pfAdd(s);
+        }
+
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test
+    public void testPfAddHasher() {
+        HllV5 expected = HllV5.newBuilder().build();
+        HllV5 hll = HllV5.newBuilder().build();
+        HllUtil.Hasher hasher = HllUtil.newHasher(HllUtil.HLL_HASH_SEED);
+
+        for (int i = 0; i < 1000; i++) {
+            String userId = "user" + i;
+            String domain = "domain" + (i % 10) + ".com";
+
+            expected.pfAdd((userId + ":" + domain).getBytes(StandardCharsets.UTF_8));
+            hll.pfAdd(hasher.reset().putString(userId).putString(":").putString(domain));
+        }
+
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPfAddHasherWithWrongSeed() {
+        HllV5 hll = HllV5.newBuilder().build();
+        hll.pfAdd(HllUtil.newHasher(42).putString("a"));
+    }
+
+    @Test
+    public void testPfAddHash() {
+        HllV5 expected = HllV5.newBuilder().build();
+        HllV5 hll = HllV5.newBuilder().build();
+        HllV5 hllArray = HllV5.newBuilder().build();
+        HllV5 hllHeapBuffer = HllV5.newBuilder().build();
+        HllV5 hllDirectBuffer = HllV5.newBuilder().build();
+
+        long[] hashes = new long[1002];
+        LongBuffer direct = ByteBuffer.allocateDirect(hashes.length * 8).asLongBuffer();
+        for (int i = 1; i <= 1000; i++) {
+            byte[] element = String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+            long hash = HllUtil.murmurHash64A(element, HllUtil.HLL_HASH_SEED);
+
+            expected.pfAdd(element);
+            hll.pfAddHash(hash);
+            hashes[i] = hash;
+            direct.put(i, hash);
+        }
+
+        assertThat(hllArray.pfAddHashes(hashes, 1, 1000)).isTrue();
+        assertThat(hllArray.pfAddHashes(hashes, 1, 1000)).isFalse();
+
+        LongBuffer heap = LongBuffer.wrap(hashes, 1, 1000);
+        assertThat(hllHeapBuffer.pfAddHashes(heap)).isTrue();
+        assertThat(heap.position()).isEqualTo(1);
+
+        direct.position(1).limit(1001);
+        assertThat(hllDirectBuffer.pfAddHashes(direct)).isTrue();
+
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+        assertThat(hllArray.dumpRepr()).isEqualTo(expected.dumpRepr());
+        assertThat(hllHeapBuffer.dumpRepr()).isEqualTo(expected.dumpRepr());
+        assertThat(hllDirectBuffer.dumpRepr()).isEqualTo(expected.dumpRepr());
+        assertThat(hllArray.pfCount()).isEqualTo(expected.pfCount());
+    }
+
+    @Test
+    public void testPfAddAll() {
+        for (int n : new int[]{0, 4, 100, 1000, 1100, 2000, 100000}) {
+            HllV5 expected = HllV5.newBuilder().build();
+            HllV5 hll = HllV5.newBuilder().build();
+            HllV5 hllIterable = HllV5.newBuilder().build();
+            HllV5 hllHashes = HllV5.newBuilder().build();
+
+            byte[][] elements = new byte[n][];
+            List<byte[]> elementList = new ArrayList<>();
+            long[] hashes = new long[n];
+            for (int i = 0; i < n; i++) {
+                elements[i] = String.valueOf(i).getBytes(StandardCharsets.UTF_8);
+                elementList.add(elements[i]);
+                hashes[i] = HllUtil.murmurHash64A(elements[i], HllUtil.HLL_HASH_SEED);
+                expected.pfAdd(elements[i]);
+            }
+
+            int changed = hll.pfAddAll(elements);
+            assertThat(changed).isEqualTo(hllIterable.pfAddAll(elementList));
+            assertThat(changed).isEqualTo(hllHashes.pfAddAllHashes(hashes, 0, n));
+            assertThat(changed).isBetween(Math.min(n, 1) , Math.max(n, 1));
+
+            assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+            assertThat(hllIterable.pfCount()).isEqualTo(expected.pfCount());
+            assertThat(hllHashes.pfCount()).isEqualTo(expected.pfCount());
+            assertThat(hll.dumpRepr()).isEqualTo(hllIterable.dumpRepr());
+            assertThat(hll.dumpRepr()).isEqualTo(hllHashes.dumpRepr());
+
+            // adding same elements again doesn't change registers
+            assertThat(hll.pfAddAll(elements)).isEqualTo(0);
+
+            // batch is kept sparse as long as the result fits in sparse max bytes
+            if (n <= 1100) {
+                assertThat(hll.dumpRepr()[4]).isEqualTo(HllEncoding.SPARSE.value);
+            } else {
+                assertThat(hll.dumpRepr()[4]).isEqualTo(HllEncoding.DENSE.value);
+            }
+        }
+    }
+
+    @Test
+    public void testPfAddAllDense() throws Exception {
+        byte[] dense = TestUtil.getResourceAsBytes("v5/dense_cached_99562.dat");
+        HllV5 expected = HllV5.newBuilder().withRepr(dense).build();
+        HllV5 hll = HllV5.newBuilder().withRepr(dense).build();
+
+        byte[][] elements = new byte[50000][];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = ("dense" + i).getBytes(StandardCharsets.UTF_8);
+            expected.pfAdd(elements[i]);
+        }
+        hll.pfAddAll(elements);
+
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+    }
 }
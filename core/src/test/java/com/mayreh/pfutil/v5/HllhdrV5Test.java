@@ -1,5 +1,6 @@
 package com.mayreh.pfutil.v5;
 
+import com.mayreh.pfutil.HllEncoding;
 import com.mayreh.pfutil.TestUtil;
 import org.junit.Test;
 
@@ -146,4 +147,60 @@ public class HllhdrV5Test {
             assertThat(newRepr[i]).isEqualTo(mergedBytesFromRedis[i]);
         }
     }
+
+    @Test
+    public void testSparseHllAdd() throws Exception {
+        HllhdrV5 hllhdr = new HllhdrV5();
+
+        for (int i = 1; i <= 1000; i++) {
+            hllhdr.hllAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] newRepr = hllhdr.dump();
+        byte[] reprFromRedis = TestUtil.getResourceAsBytes("v5/sparse_nocache_1001.dat");
+
+        // sparse representation should be updated in place as same as Redis
+        assertThat(newRepr[4]).isEqualTo(HllEncoding.SPARSE.value);
+        assertThat(newRepr.length).isEqualTo(reprFromRedis.length);
+        for (int i = 16; i < newRepr.length; i++) {
+            assertThat(newRepr[i]).isEqualTo(reprFromRedis[i]);
+        }
+        assertThat(hllhdr.hllCount().count).isEqualTo(1001L);
+    }
+
+    @Test
+    public void testSparseHllAddAtoZ() throws Exception {
+        HllhdrV5 hllhdr = new HllhdrV5();
+
+        for (char c = 'A'; c <= 'Z'; c++) {
+            hllhdr.hllAdd(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+        }
+
+        byte[] newRepr = hllhdr.dump();
+        byte[] reprFromRedis = TestUtil.getResourceAsBytes("v5/sparse_cached_AtoZ.dat");
+
+        // header cache will be updated in outer layer
+        // so skip equality check of header section here
+        assertThat(newRepr.length).isEqualTo(reprFromRedis.length);
+        for (int i = 16; i < newRepr.length; i++) {
+            assertThat(newRepr[i]).isEqualTo(reprFromRedis[i]);
+        }
+    }
+
+    @Test
+    public void testPromoteToDenseBySparseMaxBytes() {
+        HllhdrV5 sparse = new HllhdrV5();
+        HllhdrV5 promoted = new HllhdrV5();
+        promoted.setSparseMaxBytes(100);
+
+        for (int i = 1; i <= 1000; i++) {
+            sparse.hllAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+            promoted.hllAdd(String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        assertThat(sparse.dump()[4]).isEqualTo(HllEncoding.SPARSE.value);
+        assertThat(promoted.dump()[4]).isEqualTo(HllEncoding.DENSE.value);
+        assertThat(promoted.dump().length).isEqualTo(12304);
+        assertThat(promoted.hllCount().count).isEqualTo(sparse.hllCount().count);
+    }
 }
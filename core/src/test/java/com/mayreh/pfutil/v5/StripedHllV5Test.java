@@ -0,0 +1,94 @@
+package com.mayreh.pfutil.v5;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StripedHllV5Test {
+    @Test
+    public void testInstantiate() {
+        StripedHllV5 hll = StripedHllV5.newBuilder().build();
+
+        assertThat(hll.pfCount()).isEqualTo(0L);
+        assertThat(hll.stripes()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPfAdd() {
+        StripedHllV5 hll = StripedHllV5.newBuilder().build();
+        HllV5 expected = HllV5.newBuilder().build();
+
+        for (int i = 0; i < 100000; i++) {
+            hll.pfAdd(i);
+            expected.pfAdd(i);
+        }
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+    }
+
+    @Test
+    public void testDumpRepr() {
+        StripedHllV5 hll = StripedHllV5.newBuilder().build();
+        HllV5 expected = HllV5.newBuilder().withSparseMaxBytes(0).build();
+
+        for (int i = 0; i < 1000; i++) {
+            hll.pfAdd(String.valueOf(i));
+            expected.pfAdd(String.valueOf(i));
+        }
+        // union is always dense, same as PFMERGE
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test
+    public void testConcurrentPfAdd() throws Exception {
+        int threads = 8;
+        int elementsPerThread = 50000;
+
+        StripedHllV5 hll = StripedHllV5.newBuilder().withMaxStripes(threads).build();
+        HllV5 expected = HllV5.newBuilder().withSparseMaxBytes(0).build();
+        for (int i = 0; i < threads * elementsPerThread; i++) {
+            expected.pfAdd(i);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                int from = t * elementsPerThread;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    for (int i = from; i < from + elementsPerThread; i++) {
+                        hll.pfAdd(i);
+                        if (i % 10000 == 0) {
+                            hll.pfCount();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertThat(hll.stripes()).isBetween(1, threads);
+        assertThat(hll.pfCount()).isEqualTo(expected.pfCount());
+        assertThat(hll.dumpRepr()).isEqualTo(expected.dumpRepr());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMaxStripes() {
+        StripedHllV5.newBuilder().withMaxStripes(0);
+    }
+}
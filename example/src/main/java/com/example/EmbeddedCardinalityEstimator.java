@@ -11,12 +11,12 @@ public class EmbeddedCardinalityEstimator {
 
     public void add(String... elements) {
         for (String element : elements) {
-            hll.pfAdd(element.getBytes());
+            hll.pfAdd(element);
         }
     }
 
     public void merge(byte[] hllData) {
-        hll.pfMerge(HllV4.newBuilder().withRepr(hllData).build());
+        hll.pfMerge(HllV4.wrap(hllData));
     }
 
     public byte[] dump() {